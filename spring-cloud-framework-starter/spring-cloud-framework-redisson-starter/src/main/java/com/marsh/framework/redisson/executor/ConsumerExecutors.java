@@ -0,0 +1,66 @@
+package com.marsh.framework.redisson.executor;
+
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 消费消息使用的执行器
+ * 1.虚拟线程模式：运行在JDK21及以上版本时每条消息使用一个虚拟线程执行，适合阻塞IO(http,jdbc)较多的处理器，不需要再按照并发数调整线程池大小
+ * 2.平台线程模式：固定大小的线程池，不支持虚拟线程的JDK会自动退回到这个模式
+ * ps:两种模式都不限制提交的任务数量，使用方需要通过信号量控制同时处理中的消息数量
+ * @author Marsh
+ * @date 2022-07-04日 10:05
+ */
+@Slf4j
+public final class ConsumerExecutors {
+
+    /**
+     * JDK21的Executors.newVirtualThreadPerTaskExecutor()，低版本JDK为null
+     * 项目按照JDK8编译，这里只能通过反射调用
+     */
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor();
+
+    private ConsumerExecutors(){
+    }
+
+    private static Method findVirtualThreadExecutor(){
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e){
+            return null;
+        }
+    }
+
+    /**
+     * 当前JDK是否支持虚拟线程
+     * @return
+     */
+    public static boolean isVirtualThreadSupported(){
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * 创建消费执行器
+     * @author Marsh
+     * @date 2022-07-04
+     * @param namePrefix 平台线程的线程名前缀
+     * @param concurrency 平台线程池的线程数
+     * @param virtualThreads 是否优先使用虚拟线程
+     * @return java.util.concurrent.ExecutorService
+     */
+    public static ExecutorService newExecutor(String namePrefix, int concurrency, boolean virtualThreads){
+        if (virtualThreads && NEW_VIRTUAL_THREAD_EXECUTOR != null){
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException e){
+                // JDK19/20需要开启预览特性才能使用虚拟线程
+                log.warn("虚拟线程不可用，使用平台线程池执行:" + e.getMessage());
+            }
+        }
+        return Executors.newFixedThreadPool(concurrency, ThreadUtil.newNamedThreadFactory(namePrefix, false));
+    }
+}
@@ -0,0 +1,136 @@
+package com.marsh.framework.redisson.metrics;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueMetrics;
+import com.marsh.framework.redisson.queue.RAckQueueStats;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RDestroyable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * 基于micrometer的RAckQueue指标
+ * 1.rack.queue.messages 队列各个阶段的消息数量(gauge)，tag state=ready/in_flight/delayed/dead，按照固定间隔采样，不会在每次拉取指标时访问redis
+ * 2.rack.queue.operation 各个操作的耗时(timer)，tag operation=push/pop/ack/unack
+ * 3.rack.queue.batch.size 各个操作每次处理的消息数量(summary)
+ * 4.rack.queue.redelivered / rack.queue.dead.lettered 超时重新投递和放入失败队列的消息数量(counter)
+ * 5.rack.queue.latency 消息的排队时间和处理时间(timer，带有直方图可以计算分位数)，tag stage=wait/process，需要开启RAckQueue#isLatencyTracking()
+ * 所有指标都带有queue=队列名称的tag
+ * @author Marsh
+ * @date 2022-07-06日 11:15
+ */
+@Slf4j
+public class MicrometerAckQueueMetrics implements RAckQueueMetrics, RDestroyable {
+
+    private final MeterRegistry registry;
+    private final long sampleIntervalMs;
+    private final Map<String, RAckQueueStats> stats = new ConcurrentHashMap<>();
+    /**
+     * 按照 队列名称+操作(阶段) 缓存的指标，每次操作不再重新构造builder和查找注册表
+     */
+    private final Map<String, Timer> operationTimers = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> batchSizes = new ConcurrentHashMap<>();
+    private final Map<String, Timer> latencyTimers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "RAckQueueMetrics-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MicrometerAckQueueMetrics(MeterRegistry registry, long sampleIntervalMs){
+        this.registry = registry;
+        this.sampleIntervalMs = sampleIntervalMs;
+    }
+
+    @Override
+    public void bind(RAckQueue<?> queue){
+        String name = queue.getName();
+        if (stats.putIfAbsent(name, new RAckQueueStats()) != null){
+            return;
+        }
+        gauge(name, "ready", s -> s.getReady());
+        gauge(name, "in_flight", s -> s.getInFlight());
+        gauge(name, "delayed", s -> s.getDelayed());
+        gauge(name, "dead", s -> s.getDead());
+        sampler.scheduleWithFixedDelay(() -> {
+            try {
+                stats.put(name, queue.getStats());
+            } catch (Exception e){
+                log.warn(name + "\t队列指标采样失败:" + e.getMessage());
+            }
+        }, 0, sampleIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void gauge(String queueName, String state, ToLongFunction<RAckQueueStats> value){
+        Gauge.builder("rack.queue.messages", stats, m -> value.applyAsLong(m.get(queueName)))
+                .tag("queue", queueName)
+                .tag("state", state)
+                .register(registry);
+    }
+
+    @Override
+    public void recordOperation(String queueName, String operation, int count, long nanos){
+        String key = key(queueName, operation);
+        operationTimers.computeIfAbsent(key, k -> Timer.builder("rack.queue.operation")
+                .tag("queue", queueName)
+                .tag("operation", operation)
+                .register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+        if (count > 0){
+            batchSizes.computeIfAbsent(key, k -> DistributionSummary.builder("rack.queue.batch.size")
+                    .tag("queue", queueName)
+                    .tag("operation", operation)
+                    .register(registry))
+                    .record(count);
+        }
+    }
+
+    @Override
+    public void recordLatency(String queueName, String stage, long millis){
+        latencyTimers.computeIfAbsent(key(queueName, stage), k -> Timer.builder("rack.queue.latency")
+                .tag("queue", queueName)
+                .tag("stage", stage)
+                .publishPercentileHistogram()
+                .register(registry))
+                .record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void recordRedelivered(String queueName, long count){
+        counter("rack.queue.redelivered", queueName).increment(count);
+    }
+
+    @Override
+    public void recordDeadLettered(String queueName, long count){
+        counter("rack.queue.dead.lettered", queueName).increment(count);
+    }
+
+    @Override
+    public void recordAckFailed(String queueName, long count){
+        counter("rack.queue.ack.failed", queueName).increment(count);
+    }
+
+    private Counter counter(String name, String queueName){
+        return counters.computeIfAbsent(key(name, queueName), k -> Counter.builder(name).tag("queue", queueName).register(registry));
+    }
+
+    private static String key(String first, String second){
+        return first + ":" + second;
+    }
+
+    @Override
+    public void destroy(){
+        sampler.shutdownNow();
+    }
+}
@@ -0,0 +1,77 @@
+package com.marsh.framework.redisson.metrics;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.ShardedAckQueue;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * 引入micrometer时自动给spring管理的RAckQueue和ShardedAckQueue设置MicrometerAckQueueMetrics，指标通过actuator的metrics/prometheus端点暴露
+ * 配置项 framework.redisson.queue.metrics.enabled 是否开启，默认true
+ * 配置项 framework.redisson.queue.metrics.sample-interval-ms 队列消息数量的采样间隔，默认10秒
+ * @author Marsh
+ * @date 2022-07-06日 11:40
+ */
+@Configuration
+@ConditionalOnClass(MeterRegistry.class)
+public class RAckQueueMetricsConfiguration {
+
+    public final static String METRICS_PROPERTIES_PREFIX = "framework.redisson.queue.metrics";
+
+    @Bean
+    public static RAckQueueMetricsPostProcessor rAckQueueMetricsPostProcessor(ObjectProvider<MeterRegistry> registry, Environment environment){
+        return new RAckQueueMetricsPostProcessor(registry, environment);
+    }
+
+    public static class RAckQueueMetricsPostProcessor implements BeanPostProcessor, DisposableBean {
+
+        private final ObjectProvider<MeterRegistry> registry;
+        private final Environment environment;
+        private volatile MicrometerAckQueueMetrics metrics;
+
+        RAckQueueMetricsPostProcessor(ObjectProvider<MeterRegistry> registry, Environment environment){
+            this.registry = registry;
+            this.environment = environment;
+        }
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+            if (bean instanceof RAckQueue || bean instanceof ShardedAckQueue){
+                MicrometerAckQueueMetrics current = getMetrics();
+                if (current != null){
+                    if (bean instanceof RAckQueue){
+                        ((RAckQueue<?>) bean).setMetrics(current);
+                    } else {
+                        ((ShardedAckQueue<?>) bean).setMetrics(current);
+                    }
+                }
+            }
+            return bean;
+        }
+
+        private synchronized MicrometerAckQueueMetrics getMetrics(){
+            if (metrics == null && environment.getProperty(METRICS_PROPERTIES_PREFIX + ".enabled", Boolean.class, true)){
+                MeterRegistry meterRegistry = registry.getIfAvailable();
+                if (meterRegistry != null){
+                    metrics = new MicrometerAckQueueMetrics(meterRegistry,
+                            environment.getProperty(METRICS_PROPERTIES_PREFIX + ".sample-interval-ms", Long.class, 10000L));
+                }
+            }
+            return metrics;
+        }
+
+        @Override
+        public void destroy(){
+            if (metrics != null){
+                metrics.destroy();
+            }
+        }
+    }
+}
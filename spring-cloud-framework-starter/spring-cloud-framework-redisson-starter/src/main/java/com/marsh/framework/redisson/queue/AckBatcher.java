@@ -0,0 +1,150 @@
+package com.marsh.framework.redisson.queue;
+
+import io.netty.util.Timeout;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RFuture;
+import org.redisson.connection.ConnectionManager;
+import org.redisson.misc.RPromise;
+import org.redisson.misc.RedissonPromise;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * ack合并器
+ * 将多个线程提交的ack(消息id)先缓存起来，当缓存数量达到batchSize或者距第一条缓存超过intervalMs毫秒时，
+ * 通过一次ack(消息id集合)调用批量提交，把大量单条ack的lua脚本调用合并成少量的批量调用
+ * 使用方式：子类重写RAckQueue#getAckBatchSize()返回大于0的值即可开启，队列destroy()时会提交剩余的ack
+ * @author Marsh
+ * @date 2022-06-23日 10:12
+ */
+@Slf4j
+public class AckBatcher {
+
+    /**
+     * 批量提交ack的方法，返回确认成功的消息id
+     */
+    private final Function<List<String>, RFuture<List<String>>> sender;
+    private final ConnectionManager connectionManager;
+    private final int batchSize;
+    private final long intervalMs;
+
+    private List<PendingAck> pending = new ArrayList<>();
+    private Timeout timeout;
+    private boolean destroyed;
+
+    public AckBatcher(RAckQueue<?> queue, ConnectionManager connectionManager, int batchSize, long intervalMs){
+        this(queue::ackAsync, connectionManager, batchSize, intervalMs);
+    }
+
+    /**
+     * 使用自定义的批量提交方法，延时任务等其他需要合并ack的地方可以复用
+     * @param sender 批量提交ack的方法，返回确认成功的消息id
+     * @param connectionManager
+     * @param batchSize
+     * @param intervalMs
+     */
+    public AckBatcher(Function<List<String>, RFuture<List<String>>> sender, ConnectionManager connectionManager, int batchSize, long intervalMs){
+        this.sender = sender;
+        this.connectionManager = connectionManager;
+        this.batchSize = batchSize;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * 添加一个需要确认的消息id
+     * @author Marsh
+     * @date 2022-06-23
+     * @param id
+     * @return org.redisson.api.RFuture<java.lang.Boolean> 批量提交完成后返回这个消息的确认结果
+     */
+    public RFuture<Boolean> add(String id){
+        RPromise<Boolean> promise = new RedissonPromise<>();
+        List<PendingAck> flushList = null;
+        synchronized (this){
+            pending.add(new PendingAck(id, promise));
+            if (destroyed || pending.size() >= batchSize){
+                flushList = drain();
+            } else if (timeout == null){
+                timeout = connectionManager.newTimeout(t -> flush(), intervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (flushList != null){
+            send(flushList);
+        }
+        return promise;
+    }
+
+    /**
+     * 立即提交所有缓存的ack
+     * @author Marsh
+     * @date 2022-06-23
+     */
+    public void flush(){
+        List<PendingAck> flushList;
+        synchronized (this){
+            flushList = drain();
+        }
+        send(flushList);
+    }
+
+    /**
+     * 提交剩余的ack，之后添加的ack不再缓存直接提交
+     * @author Marsh
+     * @date 2022-06-23
+     */
+    public void destroy(){
+        synchronized (this){
+            destroyed = true;
+        }
+        flush();
+    }
+
+    private List<PendingAck> drain(){
+        if (timeout != null){
+            timeout.cancel();
+            timeout = null;
+        }
+        List<PendingAck> flushList = pending;
+        pending = new ArrayList<>();
+        return flushList;
+    }
+
+    private void send(List<PendingAck> flushList){
+        if (flushList.size() == 0){
+            return;
+        }
+        List<String> ids = new ArrayList<>(flushList.size());
+        for (PendingAck ack : flushList){
+            ids.add(ack.id);
+        }
+        sender.apply(ids).onComplete((res, e) -> {
+            if (e != null) {
+                log.error(e.getMessage(), e);
+                for (PendingAck ack : flushList){
+                    ack.promise.tryFailure(e);
+                }
+                return;
+            }
+            Set<String> acked = res == null ? new HashSet<>() : new HashSet<>(res);
+            for (PendingAck ack : flushList){
+                ack.promise.trySuccess(acked.contains(ack.id));
+            }
+        });
+    }
+
+    private static class PendingAck {
+
+        private final String id;
+        private final RPromise<Boolean> promise;
+
+        PendingAck(String id, RPromise<Boolean> promise){
+            this.id = id;
+            this.promise = promise;
+        }
+    }
+}
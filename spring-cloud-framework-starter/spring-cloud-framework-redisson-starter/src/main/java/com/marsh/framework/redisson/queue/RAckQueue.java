@@ -1,5 +1,6 @@
 package com.marsh.framework.redisson.queue;
 
+import cn.hutool.core.collection.CollUtil;
 import cn.hutool.core.collection.ListUtil;
 import cn.hutool.core.util.IdUtil;
 import cn.hutool.core.util.StrUtil;
@@ -16,12 +17,21 @@ import org.redisson.client.codec.LongCodec;
 import org.redisson.client.codec.StringCodec;
 import org.redisson.client.protocol.RedisCommands;
 import org.redisson.client.protocol.ScoredEntry;
+import org.redisson.codec.CompositeCodec;
+import org.redisson.misc.RPromise;
+import org.redisson.misc.RedissonPromise;
 
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
 /**
  * 带有ack消息确认的队列
@@ -47,9 +57,15 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
 
     private static final String CMD_TIMEOUT = "timeout";
     private static final String CMD_MESSAGE = "message";
+    private static final String CMD_MESSAGES = "messages";
     private static final String CMD_ERROR = "error";
+    private static final String LATENCY_SEPARATOR = "|";
 
     private static final ConcurrentMap<String, RTopic> topicCache = new ConcurrentHashMap<>();
+    /**
+     * 同名队列共享一个消息到达信号，take()在队列为空时挂起在这里等待新消息通知
+     */
+    private static final ConcurrentMap<String, MessageSignal> signalCache = new ConcurrentHashMap<>();
 
     private final AtomicReference<QueueTransferTask.TimeoutTask> lastTimeout = new AtomicReference<QueueTransferTask.TimeoutTask>();
 
@@ -86,11 +102,68 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
      * redis数据类型: Pub/Sub 订阅发布
      */
     private final String channelName;
+    /**
+     * 超时清理租约，开启后同一时间只有持有租约的节点会清理超时队列
+     * redis数据类型: String 持有租约的节点标识
+     */
+    private final String timeoutLeaseName;
+    /**
+     * 延迟重试队列，开启退避重试后，超时或回滚的消息先放到这里，到达重试时间后再放回数据队列
+     * redis数据类型：Zset<重试时间戳,消息id>
+     */
+    private final String retryDelayName;
+    /**
+     * 消息优先级表，只记录优先级大于0的消息，超时和回滚时根据这个表把消息放回原来的优先级队列
+     * redis数据类型：Hash<消息id,优先级>
+     */
+    private final String priorityName;
+    /**
+     * 紧凑消息id的序列号，开启isCompactId()后消息id使用这个序列号的36进制字符串
+     * redis数据类型: String 最后一次分配的序列号
+     */
+    private final String idSeqName;
+    /**
+     * 消息最近一次放入队列或取出的时间，开启isLatencyTracking()后用来统计排队时间和处理时间
+     * redis数据类型：Hash<消息id,时间戳>
+     */
+    private final String timeName;
+    /**
+     * 各个优先级的数据队列，下标即优先级，优先级0使用queueName，其他优先级使用 queueName:priority_优先级
+     * redis数据类型：List<消息id>
+     */
+    private final List<String> laneNames;
+    /**
+     * 当前节点的租约持有者标识
+     */
+    private final String leaseOwnerId = IdUtil.fastSimpleUUID();
     private final BatchOptions defaultBatchOptions = BatchOptions.defaults().executionMode(BatchOptions.ExecutionMode.IN_MEMORY_ATOMIC);
+    private final MessageSignal messageSignal;
+    private volatile AckBatcher ackBatcher;
+    private volatile RAckQueueMetrics metrics = RAckQueueMetrics.NOOP;
+    /**
+     * 后台清理的定时任务和扫描进度，只有注册了通知监听的实例会执行后台清理
+     */
+    private volatile Timeout compactTimeout;
+    private volatile boolean compactDestroyed;
+    private volatile int compactHashIndex;
+    private volatile String compactCursor;
+    /**
+     * 批量弹出数据时使用的编码器，消息id使用字符串解码，消息数据使用队列的编码器解码
+     */
+    private final Codec popCodec;
+    private final RAckQueueOptions options;
 
 
     public RAckQueue(Redisson redisson, String name, Codec codec){
+        this(redisson, name, codec, RAckQueueOptions.defaults());
+    }
+
+    /**
+     * 使用指定的配置创建队列，配置的getter也可以由子类覆盖
+     */
+    public RAckQueue(Redisson redisson, String name, Codec codec, RAckQueueOptions options){
         super(codec, redisson.getCommandExecutor(), name);
+        this.options = options;
         this.redisson = redisson;
         this.queueName = prefixName("redisson_ack_queue", getName());
         this.dataHashName = suffixName(this.queueName, "data");
@@ -98,6 +171,19 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
         this.retryName = suffixName(this.queueName, "retry");
         this.errorName = suffixName(this.queueName, "error");
         this.channelName = suffixName(this.queueName, "channel");
+        this.timeoutLeaseName = suffixName(this.queueName, "timeout_lease");
+        this.retryDelayName = suffixName(this.queueName, "retry_delay");
+        this.idSeqName = suffixName(this.queueName, "id_seq");
+        this.timeName = suffixName(this.queueName, "time");
+        this.priorityName = suffixName(this.queueName, "priority");
+        List<String> lanes = new ArrayList<>();
+        lanes.add(this.queueName);
+        for (int i = 1; i < getPriorityLevels(); i++){
+            lanes.add(suffixName(this.queueName, "priority_" + i));
+        }
+        this.laneNames = Collections.unmodifiableList(lanes);
+        this.messageSignal = signalCache.computeIfAbsent(getName(), k -> new MessageSignal());
+        this.popCodec = new CompositeCodec(StringCodec.INSTANCE, codec, codec);
 
         RTopic topic = new RedissonTopic(StringCodec.INSTANCE, commandExecutor, channelName);
         RTopic oldTopic = topicCache.putIfAbsent(getName(), topic);
@@ -121,16 +207,22 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
                     if (StrUtil.isBlank(cmd)){
                         return;
                     }
-                    String[] split = cmd.split(":");
+                    String[] split = cmd.split(":", 2);
                     if (CMD_TIMEOUT.equals(split[0])){
+                        messageSignal.timeoutNotifyCount.incrementAndGet();
                         scheduleTimeoutTask(Long.parseLong(split[1]));
                     } else if (CMD_MESSAGE.equals(split[0])){
+                        messageSignal.signal();
                         RAckQueue.this.onMessage(split[1]);
+                    } else if (CMD_MESSAGES.equals(split[0])){
+                        messageSignal.signal();
+                        onMessages(Arrays.asList(split[1].split(",")));
                     } else if (CMD_ERROR.equals(split[0])){
                         onError(split[1]);
                     }
                 }
             });
+            scheduleCompact();
         }
     }
 
@@ -141,7 +233,7 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
      * @return java.lang.Long
      */
     public Long getExecutionTimeoutMs(){
-        return 300000L;
+        return options.getExecutionTimeoutMs();
     }
 
     /**
@@ -150,7 +242,69 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
      * @return
      */
     public int getRetryNumber(){
-        return 5;
+        return options.getRetryNumber();
+    }
+
+    /**
+     * 退避重试的初始延迟毫秒数，默认0不开启，超时或回滚的消息立即放回数据队列
+     * 开启后消息第n次重试的延迟为 min(getRetryBackoffMs() * getRetryBackoffMultiplier()^(n-1), getRetryBackoffMaxMs())，
+     * 再叠加±getRetryBackoffJitter()比例的随机抖动，防止下游故障时失败的消息反复快速重试
+     * @return
+     */
+    public long getRetryBackoffMs(){
+        return options.getRetryBackoffMs();
+    }
+
+    /**
+     * 退避重试的延迟倍数，默认2
+     * @return
+     */
+    public double getRetryBackoffMultiplier(){
+        return options.getRetryBackoffMultiplier();
+    }
+
+    /**
+     * 退避重试的最大延迟毫秒数，默认10分钟
+     * @return
+     */
+    public long getRetryBackoffMaxMs(){
+        return options.getRetryBackoffMaxMs();
+    }
+
+    /**
+     * 退避重试延迟的随机抖动比例，默认0.2即±20%
+     * @return
+     */
+    public double getRetryBackoffJitter(){
+        return options.getRetryBackoffJitter();
+    }
+
+    /**
+     * 超时清理租约的毫秒数，默认0不开启，所有节点都会在超时时间到达时清理超时队列
+     * 开启后只有持有租约的节点进行清理并在每次清理时续约，其他节点只在租约过期后尝试接管，
+     * 持有租约的节点宕机后最多一个租约周期内由其他节点接管
+     * @return
+     */
+    public long getTimeoutLeaseMs(){
+        return options.getTimeoutLeaseMs();
+    }
+
+    /**
+     * 优先级数量，默认1(不区分优先级)，优先级取值范围为 0 ~ getPriorityLevels()-1，数值越大越优先被取出
+     * ps:修改这个值前需要确保队列中没有超出新范围的优先级数据
+     * @return
+     */
+    public int getPriorityLevels(){
+        return options.getPriorityLevels();
+    }
+
+    /**
+     * 各个优先级的取出权重，下标即优先级，默认null严格按照优先级从高到低取出数据
+     * 设置后每次pop会先按照权重随机选出一个优先级队列优先取数据，不足时再按照优先级从高到低补充，防止低优先级的数据一直得不到处理
+     * @return
+     */
+    public int[] getPriorityWeights(){
+        return options.getPriorityWeights();
     }
 
     /**
@@ -163,6 +317,28 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
         log.info(getName()+"\t"+"onMessage('"+id+"')");
     }
 
+    /**
+     * 是否合并批量投递消息的通知，开启后push(List)每批数据只发布一条通知，由onMessages(消息id集合)接收
+     * 默认关闭，每条消息单独发布一条通知，由onMessage(消息id)接收
+     * @return
+     */
+    public boolean isCoalesceNotify(){
+        return options.isCoalesceNotify();
+    }
+
+    /**
+     * 当队列中批量投递了消息并且开启了合并通知时，触发这个方法，默认逐条调用onMessage(消息id)
+     * 子类可以通过重写这个方法来实现对一批消息的处理
+     * @author Marsh
+     * @date 2022-06-21
+     * @param ids
+     */
+    public void onMessages(List<String> ids){
+        for (String id : ids){
+            onMessage(id);
+        }
+    }
+
     /**
      * 当消息重试次数达到最大被放入到失败队列时，这个方法会被触发
      * @author Marsh
@@ -173,6 +349,17 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
         log.info(getName()+"\t"+"onError('"+id+"')");
     }
 
+    /**
+     * 当前节点收到的超时时间变化通知次数(包括本节点和其他节点发布的)，每次通知都会让节点重新设置超时清理定时器
+     * 统计的是收到的通知，不是少发布的通知，可以对比同样的操作量下这个值的增长来观察各节点的通知频率
+     * @author Marsh
+     * @date 2022-06-24
+     * @return long
+     */
+    public long getReceivedTimeoutNotifyCount(){
+        return messageSignal.timeoutNotifyCount.get();
+    }
+
     /**
      * 定时处理超时的任务
      * @author Marsh
@@ -185,6 +372,12 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
         }
         QueueTransferTask.TimeoutTask oldTimeout = lastTimeout.get();
         if (oldTimeout != null) {
+            // 保留更早触发的定时器，到期清理后会按nextWake()重新设置，
+            // 避免pop或touch发布的处理超时时间覆盖掉更早的延迟重试唤醒时间
+            if (oldTimeout.getStartTime() <= startTime && !oldTimeout.getTask().isExpired()
+                    && !oldTimeout.getTask().isCancelled()) {
+                return;
+            }
             oldTimeout.getTask().cancel();
         }
 
@@ -215,7 +408,7 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
      * @date 2022-06-14
      */
     private void cleanTimeout() {
-        RFuture<Long> startTimeFuture = cleanTimeoutAsync();
+        RFuture<List<Long>> startTimeFuture = cleanTimeoutAsync();
         startTimeFuture.onComplete((res, e) -> {
             if (e != null) {
                 if (e instanceof RedissonShutdownException) {
@@ -225,61 +418,269 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
                 scheduleTimeoutTask(System.currentTimeMillis() + 5 * 1000L);
                 return;
             }
-            if (res != null) {
-                scheduleTimeoutTask(res);
+            if (res.get(1) > 0) {
+                metrics.recordRedelivered(getName(), res.get(1));
+            }
+            if (res.get(2) > 0) {
+                metrics.recordDeadLettered(getName(), res.get(2));
+            }
+            if (res.get(0) != null) {
+                scheduleTimeoutTask(res.get(0));
             }
         });
     }
 
+    /**
+     * 生成一个查找消息所在优先级队列的lua函数 lane(消息id)
+     * @param priorityKey 优先级表在KEYS中的下标，优先级p的队列在KEYS中的下标为 priorityKey + p
+     * @param defaultLaneKey 优先级0的队列在KEYS中的下标
+     */
+    private static String laneLua(int priorityKey, int defaultLaneKey){
+        return "local function lane(v) " +
+                    "local p = redis.call('HGET', KEYS[" + priorityKey + "], v); " +
+                    "if p ~= false and tonumber(p) > 0 and KEYS[" + priorityKey + " + tonumber(p)] ~= nil then " +
+                        "return KEYS[" + priorityKey + " + tonumber(p)]; " +
+                    "end; " +
+                    "return KEYS[" + defaultLaneKey + "]; " +
+                "end; ";
+    }
+
+    /**
+     * 生成一个重新投递消息的lua函数 requeue(消息id)，依赖lane(消息id)函数
+     * 重试次数+1，未开启退避重试时直接放回原来的优先级队列并通知，开启时放到延迟重试队列并返回重试时间
+     * @param retryKey 重试次数表在KEYS中的下标
+     * @param delayKey 延迟重试队列在KEYS中的下标
+     * @param channelKey 通知通道在KEYS中的下标
+     * @param backoffArgv 退避参数在ARGV中的起始下标，依次为 初始延迟,倍数,最大延迟,抖动比例,随机数种子
+     */
+    private static String requeueLua(int retryKey, int delayKey, int channelKey, int backoffArgv){
+        return "math.randomseed(tonumber(ARGV[" + (backoffArgv + 4) + "])); " +
+                "local function requeue(v) " +
+                    "local retry = redis.call('HINCRBY', KEYS[" + retryKey + "], v, 1); " +
+                    "local base = tonumber(ARGV[" + backoffArgv + "]); " +
+                    "if base > 0 then " +
+                        "local delay = math.min(base * math.pow(tonumber(ARGV[" + (backoffArgv + 1) + "]), retry - 1), tonumber(ARGV[" + (backoffArgv + 2) + "])); " +
+                        "delay = math.floor(delay * (1 + tonumber(ARGV[" + (backoffArgv + 3) + "]) * (2 * math.random() - 1))); " +
+                        "local due = tonumber(ARGV[1]) + delay; " +
+                        "redis.call('ZADD', KEYS[" + delayKey + "], due, v); " +
+                        "return due; " +
+                    "end; " +
+                    "redis.call('LPUSH', lane(v), v); " +
+                    "redis.call('publish', KEYS[" + channelKey + "], '" + CMD_MESSAGE + "'..':'..v); " +
+                    "return nil; " +
+                "end; ";
+    }
+
+    /**
+     * 生成一个计算下次需要清理的时间的lua函数 nextWake()，取超时队列和延迟重试队列中最早的时间
+     * @param timeoutKey 超时队列在KEYS中的下标
+     * @param delayKey 延迟重试队列在KEYS中的下标
+     */
+    private static String nextWakeLua(int timeoutKey, int delayKey){
+        return "local function nextWake() " +
+                    "local t = redis.call('zrange', KEYS[" + timeoutKey + "], 0, 0, 'WITHSCORES'); " +
+                    "local d = redis.call('zrange', KEYS[" + delayKey + "], 0, 0, 'WITHSCORES'); " +
+                    "if t[1] == nil and d[1] == nil then " +
+                        "return nil; " +
+                    "end; " +
+                    "if t[1] == nil then " +
+                        "return tonumber(d[2]); " +
+                    "end; " +
+                    "if d[1] == nil then " +
+                        "return tonumber(t[2]); " +
+                    "end; " +
+                    "return math.min(tonumber(t[2]), tonumber(d[2])); " +
+                "end; ";
+    }
+
+    /**
+     * 退避重试的参数，与requeueLua()的backoffArgv对应
+     */
+    private List<Object> backoffParams(){
+        return Arrays.<Object>asList(getRetryBackoffMs(), getRetryBackoffMultiplier(), getRetryBackoffMaxMs(),
+                getRetryBackoffJitter(), ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
+    }
+
+    /**
+     * 在基础的key后面追加优先级1及以上的队列key
+     */
+    private List<Object> keysWithLanes(Object... keys){
+        List<Object> result = new ArrayList<>(Arrays.asList(keys));
+        result.addAll(laneNames.subList(1, laneNames.size()));
+        return result;
+    }
+
     /**
      * 用来进行清理超时的lua脚本
+     * 同时会把延迟重试队列中到达重试时间的消息放回数据队列，返回下次需要清理的时间
      */
     private static final String CLEAN_TIMEOUT_LUA =
+            laneLua(8, 2) +
+            requeueLua(3, 7, 5, 6) +
+            nextWakeLua(1, 7) +
+            // 开启了超时清理租约时，只有持有租约的节点进行清理，其他节点等到租约过期后再来尝试获取租约
+            "local leaseMs = tonumber(ARGV[4]); " +
+            "if leaseMs > 0 then " +
+                "local owner = redis.call('get', KEYS[6]); " +
+                "if owner ~= false and owner ~= ARGV[5] then " +
+                    "local wake = nextWake(); " +
+                    "if wake == nil then " +
+                        "return {false, 0, 0}; " +
+                    "end; " +
+                    "return {math.max(wake, tonumber(ARGV[1]) + redis.call('pttl', KEYS[6])), 0, 0}; " +
+                "end; " +
+                "redis.call('set', KEYS[6], ARGV[5], 'px', leaseMs); " +
+            "end; " +
+            // 到达重试时间的消息放回原来的优先级队列
+            "local dueValues = redis.call('zrangebyscore', KEYS[7], 0, ARGV[1], 'limit', 0, ARGV[2]); " +
+            "if #dueValues > 0 then " +
+                "for i, v in ipairs(dueValues) do " +
+                    "redis.call('LPUSH',lane(v),v); " +
+                    "redis.call('publish', KEYS[5], '"+CMD_MESSAGE+"'..':'..v); " +
+                "end; " +
+                "redis.call('zrem', KEYS[7], unpack(dueValues));" +
+            "end; " +
+            "local requeued = 0; " +
+            "local dead = 0; " +
             "local expiredValues = redis.call('zrangebyscore', KEYS[1], 0, ARGV[1], 'limit', 0, ARGV[2]); " +
             "if #expiredValues > 0 then " +
                 "local maxRetry = tonumber(ARGV[3]); " +
                 "for i, v in ipairs(expiredValues) do " +
                     "if maxRetry < 0 then " +
-                        "redis.call('LPUSH',KEYS[2],v); " +
-                        "redis.call('publish', KEYS[5], '"+CMD_MESSAGE+"'..':'..v); " +
-                        "redis.call('HINCRBY', KEYS[3], v, 1);" +
+                        "requeue(v); " +
+                        "requeued = requeued + 1; " +
                     "elseif maxRetry == 0 then " +
                         "redis.call('ZADD',KEYS[4],ARGV[1],v);" +
                         "redis.call('publish', KEYS[5], '"+CMD_ERROR+"'..':'..v); " +
+                        "dead = dead + 1; " +
                     "else " +
                         "local retry = redis.call('HGET', KEYS[3], v);" +
                         "if retry ~= false and tonumber(retry) >= maxRetry then " +
                             "redis.call('ZADD',KEYS[4],ARGV[1],v); " +
                             "redis.call('publish', KEYS[5], '"+CMD_ERROR+"'..':'..v); " +
+                            "dead = dead + 1; " +
                         "else " +
-                            "redis.call('LPUSH',KEYS[2],v); " +
-                            "redis.call('publish', KEYS[5], '"+CMD_MESSAGE+"'..':'..v); " +
-                            "redis.call('HINCRBY', KEYS[3], v, 1);" +
+                            "requeue(v); " +
+                            "requeued = requeued + 1; " +
                         "end " +
                     "end; " +
                 "end; " +
                 "redis.call('zrem', KEYS[1], unpack(expiredValues));" +
-                // 查询一个最新的过期任务,主要用来更新超时任务时间
-                "local v = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES'); " +
-                "if v[1] ~= nil then " +
-                    "return v[2]; " +
-                "end " +
             "end " +
-            "return nil;";
+            // 查询一个最新的过期任务,主要用来更新超时任务时间
+            // ps:ack不再通知超时时间变化，这里即使没有清理到超时数据也要返回最新的超时时间，让各节点的定时器跟上最新的超时时间
+            // 同时返回本次重新投递和放入失败队列的数量用于指标统计
+            "return {nextWake() or false, requeued, dead};";
 
     /**
      * 清理超时任务异步方法
      * @author Marsh
      * @date 2022-06-14
-     * @return org.redisson.api.RFuture<java.lang.Long>
+     * @return org.redisson.api.RFuture<java.util.List<java.lang.Long>> {下次需要清理的时间,重新投递的数量,放入失败队列的数量}
      */
-    private RFuture<Long> cleanTimeoutAsync() {
-        return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LONG,
+    private RFuture<List<Long>> cleanTimeoutAsync() {
+        List<Object> params = new ArrayList<>(Arrays.<Object>asList(System.currentTimeMillis(), 100, getRetryNumber(),
+                getTimeoutLeaseMs(), leaseOwnerId));
+        params.addAll(backoffParams());
+        return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LIST,
                 CLEAN_TIMEOUT_LUA,
-                Arrays.<Object>asList(timeoutQueueName,queueName,retryName,errorName,channelName),
-                System.currentTimeMillis(),100,getRetryNumber());
+                keysWithLanes(timeoutQueueName,queueName,retryName,errorName,channelName,timeoutLeaseName,retryDelayName,priorityName),
+                params.toArray());
+    }
+
+
+    /**
+     * 是否统计消息的排队时间(push到pop)和处理时间(pop到ack)，默认false
+     * 开启后每条消息会在时间表中多占用一个字段，统计结果通过RAckQueueMetrics#recordLatency()输出
+     * ps:超时或回滚后重新投递的消息，排队时间从上一次取出的时间开始计算
+     * @return
+     */
+    public boolean isLatencyTracking(){
+        return options.isLatencyTracking();
+    }
+
+    /**
+     * 当前时间戳，未开启isLatencyTracking()时为"0"，作为lua脚本的参数使用
+     */
+    private String latencyNow(){
+        return isLatencyTracking() ? String.valueOf(System.currentTimeMillis()) : "0";
+    }
+
+    /**
+     * 开启isLatencyTracking()时lua脚本返回的消息id带有 |耗时毫秒数 后缀，这里去掉后缀并记录耗时
+     */
+    private String stripLatency(String id, String stage){
+        int index = id.lastIndexOf(LATENCY_SEPARATOR);
+        if (index < 0){
+            return id;
+        }
+        metrics.recordLatency(getName(), stage, Long.parseLong(id.substring(index + 1)));
+        return id.substring(0, index);
+    }
+
+    private List<String> stripLatency(List<String> ids, String stage){
+        if (!isLatencyTracking() || ids == null){
+            return ids;
+        }
+        List<String> results = new ArrayList<>(ids.size());
+        for (String id : ids){
+            results.add(stripLatency(id, stage));
+        }
+        return results;
+    }
+
+    /**
+     * 是否使用紧凑的消息id，默认false使用36位的UUID
+     * 开启后消息id在放置数据的lua脚本中通过INCRBY分配，使用36进制字符串表示，长度一般不超过8位，
+     * 可以明显减少数据队列、数据表、超时队列、重试次数表和通知消息中的内存占用
+     * ps:同一个队列的所有节点需要使用相同的配置，切换前后的消息id可以共存
+     * @return
+     */
+    public boolean isCompactId(){
+        return options.isCompactId();
     }
 
+    /**
+     * 生成36进制字符串的lua函数 base36(数字)
+     */
+    private static final String BASE36_LUA =
+            "local function base36(n) " +
+                "local s = ''; " +
+                "repeat " +
+                    "local d = n % 36; " +
+                    "s = string.sub('0123456789abcdefghijklmnopqrstuvwxyz', d + 1, d + 1) .. s; " +
+                    "n = math.floor(n / 36); " +
+                "until n == 0; " +
+                "return s; " +
+            "end; ";
+
+    /**
+     * 使用紧凑消息id批量放置数据的lua脚本，返回分配的消息id
+     */
+    private static final String PUSH_COMPACT_LUA =
+            BASE36_LUA +
+            "local count = #ARGV - 3; " +
+            "local first = redis.call('INCRBY', KEYS[1], count) - count + 1; " +
+            "local ids = {}; " +
+            "for i = 1, count, 1 do " +
+                "local id = base36(first + i - 1); " +
+                "redis.call('HSET', KEYS[2], id, ARGV[i + 3]); " +
+                "if ARGV[3] ~= '0' then " +
+                    "redis.call('HSET', KEYS[6], id, ARGV[3]); " +
+                "end; " +
+                "if tonumber(ARGV[1]) > 0 then " +
+                    "redis.call('HSET', KEYS[5], id, ARGV[1]); " +
+                "end; " +
+                "redis.call('LPUSH', KEYS[3], id); " +
+                "if ARGV[2] == '0' then " +
+                    "redis.call('publish', KEYS[4], '"+CMD_MESSAGE+"'..':'..id); " +
+                "end; " +
+                "table.insert(ids, id); " +
+            "end; " +
+            "if ARGV[2] == '1' then " +
+                "redis.call('publish', KEYS[4], '"+CMD_MESSAGES+"'..':'..table.concat(ids, ',')); " +
+            "end; " +
+            "return ids;";
 
     /**
      * 批量给队列放置数据 （数据放置到队列头）
@@ -289,24 +690,91 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
      * @return List<String> 返回保存到队列中的消息id
      */
     public List<String> push(List<V> datas) {
+        return push(datas, 0);
+    }
+
+    /**
+     * 批量给指定优先级的队列放置数据 （数据放置到队列头）
+     * @author Marsh
+     * @date 2022-06-29
+     * @param datas
+     * @param priority 优先级，取值范围 0 ~ getPriorityLevels()-1，数值越大越优先被取出
+     * @return List<String> 返回保存到队列中的消息id
+     */
+    public List<String> push(List<V> datas, int priority) {
+        if (datas == null || datas.size() == 0){
+            return new ArrayList<>();
+        }
+        return get(pushAsync(datas, priority));
+    }
+
+    /**
+     * 批量给指定优先级的队列放置数据(异步)
+     * @author Marsh
+     * @date 2022-07-05
+     * @param datas
+     * @param priority 优先级，取值范围 0 ~ getPriorityLevels()-1，数值越大越优先被取出
+     * @return org.redisson.api.RFuture<java.util.List<java.lang.String>> 保存到队列中的消息id
+     */
+    public RFuture<List<String>> pushAsync(List<V> datas, int priority) {
+        long start = System.nanoTime();
         List<String> result = new ArrayList<>();
         if (datas == null || datas.size() == 0){
-            return result;
+            return RedissonPromise.newSucceededFuture(result);
+        }
+        if (priority < 0 || priority >= laneNames.size()){
+            throw new IllegalArgumentException("优先级超出范围:" + priority);
+        }
+        if (isCompactId()){
+            List<Object> params = new ArrayList<>();
+            params.add(priority);
+            params.add(isCoalesceNotify() ? "1" : "0");
+            params.add(latencyNow());
+            for (V data : datas){
+                params.add(encodeMapValue(data));
+            }
+            return observe(commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE, RedisCommands.EVAL_LIST,
+                    PUSH_COMPACT_LUA,
+                    Arrays.<Object>asList(idSeqName, dataHashName, laneNames.get(priority), channelName, priorityName, timeName),
+                    params.toArray()), RAckQueueMetrics.OP_PUSH, start);
         }
         RBatch batch = redisson.createBatch(defaultBatchOptions);
         RTopicAsync topic = batch.getTopic(channelName,StringCodec.INSTANCE);
         RMapAsync<String, V> map = batch.getMap(dataHashName, codec);
-        RDequeAsync<String> deque = batch.getDeque(queueName, StringCodec.INSTANCE);
+        RDequeAsync<String> deque = batch.getDeque(laneNames.get(priority), StringCodec.INSTANCE);
+        RMapAsync<String, String> priorityMap = batch.getMap(priorityName, StringCodec.INSTANCE);
+        RMapAsync<String, String> timeMap = batch.getMap(timeName, StringCodec.INSTANCE);
 
+        boolean coalesceNotify = isCoalesceNotify();
+        String now = latencyNow();
         for (V data : datas){
             String msgId = IdUtil.fastUUID();
             result.add(msgId);
             map.putAsync(msgId,data);
+            if (!"0".equals(now)){
+                timeMap.fastPutAsync(msgId, now);
+            }
+            if (priority > 0){
+                priorityMap.fastPutAsync(msgId, String.valueOf(priority));
+            }
             deque.addFirstAsync(msgId);
-            topic.publishAsync(CMD_MESSAGE+":"+msgId);
+            if (!coalesceNotify){
+                topic.publishAsync(CMD_MESSAGE+":"+msgId);
+            }
         }
-        batch.execute();
-        return result;
+        if (coalesceNotify){
+            // 整批数据只发布一条通知
+            topic.publishAsync(CMD_MESSAGES+":"+String.join(",", result));
+        }
+        RPromise<List<String>> promise = new RedissonPromise<>();
+        batch.executeAsync().onComplete((res, e) -> {
+            if (e != null){
+                promise.tryFailure(e);
+                return;
+            }
+            promise.trySuccess(result);
+        });
+        return observe(promise, RAckQueueMetrics.OP_PUSH, start);
     }
 
     /**
@@ -324,20 +792,140 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
         return result != null && result.size() > 0 ? result.get(0):"";
     }
 
+    /**
+     * 给指定优先级的队列中放置一个数据（数据放置到队列头）
+     * @author Marsh
+     * @date 2022-06-29
+     * @param data
+     * @param priority 优先级，取值范围 0 ~ getPriorityLevels()-1，数值越大越优先被取出
+     * @return java.lang.String
+     */
+    public String push(V data, int priority) {
+        if (data == null){
+            return "";
+        }
+        List<String> result = push(ListUtil.toList(data), priority);
+        return result != null && result.size() > 0 ? result.get(0):"";
+    }
+
+    /**
+     * 按照业务key去重放置数据的lua脚本，去重窗口内重复的业务key直接返回已经存在的消息id
+     */
+    private static final String PUSH_IF_ABSENT_LUA =
+            BASE36_LUA +
+            "local existing = redis.call('get', KEYS[1]); " +
+            "if existing ~= false then " +
+                "return existing; " +
+            "end; " +
+            // 没有传入消息id时使用紧凑消息id
+            "local id = ARGV[1]; " +
+            "if id == '' then " +
+                "id = base36(redis.call('INCR', KEYS[6])); " +
+            "end; " +
+            "redis.call('set', KEYS[1], id, 'px', ARGV[2]); " +
+            "redis.call('hset', KEYS[2], id, ARGV[3]); " +
+            "if ARGV[5] ~= '0' then " +
+                "redis.call('hset', KEYS[7], id, ARGV[5]); " +
+            "end; " +
+            "if tonumber(ARGV[4]) > 0 then " +
+                "redis.call('hset', KEYS[5], id, ARGV[4]); " +
+            "end; " +
+            "redis.call('lpush', KEYS[3], id); " +
+            // 和pushAsync一样，开启合并通知时使用批量通知的格式
+            "if ARGV[6] == '1' then " +
+                "redis.call('publish', KEYS[4], '"+CMD_MESSAGES+"'..':'..id); " +
+            "else " +
+                "redis.call('publish', KEYS[4], '"+CMD_MESSAGE+"'..':'..id); " +
+            "end; " +
+            "return id;";
+
+    /**
+     * 按照业务key去重给队列中放置一个数据（数据放置到队列头）
+     * 去重窗口内同一个业务key只会放置一次，生产者重试时不会产生重复消息
+     * @author Marsh
+     * @date 2022-07-01
+     * @param key 业务key
+     * @param data
+     * @param window 去重窗口
+     * @return java.lang.String 新放置的消息id，业务key重复时返回已经存在的消息id
+     */
+    public String pushIfAbsent(String key, V data, Duration window) {
+        return pushIfAbsent(key, data, window, 0);
+    }
+
+    /**
+     * 按照业务key去重给指定优先级的队列中放置一个数据（数据放置到队列头）
+     * @author Marsh
+     * @date 2022-07-01
+     * @param key 业务key
+     * @param data
+     * @param window 去重窗口
+     * @param priority 优先级，取值范围 0 ~ getPriorityLevels()-1，数值越大越优先被取出
+     * @return java.lang.String 新放置的消息id，业务key重复时返回已经存在的消息id
+     */
+    public String pushIfAbsent(String key, V data, Duration window, int priority) {
+        return get(pushIfAbsentAsync(key, data, window, priority));
+    }
+
+    /**
+     * 按照业务key去重给指定优先级的队列中放置一个数据(异步)
+     * @author Marsh
+     * @date 2022-07-01
+     * @param key 业务key
+     * @param data
+     * @param window 去重窗口
+     * @param priority 优先级，取值范围 0 ~ getPriorityLevels()-1，数值越大越优先被取出
+     * @return org.redisson.api.RFuture<java.lang.String>
+     */
+    public RFuture<String> pushIfAbsentAsync(String key, V data, Duration window, int priority) {
+        if (StrUtil.isBlank(key)){
+            throw new IllegalArgumentException("业务key不能为空");
+        }
+        if (data == null){
+            throw new IllegalArgumentException("数据不能为空");
+        }
+        if (window == null || window.toMillis() <= 0){
+            throw new IllegalArgumentException("去重窗口必须大于0毫秒:" + window);
+        }
+        if (priority < 0 || priority >= laneNames.size()){
+            throw new IllegalArgumentException("优先级超出范围:" + priority);
+        }
+        long start = System.nanoTime();
+        return observeOne(commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE, RedisCommands.EVAL_OBJECT,
+                PUSH_IF_ABSENT_LUA,
+                Arrays.<Object>asList(suffixName(queueName, "dedupe:" + key), dataHashName, laneNames.get(priority), channelName, priorityName, idSeqName, timeName),
+                isCompactId() ? "" : IdUtil.fastUUID(), window.toMillis(), encodeMapValue(data), priority, latencyNow(),
+                isCoalesceNotify() ? "1" : "0"), RAckQueueMetrics.OP_PUSH, start);
+    }
+
     /**
      * 通过消息id弹出数据的lua脚本
+     * 和POP_LUA一样返回 消息id,消息数据，开启耗时统计时消息id后面带上排队时间
      */
     private static final String POP_ID_LUA =
-            "local flag = redis.call('LREM',KEYS[2],-1,ARGV[2]);" +
+            laneLua(6, 2) +
+            "local flag = redis.call('LREM',lane(ARGV[2]),-1,ARGV[2]);" +
             "if flag > 0 then " +
                 "redis.call('ZADD',KEYS[1],ARGV[1],ARGV[2]);" +
+                "local r = ARGV[2]; " +
+                "if ARGV[3] ~= '0' then " +
+                    "local t = redis.call('HGET',KEYS[5],ARGV[2]); " +
+                    "if t ~= false then " +
+                        "r = ARGV[2] .. '"+LATENCY_SEPARATOR+"' .. (tonumber(ARGV[3]) - tonumber(t)); " +
+                    "end; " +
+                    "redis.call('HSET',KEYS[5],ARGV[2],ARGV[3]);" +
+                "end; " +
+                // 只有这个消息的超时时间成为最早的超时时间时才通知各节点
                 "local timeout = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES'); " +
-                "if timeout[1] ~= nil then " +
+                "if timeout[1] ~= nil and tonumber(ARGV[1]) <= tonumber(timeout[2]) then " +
                     "redis.call('publish', KEYS[4], '"+CMD_TIMEOUT+"'..':'..timeout[2]); " +
                 "end; " +
-                "return redis.call('HGET',KEYS[3],ARGV[2]);" +
+                "local d = redis.call('HGET',KEYS[3],ARGV[2]);" +
+                "if d ~= false then " +
+                    "return {r, d};" +
+                "end; " +
             "end;" +
-            "return nil;";
+            "return {};";
     /**
      * 直接通过消息id弹出数据
      * @author Marsh
@@ -349,17 +937,31 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
         if (StrUtil.isBlank(id)){
             return null;
         }
-        RScript script = redisson.getScript(getCodec());
-        V result = script.eval(RScript.Mode.READ_WRITE, POP_ID_LUA, RScript.ReturnType.VALUE,
-                Arrays.asList(timeoutQueueName,queueName,dataHashName,channelName),
-                System.currentTimeMillis()+getExecutionTimeoutMs(),id);
-        if (result == null){
-            return null;
-        }
-        RAckQueueData<V> data = new RAckQueueData<>();
-        data.setData(result);
-        data.setId(id);
-        return data;
+        long start = System.nanoTime();
+        RPromise<List<RAckQueueData<V>>> result = new RedissonPromise<>();
+        RFuture<Map<String, V>> future = commandExecutor.evalWriteAsync(getName(), popCodec, RedisCommands.EVAL_MAP,
+                POP_ID_LUA,
+                keysWithLanes(timeoutQueueName,queueName,dataHashName,channelName,timeName,priorityName),
+                System.currentTimeMillis()+getExecutionTimeoutMs(),id,latencyNow());
+        future.onComplete((datas, e) -> {
+            if (e != null) {
+                result.tryFailure(e);
+                return;
+            }
+            List<RAckQueueData<V>> results = new ArrayList<>();
+            if (datas != null){
+                // 和popAsync一样通过消息id后面带的排队时间记录等待耗时
+                datas.forEach((key, v) -> {
+                    RAckQueueData<V> data = new RAckQueueData<>();
+                    data.setId(stripLatency(key, RAckQueueMetrics.STAGE_WAIT));
+                    data.setData(v);
+                    results.add(data);
+                });
+            }
+            result.trySuccess(results);
+        });
+        List<RAckQueueData<V>> results = get(observe(result, RAckQueueMetrics.OP_POP, start));
+        return results.isEmpty() ? null : results.get(0);
     }
 
     /**
@@ -375,31 +977,82 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
 
     /**
      * 批量取出数据的lua脚本
+     * KEYS[4]开始是按照取出顺序排列的各个优先级队列，前面的队列取空后才会从后面的队列取数据
+     * 按照队列顺序返回 消息id,消息数据,消息id,消息数据... 这样的数据，一次请求同时取出消息id和消息数据
      */
     private static final String POP_LUA =
-            "local i = 1; " +
             "local res = {}; " +
+            "local popped = 0; " +
             "local size = tonumber(ARGV[2]); " +
-            "while i <= size do " +
-                "local v = redis.call('RPOP',KEYS[1]); " +
-                "if v == false then " +
-                    "if #res > 0 then " +
-                        "local timeout = redis.call('zrange', KEYS[2], 0, 0, 'WITHSCORES'); " +
-                        "if timeout[1] ~= nil and tonumber(ARGV[1]) <= tonumber(timeout[2]) then " +
-                            "redis.call('publish', KEYS[3], '"+CMD_TIMEOUT+"'..':'..timeout[2]); " +
+            "for k = 5, #KEYS do " +
+                "while popped < size do " +
+                    "local v = redis.call('RPOP',KEYS[k]); " +
+                    "if v == false then " +
+                        "break; " +
+                    "end; " +
+                    "redis.call('ZADD',KEYS[1],ARGV[1],v); " +
+                    "popped = popped + 1; " +
+                    "local d = redis.call('HGET',KEYS[3],v); " +
+                    "if d ~= false then " +
+                        "local r = v; " +
+                        // 开启耗时统计时记录取出时间，并在返回的消息id后面带上排队时间
+                        "if ARGV[3] ~= '0' then " +
+                            "local t = redis.call('HGET',KEYS[4],v); " +
+                            "if t ~= false then " +
+                                "r = v .. '"+LATENCY_SEPARATOR+"' .. (tonumber(ARGV[3]) - tonumber(t)); " +
+                            "end; " +
+                            "redis.call('HSET',KEYS[4],v,ARGV[3]); " +
                         "end; " +
+                        "table.insert(res, r); " +
+                        "table.insert(res, d); " +
                     "end; " +
-                    "return res; " +
                 "end; " +
-                "redis.call('ZADD',KEYS[2],ARGV[1],v); " +
-                "table.insert(res, v);" +
-                "i = i + 1; " +
+                "if popped >= size then " +
+                    "break; " +
+                "end; " +
             "end; " +
-            "local timeout = redis.call('zrange', KEYS[2], 0, 0, 'WITHSCORES'); " +
-            "if timeout[1] ~= nil and tonumber(ARGV[1]) <= tonumber(timeout[2]) then " +
-                "redis.call('publish', KEYS[3], '"+CMD_TIMEOUT+"'..':'..timeout[2]); " +
+            "if popped > 0 then " +
+                "local timeout = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES'); " +
+                "if timeout[1] ~= nil and tonumber(ARGV[1]) <= tonumber(timeout[2]) then " +
+                    "redis.call('publish', KEYS[2], '"+CMD_TIMEOUT+"'..':'..timeout[2]); " +
+                "end; " +
             "end; " +
             "return res; ";
+
+    /**
+     * 计算本次pop各个优先级队列的取出顺序
+     * 默认从高优先级到低优先级，设置了getPriorityWeights()时先按照权重随机选出一个优先级队列排在最前面
+     */
+    private List<Object> popLaneKeys(){
+        int levels = laneNames.size();
+        int first = levels - 1;
+        int[] weights = getPriorityWeights();
+        if (weights != null && levels > 1){
+            int total = 0;
+            for (int p = 0; p < levels && p < weights.length; p++){
+                total += Math.max(weights[p], 0);
+            }
+            if (total > 0){
+                int r = ThreadLocalRandom.current().nextInt(total);
+                for (int p = 0; p < levels && p < weights.length; p++){
+                    r -= Math.max(weights[p], 0);
+                    if (r < 0){
+                        first = p;
+                        break;
+                    }
+                }
+            }
+        }
+        List<Object> lanes = new ArrayList<>(levels);
+        lanes.add(laneNames.get(first));
+        for (int p = levels - 1; p >= 0; p--){
+            if (p != first){
+                lanes.add(laneNames.get(p));
+            }
+        }
+        return lanes;
+    }
+
     /**
      * 批量取出数据
      * @author Marsh
@@ -408,35 +1061,211 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
      * @return java.util.List<V>
      */
     public List<RAckQueueData<V>> pop(int size){
-        RScript script = redisson.getScript(StringCodec.INSTANCE);
-        List<String> ids = script.eval(RScript.Mode.READ_WRITE, POP_LUA, RScript.ReturnType.MULTI,
-                Arrays.asList(queueName, timeoutQueueName,channelName),
-                System.currentTimeMillis()+getExecutionTimeoutMs(),size);
-        List<RAckQueueData<V>> results = new ArrayList<>();
-        if (ids != null && ids.size() > 0){
-            RMap<String, V> map1 = redisson.getMap(dataHashName, codec);
-            Set<String> query = new HashSet();
-            query.addAll(ids);
-            Map<String, V> datas = map1.getAll(query);
-            if (datas != null && datas.size() > 0){
-                datas.forEach((id,v) -> {
-                    RAckQueueData<V> data = new RAckQueueData();
-                    data.setId(id);
-                    data.setData(v);
-                    results.add(data);
-                });
-            }
-        }
-        return results;
+        return get(popAsync(size));
     }
 
     /**
-     * 确认消息已成功处理
+     * 批量取出数据并指定这批消息的处理超时时间，超过这个时间未ack的消息会重新投递
+     * 用来替代getExecutionTimeoutMs()设置的队列统一超时时间，处理时间较长的任务可以配合touch(消息id,超时时间)续期
+     * @author Marsh
+     * @date 2022-06-28
+     * @param size
+     * @param visibility 消息的处理超时时间
+     * @return java.util.List<com.marsh.framework.redisson.queue.RAckQueueData<V>>
+     */
+    public List<RAckQueueData<V>> pop(int size, Duration visibility){
+        return get(popAsync(size, visibility));
+    }
+
+    /**
+     * 批量取出数据(异步)
+     * 消息id和消息数据通过一次lua脚本调用取出，返回结果保持队列的先进先出顺序
+     * @author Marsh
+     * @date 2022-06-20
+     * @param size
+     * @return org.redisson.api.RFuture<java.util.List<com.marsh.framework.redisson.queue.RAckQueueData<V>>>
+     */
+    public RFuture<List<RAckQueueData<V>>> popAsync(int size){
+        return popAsync(size, Duration.ofMillis(getExecutionTimeoutMs()));
+    }
+
+    /**
+     * 批量取出数据并指定这批消息的处理超时时间(异步)
+     * @author Marsh
+     * @date 2022-06-28
+     * @param size
+     * @param visibility 消息的处理超时时间
+     * @return org.redisson.api.RFuture<java.util.List<com.marsh.framework.redisson.queue.RAckQueueData<V>>>
+     */
+    public RFuture<List<RAckQueueData<V>>> popAsync(int size, Duration visibility){
+        long start = System.nanoTime();
+        RPromise<List<RAckQueueData<V>>> result = new RedissonPromise<>();
+        List<Object> keys = new ArrayList<>(Arrays.<Object>asList(timeoutQueueName, channelName, dataHashName, timeName));
+        keys.addAll(popLaneKeys());
+        RFuture<Map<String, V>> future = commandExecutor.evalWriteAsync(getName(), popCodec, RedisCommands.EVAL_MAP,
+                POP_LUA, keys,
+                System.currentTimeMillis()+visibility.toMillis(), size, latencyNow());
+        future.onComplete((datas, e) -> {
+            if (e != null) {
+                result.tryFailure(e);
+                return;
+            }
+            List<RAckQueueData<V>> results = new ArrayList<>();
+            if (datas != null && datas.size() > 0){
+                datas.forEach((id,v) -> {
+                    RAckQueueData<V> data = new RAckQueueData<>();
+                    data.setId(stripLatency(id, RAckQueueMetrics.STAGE_WAIT));
+                    data.setData(v);
+                    results.add(data);
+                });
+            }
+            result.trySuccess(results);
+        });
+        return observe(result, RAckQueueMetrics.OP_POP, start);
+    }
+
+    /**
+     * 阻塞式批量取出数据，队列为空时不会轮询redis，而是挂起等待队列的新消息通知，直到取到数据或者等待超时
+     * @author Marsh
+     * @date 2022-06-20
+     * @param maxBatch 一次最多取出的数据条数
+     * @param maxWait 最长等待时间
+     * @return java.util.List<V> 等待超时仍没有数据时返回空集合
+     */
+    public List<RAckQueueData<V>> take(int maxBatch, Duration maxWait){
+        return get(takeAsync(maxBatch, maxWait));
+    }
+
+    /**
+     * 阻塞式批量取出数据(异步)
+     * @author Marsh
+     * @date 2022-06-20
+     * @param maxBatch 一次最多取出的数据条数
+     * @param maxWait 最长等待时间
+     * @return org.redisson.api.RFuture<java.util.List<com.marsh.framework.redisson.queue.RAckQueueData<V>>>
+     */
+    public RFuture<List<RAckQueueData<V>>> takeAsync(int maxBatch, Duration maxWait){
+        RPromise<List<RAckQueueData<V>>> result = new RedissonPromise<>();
+        takeAsync(maxBatch, System.currentTimeMillis() + maxWait.toMillis(), result);
+        return result;
+    }
+
+    private void takeAsync(int maxBatch, long deadline, RPromise<List<RAckQueueData<V>>> result){
+        if (result.isDone()) {
+            return;
+        }
+        // 先记录信号版本，防止在pop返回空到挂起等待之间到达的消息通知被遗漏
+        long version = messageSignal.version.get();
+        popAsync(maxBatch).onComplete((res, e) -> {
+            if (e != null) {
+                result.tryFailure(e);
+                return;
+            }
+            long delay = deadline - System.currentTimeMillis();
+            if (res.size() > 0 || delay <= 0) {
+                if (!result.trySuccess(res)) {
+                    // take已经被取消，取出的消息没有交给任何人，直接归还
+                    releaseTaken(res);
+                }
+                return;
+            }
+            if (result.isDone()) {
+                return;
+            }
+            TakeWaiter waiter = new TakeWaiter(maxBatch, deadline, result);
+            waiter.timeout = commandExecutor.getConnectionManager().newTimeout(waiter, delay, TimeUnit.MILLISECONDS);
+            messageSignal.waiters.add(waiter);
+            if (messageSignal.version.get() != version) {
+                messageSignal.waiters.remove(waiter);
+                waiter.run();
+            }
+        });
+    }
+
+    /**
+     * 取消一个还没有完成的take请求，挂起等待中的请求会立即移除，不会再从队列中取出消息
+     * 取消时已经在执行中的取出请求取到的消息会通过releaseAsync归还，不会增加重试次数
+     * @author Marsh
+     * @date 2022-07-09
+     * @param future takeAsync返回的结果
+     * @return boolean take请求已经完成时返回false
+     */
+    public boolean cancelTake(RFuture<List<RAckQueueData<V>>> future){
+        if (future == null || !future.cancel(false)) {
+            return false;
+        }
+        messageSignal.waiters.removeIf(waiter -> waiter instanceof RAckQueue.TakeWaiter
+                && ((RAckQueue.TakeWaiter) waiter).cancelIfResult(future));
+        return true;
+    }
+
+    private void releaseTaken(List<RAckQueueData<V>> datas){
+        if (datas == null || datas.isEmpty()) {
+            return;
+        }
+        List<String> ids = new ArrayList<>();
+        for (RAckQueueData<V> data : datas){
+            ids.add(data.getId());
+        }
+        releaseAsync(ids).onComplete((res, e) -> {
+            if (e != null) {
+                log.error(e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * 消息续期的lua脚本，仅对还在处理中的消息生效
+     */
+    private static final String TOUCH_LUA =
+            "if redis.call('ZSCORE',KEYS[1],ARGV[2]) == false then " +
+                "return 0; " +
+            "end; " +
+            "redis.call('ZADD',KEYS[1],ARGV[1],ARGV[2]); " +
+            "local timeout = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES'); " +
+            "if tonumber(ARGV[1]) <= tonumber(timeout[2]) then " +
+                "redis.call('publish', KEYS[2], '"+CMD_TIMEOUT+"'..':'..timeout[2]); " +
+            "end; " +
+            "return 1;";
+
+    /**
+     * 给处理中的消息续期，消息的超时时间重新设置为当前时间+visibility
+     * 长时间运行的任务可以定时调用这个方法作为心跳，防止任务还在执行时被重新投递
+     * @author Marsh
+     * @date 2022-06-28
+     * @param id
+     * @param visibility 从现在开始计算的处理超时时间
+     * @return boolean 消息已不在处理中(已ack或者已超时重新投递)时返回false
+     */
+    public boolean touch(String id, Duration visibility){
+        return get(touchAsync(id, visibility));
+    }
+
+    /**
+     * 给处理中的消息续期(异步)
+     * @author Marsh
+     * @date 2022-06-28
+     * @param id
+     * @param visibility 从现在开始计算的处理超时时间
+     * @return org.redisson.api.RFuture<java.lang.Boolean>
+     */
+    public RFuture<Boolean> touchAsync(String id, Duration visibility){
+        return commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE, RedisCommands.EVAL_BOOLEAN,
+                TOUCH_LUA,
+                Arrays.<Object>asList(timeoutQueueName, channelName),
+                System.currentTimeMillis()+visibility.toMillis(), id);
+    }
+
+    /**
+     * 确认消息已成功处理
      * @author Marsh
      * @date 2022-06-15
      * @param id
      */
     public boolean ack(String id){
+        if (getAckBatchSize() > 0){
+            return Boolean.TRUE.equals(get(ackAsync(id)));
+        }
         List<String> ids = new ArrayList<>();
         ids.add(id);
         List<String> results = ack(ids);
@@ -444,22 +1273,85 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
     }
 
     /**
-     * 回滚数据的lua脚本
+     * 确认消息已成功处理(异步)
+     * 开启了ack合并(getAckBatchSize() > 0)时，消息id会先放到合并器中，按数量或时间批量提交
+     * @author Marsh
+     * @date 2022-06-23
+     * @param id
+     * @return org.redisson.api.RFuture<java.lang.Boolean>
+     */
+    public RFuture<Boolean> ackAsync(String id){
+        AckBatcher batcher = getAckBatcher();
+        if (batcher != null){
+            return batcher.add(id);
+        }
+        RPromise<Boolean> result = new RedissonPromise<>();
+        ackAsync(ListUtil.toList(id)).onComplete((res, e) -> {
+            if (e != null) {
+                result.tryFailure(e);
+                return;
+            }
+            result.trySuccess(res != null && res.size() > 0);
+        });
+        return result;
+    }
+
+    /**
+     * 合并ack时一批最多包含的消息数量，默认0不开启合并
+     * 开启后多个线程的ack(消息id)会合并成一次ack(消息id集合)调用，减少redis脚本执行次数
+     * @return
+     */
+    public int getAckBatchSize(){
+        return options.getAckBatchSize();
+    }
+
+    /**
+     * 合并ack时最长等待的毫秒数，超过这个时间即使数量未达到getAckBatchSize()也会提交
+     * @return
+     */
+    public long getAckBatchIntervalMs(){
+        return options.getAckBatchIntervalMs();
+    }
+
+    private AckBatcher getAckBatcher(){
+        if (getAckBatchSize() <= 0){
+            return null;
+        }
+        if (ackBatcher == null){
+            synchronized (this){
+                if (ackBatcher == null){
+                    ackBatcher = new AckBatcher(this, commandExecutor.getConnectionManager(),
+                            getAckBatchSize(), getAckBatchIntervalMs());
+                }
+            }
+        }
+        return ackBatcher;
+    }
+
+    /**
+     * 确认数据的lua脚本
+     * ps:ack只会让最早的超时时间变晚，不需要通知各节点，各节点的定时器提前触发时会通过cleanTimeout()读取到最新的超时时间
      */
     private static final String ACK_LUA =
             "local results = {};" +
-            "for i = 1, #ARGV, 1 do " +
+            "for i = 2, #ARGV, 1 do " +
                 "local flag = redis.call('ZREM',KEYS[1],ARGV[i]);" +
                 "if flag > 0 then " +
                     "redis.call('HDEL',KEYS[2],ARGV[i]);" +
                     "redis.call('HDEL',KEYS[3],ARGV[i]);" +
-                    "table.insert(results, ARGV[i]);" +
+                    "redis.call('HDEL',KEYS[4],ARGV[i]);" +
+                    "local r = ARGV[i]; " +
+                    // 开启耗时统计时在返回的消息id后面带上处理时间
+                    "if ARGV[1] ~= '0' then " +
+                        "local t = redis.call('HGET',KEYS[5],ARGV[i]); " +
+                        "if t ~= false then " +
+                            "r = r .. '"+LATENCY_SEPARATOR+"' .. (tonumber(ARGV[1]) - tonumber(t)); " +
+                        "end; " +
+                    "end; " +
+                    "redis.call('HDEL',KEYS[5],ARGV[i]);" +
+                    "table.insert(results, r);" +
                 "end;" +
             "end;" +
-            "local timeout = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES'); " +
-            "if timeout[1] ~= nil then " +
-                "redis.call('publish', KEYS[4], '"+CMD_TIMEOUT+"'..':'..timeout[2]); " +
-            "end; " +
             "return results;";
 
     /**
@@ -469,16 +1361,41 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
      * @param ids
      */
     public List<String> ack(List<String> ids){
-        List<String> results = new ArrayList<>();
         if (ids == null || ids.size() == 0){
-            return results;
+            return new ArrayList<>();
         }
+        return get(ackAsync(ids));
+    }
 
-        RScript script = redisson.getScript(StringCodec.INSTANCE);
-        results = script.eval(RScript.Mode.READ_WRITE, ACK_LUA, RScript.ReturnType.MULTI,
-                Arrays.asList(timeoutQueueName,dataHashName,retryName,channelName),
-                ids.toArray());
-        return results;
+    /**
+     * 批量确认消息已处理(异步)
+     * @author Marsh
+     * @date 2022-06-23
+     * @param ids
+     * @return org.redisson.api.RFuture<java.util.List<java.lang.String>> 确认成功的消息id
+     */
+    public RFuture<List<String>> ackAsync(List<String> ids){
+        long start = System.nanoTime();
+        RPromise<List<String>> result = new RedissonPromise<>();
+        RFuture<List<String>> future = commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE, RedisCommands.EVAL_LIST,
+                ACK_LUA,
+                Arrays.<Object>asList(timeoutQueueName,dataHashName,retryName,priorityName,timeName),
+                ackParams(ids));
+        future.onComplete((res, e) -> {
+            if (e != null){
+                result.tryFailure(e);
+                return;
+            }
+            result.trySuccess(stripLatency(res, RAckQueueMetrics.STAGE_PROCESS));
+        });
+        return observe(result, RAckQueueMetrics.OP_ACK, start);
+    }
+
+    private Object[] ackParams(List<String> ids){
+        List<Object> params = new ArrayList<>(ids.size() + 1);
+        params.add(latencyNow());
+        params.addAll(ids);
+        return params.toArray();
     }
 
     /**
@@ -494,16 +1411,69 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
     }
 
     /**
-     * 回滚数据的lua脚本
+     * 归还消息的lua脚本，仅归还还在超时队列中(处理中)的消息，不增加重试次数，消息放回原来优先级队列的出队端
+     * 和push一样，开启合并通知时整批只发布一条通知，否则每个消息发布一条通知
+     */
+    private static final String RELEASE_LUA =
+            laneLua(4, 2) +
+            "local results = {};" +
+            "for i = 2, #ARGV, 1 do " +
+                "local v = ARGV[i];" +
+                "if redis.call('ZREM',KEYS[1],v) > 0 then " +
+                    "redis.call('RPUSH',lane(v),v);" +
+                    "if ARGV[1] == '0' then " +
+                        "redis.call('publish', KEYS[3], '"+CMD_MESSAGE+"'..':'..v); " +
+                    "end; " +
+                    "table.insert(results, v);" +
+                "end;" +
+            "end;" +
+            "if ARGV[1] == '1' and #results > 0 then " +
+                "redis.call('publish', KEYS[3], '"+CMD_MESSAGES+"'..':'..table.concat(results, ',')); " +
+            "end; " +
+            "return results;";
+
+    /**
+     * 归还已经取出但还没有交给业务处理的消息(异步)
+     * 和unack不同，归还不算一次失败，不会增加重试次数，也不会退避或进入失败队列，消息会被优先再次取出
+     * @author Marsh
+     * @date 2022-07-09
+     * @param ids
+     * @return org.redisson.api.RFuture<java.util.List<java.lang.String>> 成功归还的消息id
+     */
+    public RFuture<List<String>> releaseAsync(List<String> ids){
+        if (ids == null || ids.size() == 0){
+            return RedissonPromise.newSucceededFuture(new ArrayList<>());
+        }
+        return commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE, RedisCommands.EVAL_LIST,
+                RELEASE_LUA,
+                keysWithLanes(timeoutQueueName,queueName,channelName,priorityName),
+                releaseParams(ids));
+    }
+
+    private Object[] releaseParams(List<String> ids){
+        List<Object> params = new ArrayList<>(ids.size() + 1);
+        params.add(isCoalesceNotify() ? "1" : "0");
+        params.addAll(ids);
+        return params.toArray();
+    }
+
+    /**
+     * 回滚数据的lua脚本，仅回滚还在超时队列中(处理中)的消息，返回成功回滚的消息id
+     * 开启退避重试时，如果放入延迟重试队列的消息成为最早需要处理的数据，通知各节点更新清理定时器
      */
     private static final String UNACK_LUA =
+            laneLua(7, 2) +
+            requeueLua(3, 6, 5, 3) +
+            nextWakeLua(1, 6) +
             "local maxRetry = tonumber(ARGV[2]);"+
-            "for i = 3, #ARGV, 1 do " +
-                    "local v = ARGV[i];" +
+            "local results = {};" +
+            "local earliest = nil;" +
+            "for i = 8, #ARGV, 1 do " +
+                "local v = ARGV[i];" +
+                "if redis.call('ZREM',KEYS[1],v) > 0 then " +
+                    "local due = nil;" +
                     "if maxRetry < 0 then " +
-                        "redis.call('LPUSH',KEYS[2],v); " +
-                        "redis.call('publish', KEYS[5], '"+CMD_MESSAGE+"'..':'..v); " +
-                        "redis.call('HINCRBY', KEYS[3], v, 1);" +
+                        "due = requeue(v); " +
                     "elseif maxRetry == 0 then " +
                         "redis.call('ZADD',KEYS[4],ARGV[1],v);" +
                         "redis.call('publish', KEYS[5], '"+CMD_ERROR+"'..':'..v); " +
@@ -513,13 +1483,19 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
                             "redis.call('ZADD',KEYS[4],ARGV[1],v); " +
                             "redis.call('publish', KEYS[5], '"+CMD_ERROR+"'..':'..v); " +
                         "else " +
-                            "redis.call('LPUSH',KEYS[2],v); " +
-                            "redis.call('publish', KEYS[5], '"+CMD_MESSAGE+"'..':'..v); " +
-                            "redis.call('HINCRBY', KEYS[3], v, 1);" +
+                            "due = requeue(v); " +
                         "end " +
                     "end; " +
-                    "redis.call('ZREM',KEYS[1],v);" +
-            "end;";
+                    "if due ~= nil and (earliest == nil or due < earliest) then " +
+                        "earliest = due; " +
+                    "end; " +
+                    "table.insert(results, v);" +
+                "end;" +
+            "end;" +
+            "if earliest ~= nil and earliest <= nextWake() then " +
+                "redis.call('publish', KEYS[5], '"+CMD_TIMEOUT+"'..':'..string.format('%d', earliest)); " +
+            "end; " +
+            "return results;";
     /**
      * 通过消息id将消息回滚,回滚次数共享getRetryNumber()
      * @author Marsh
@@ -530,18 +1506,748 @@ public class RAckQueue<V> extends RedissonObject implements RDestroyable {
         if (ids == null || ids.size() == 0){
             return;
         }
-        List<String> params = new ArrayList<>();
-        params.add(System.currentTimeMillis()+"");
-        params.add(getRetryNumber()+"");
-        params.addAll(ids);
-        commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE, RedisCommands.EVAL_VOID,
+        unackAsync(ids);
+    }
+
+    /**
+     * 通过消息id将消息回滚(异步)
+     * @author Marsh
+     * @date 2022-07-05
+     * @param ids
+     * @return org.redisson.api.RFuture<java.util.List<java.lang.String>> 回滚成功的消息id，不在处理中的消息不会回滚
+     */
+    public RFuture<List<String>> unackAsync(List<String> ids){
+        long start = System.nanoTime();
+        return observe(commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE, RedisCommands.EVAL_LIST,
                 UNACK_LUA,
-                Arrays.asList(timeoutQueueName,queueName,retryName,errorName,channelName),
-                params.toArray());
+                unackKeys(),
+                unackParams(ids)), RAckQueueMetrics.OP_UNACK, start);
+    }
+
+    private List<Object> unackKeys(){
+        return keysWithLanes(timeoutQueueName,queueName,retryName,errorName,channelName,retryDelayName,priorityName);
+    }
+
+    private Object[] unackParams(List<String> ids){
+        List<Object> params = new ArrayList<>();
+        params.add(System.currentTimeMillis());
+        params.add(getRetryNumber());
+        params.addAll(backoffParams());
+        params.addAll(ids);
+        return params.toArray();
+    }
+
+    /**
+     * 批量操作时每次lua脚本调用最多处理的消息id数量，防止单个脚本执行时间过长阻塞redis
+     * 子类可以覆盖这个方法设置自己的分片大小
+     * @return
+     */
+    public int getBatchChunkSize(){
+        return options.getBatchChunkSize();
+    }
+
+    /**
+     * 大批量确认消息已处理，消息id会按照getBatchChunkSize()拆分成多次脚本调用，并通过一次pipeline请求发送
+     * @author Marsh
+     * @date 2022-06-22
+     * @param ids
+     * @return java.util.Map<java.lang.String,java.lang.Boolean> 每个消息id的确认结果，false表示消息已不在处理中(已经ack或者已超时重新投递)
+     */
+    public Map<String, Boolean> ackAll(List<String> ids){
+        return ackAll(ids, getBatchChunkSize());
+    }
+
+    /**
+     * 大批量确认消息已处理
+     * @author Marsh
+     * @date 2022-06-22
+     * @param ids
+     * @param chunkSize 每次脚本调用最多处理的消息id数量
+     * @return java.util.Map<java.lang.String,java.lang.Boolean>
+     */
+    public Map<String, Boolean> ackAll(List<String> ids, int chunkSize){
+        if (chunkSize <= 0){
+            throw new IllegalArgumentException("chunkSize必须大于0:" + chunkSize);
+        }
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        if (ids == null || ids.size() == 0){
+            return results;
+        }
+        long start = System.nanoTime();
+        RBatch batch = redisson.createBatch(BatchOptions.defaults());
+        RScriptAsync script = batch.getScript(StringCodec.INSTANCE);
+        for (List<String> chunk : CollUtil.split(ids, chunkSize)){
+            script.evalAsync(RScript.Mode.READ_WRITE, ACK_LUA, RScript.ReturnType.MULTI,
+                    Arrays.<Object>asList(timeoutQueueName,dataHashName,retryName,priorityName,timeName),
+                    ackParams(chunk));
+        }
+        return mergeResults(ids, batch.execute(), RAckQueueMetrics.OP_ACK, start);
+    }
+
+    /**
+     * 大批量回滚消息，消息id会按照getBatchChunkSize()拆分成多次脚本调用，并通过一次pipeline请求发送
+     * @author Marsh
+     * @date 2022-06-22
+     * @param ids
+     * @return java.util.Map<java.lang.String,java.lang.Boolean> 每个消息id的回滚结果，false表示消息已不在处理中
+     */
+    public Map<String, Boolean> unackAll(List<String> ids){
+        return unackAll(ids, getBatchChunkSize());
+    }
+
+    /**
+     * 大批量回滚消息
+     * @author Marsh
+     * @date 2022-06-22
+     * @param ids
+     * @param chunkSize 每次脚本调用最多处理的消息id数量
+     * @return java.util.Map<java.lang.String,java.lang.Boolean>
+     */
+    public Map<String, Boolean> unackAll(List<String> ids, int chunkSize){
+        if (chunkSize <= 0){
+            throw new IllegalArgumentException("chunkSize必须大于0:" + chunkSize);
+        }
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        if (ids == null || ids.size() == 0){
+            return results;
+        }
+        long start = System.nanoTime();
+        RBatch batch = redisson.createBatch(BatchOptions.defaults());
+        RScriptAsync script = batch.getScript(StringCodec.INSTANCE);
+        for (List<String> chunk : CollUtil.split(ids, chunkSize)){
+            script.evalAsync(RScript.Mode.READ_WRITE, UNACK_LUA, RScript.ReturnType.MULTI,
+                    unackKeys(),
+                    unackParams(chunk));
+        }
+        return mergeResults(ids, batch.execute(), RAckQueueMetrics.OP_UNACK, start);
+    }
+
+    /**
+     * 合并pipeline中每个分片脚本返回的成功消息id，并和单次操作一样记录操作指标
+     */
+    private Map<String, Boolean> mergeResults(List<String> ids, BatchResult<?> batchResult, String operation, long start){
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        for (String id : ids){
+            results.put(id, false);
+        }
+        int succeeded = 0;
+        for (Object response : batchResult.getResponses()){
+            if (response instanceof List){
+                for (Object id : (List<?>) response){
+                    results.put(stripLatency(id.toString(), RAckQueueMetrics.STAGE_PROCESS), true);
+                    succeeded++;
+                }
+            }
+        }
+        metrics.recordOperation(getName(), operation, succeeded, System.nanoTime() - start);
+        return results;
+    }
+
+    /**
+     * 按照 失败时间+消息id 游标查询失败队列的lua脚本，返回 {消息id,失败时间,消息id,失败时间...}
+     * 失败时间相同的消息在SortedSet中按照消息id的字典序排列，先取出和游标失败时间相同并且消息id更大的消息，再取出失败时间更晚的消息
+     * 游标不依赖消息在失败队列中的位置，翻页期间有消息进入或离开失败队列也不会跳过或重复
+     */
+    private static final String LIST_ERRORS_LUA =
+            "local limit = tonumber(ARGV[3]); " +
+            "local res = {}; " +
+            "local count = 0; " +
+            "local lower = ARGV[1]; " +
+            "if ARGV[2] ~= '' then " +
+                "local offset = 0; " +
+                "while count < limit do " +
+                    "local same = redis.call('zrangebyscore', KEYS[1], ARGV[1], ARGV[1], 'WITHSCORES', 'LIMIT', offset, limit); " +
+                    "if #same == 0 then " +
+                        "break; " +
+                    "end; " +
+                    "for i = 1, #same, 2 do " +
+                        "if count < limit and same[i] > ARGV[2] then " +
+                            "table.insert(res, same[i]); " +
+                            "table.insert(res, same[i + 1]); " +
+                            "count = count + 1; " +
+                        "end; " +
+                    "end; " +
+                    "offset = offset + #same / 2; " +
+                "end; " +
+                "lower = '(' .. ARGV[1]; " +
+            "end; " +
+            "if count < limit then " +
+                "local more = redis.call('zrangebyscore', KEYS[1], lower, ARGV[4], 'WITHSCORES', 'LIMIT', 0, limit - count); " +
+                "for i = 1, #more, 1 do " +
+                    "table.insert(res, more[i]); " +
+                "end; " +
+            "end; " +
+            "return res;";
+
+    /**
+     * 分页查询失败队列中的消息，按照放入失败队列的时间从早到晚排序
+     * @author Marsh
+     * @date 2022-06-30
+     * @param cursor 游标，第一次查询传null，之后传上一页返回的nextCursor
+     * @param limit 每页最多返回的消息数量
+     * @return com.marsh.framework.redisson.queue.RAckQueueErrorPage<V>
+     */
+    public RAckQueueErrorPage<V> listErrors(String cursor, int limit){
+        RAckQueueErrorPage<V> page = new RAckQueueErrorPage<>();
+        if (limit <= 0){
+            return page;
+        }
+        List<ScoredEntry<String>> entries = listErrorEntries(cursor, limit, "+inf");
+        page.setErrors(loadErrors(entries));
+        page.setNextCursor(entries.size() < limit ? null : errorCursor(entries.get(entries.size() - 1)));
+        return page;
+    }
+
+    /**
+     * 查询游标之后的一页失败消息
+     * @param cursor 游标，格式为 失败时间:消息id，为空时从头开始
+     * @param limit 最多返回的消息数量
+     * @param maxScore 最晚的失败时间
+     */
+    private List<ScoredEntry<String>> listErrorEntries(String cursor, int limit, String maxScore){
+        String score = "-inf";
+        String lastId = "";
+        if (StrUtil.isNotEmpty(cursor)){
+            int index = cursor.indexOf(':');
+            if (index <= 0){
+                throw new IllegalArgumentException("游标格式错误:" + cursor);
+            }
+            score = cursor.substring(0, index);
+            lastId = cursor.substring(index + 1);
+        }
+        List<Object> res = get(commandExecutor.evalReadAsync(getName(), StringCodec.INSTANCE, RedisCommands.EVAL_LIST,
+                LIST_ERRORS_LUA,
+                Collections.<Object>singletonList(errorName),
+                score, lastId, limit, maxScore));
+        List<ScoredEntry<String>> entries = new ArrayList<>(res.size() / 2);
+        for (int i = 0; i + 1 < res.size(); i += 2){
+            entries.add(new ScoredEntry<>(Double.valueOf((String) res.get(i + 1)), (String) res.get(i)));
+        }
+        return entries;
+    }
+
+    private static String errorCursor(ScoredEntry<String> entry){
+        return entry.getScore().longValue() + ":" + entry.getValue();
+    }
+
+    /**
+     * 查询失败消息的数据和重试次数
+     */
+    private List<RAckQueueErrorData<V>> loadErrors(Collection<ScoredEntry<String>> entries){
+        List<RAckQueueErrorData<V>> results = new ArrayList<>();
+        if (entries.isEmpty()){
+            return results;
+        }
+        Set<String> ids = new LinkedHashSet<>();
+        for (ScoredEntry<String> entry : entries){
+            ids.add(entry.getValue());
+        }
+        RBatch batch = redisson.createBatch(BatchOptions.defaults());
+        RFuture<Map<String, V>> dataFuture = batch.<String, V>getMap(dataHashName, codec).getAllAsync(ids);
+        RFuture<Map<String, String>> retryFuture = batch.<String, String>getMap(retryName, StringCodec.INSTANCE).getAllAsync(ids);
+        batch.execute();
+        Map<String, V> datas = dataFuture.getNow();
+        Map<String, String> retries = retryFuture.getNow();
+        for (ScoredEntry<String> entry : entries){
+            RAckQueueErrorData<V> error = new RAckQueueErrorData<>();
+            error.setId(entry.getValue());
+            error.setData(datas.get(entry.getValue()));
+            error.setErrorTime(entry.getScore().longValue());
+            String retry = retries.get(entry.getValue());
+            error.setRetry(retry == null ? 0 : Integer.parseInt(retry));
+            results.add(error);
+        }
+        return results;
+    }
+
+    /**
+     * 将失败消息重新放回数据队列的lua脚本，会清空重试次数，数据已经丢失的消息只从失败队列中删除
+     * 整批消息只发布一条通知
+     */
+    private static final String REPLAY_LUA =
+            laneLua(6, 2) +
+            "local results = {};" +
+            "local purged = 0;" +
+            "for i = 1, #ARGV, 1 do " +
+                "local v = ARGV[i];" +
+                "if redis.call('ZREM',KEYS[1],v) > 0 then " +
+                    "redis.call('HDEL',KEYS[4],v);" +
+                    "if redis.call('HEXISTS',KEYS[3],v) == 1 then " +
+                        "redis.call('LPUSH',lane(v),v);" +
+                        "table.insert(results, v);" +
+                    "else " +
+                        "redis.call('HDEL',KEYS[6],v);" +
+                        "purged = purged + 1;" +
+                    "end;" +
+                "end;" +
+            "end;" +
+            "if #results > 0 then " +
+                "redis.call('publish', KEYS[5], '"+CMD_MESSAGES+"'..':'..table.concat(results, ',')); " +
+            "end; " +
+            // 第一个元素是没有消息数据直接从失败队列删除的数量，后面是重放的消息id
+            "table.insert(results, 1, tostring(purged)); " +
+            "return results;";
+
+    /**
+     * 将失败队列中的消息重新放回数据队列，重试次数会被清空
+     * @author Marsh
+     * @date 2022-06-30
+     * @param ids
+     * @return java.util.List<java.lang.String> 成功放回数据队列的消息id
+     */
+    public List<String> replayErrors(List<String> ids){
+        if (ids == null || ids.size() == 0){
+            return new ArrayList<>();
+        }
+        List<String> results = replayErrorsWithPurged(ids);
+        return new ArrayList<>(results.subList(1, results.size()));
+    }
+
+    /**
+     * 执行REPLAY_LUA，返回的第一个元素是没有消息数据被直接删除的数量，后面是重放的消息id
+     */
+    private List<String> replayErrorsWithPurged(List<String> ids){
+        return get(replayErrorsWithPurgedAsync(ids));
+    }
+
+    private RFuture<List<String>> replayErrorsWithPurgedAsync(List<String> ids){
+        return commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE, RedisCommands.EVAL_LIST,
+                REPLAY_LUA,
+                keysWithLanes(errorName,queueName,dataHashName,retryName,channelName,priorityName),
+                ids.toArray());
+    }
+
+    /**
+     * 按批次重放失败消息时最多同时等待结果的脚本调用数量
+     */
+    private static final int REPLAY_MAX_PENDING = 4;
+
+    /**
+     * 按批次将失败队列中符合条件的消息重新放回数据队列，每批消息通过一次脚本调用完成，不会长时间阻塞redis
+     * 查询下一批和重放上一批同时进行，最多REPLAY_MAX_PENDING批重放脚本在等待结果
+     * 只会处理调用这个方法之前放入失败队列的消息，重放后再次失败的消息不会被重复处理
+     * @author Marsh
+     * @date 2022-06-30
+     * @param filter 过滤条件，为null时重放全部失败消息(不会查询消息数据)
+     * @param batchSize 每批处理的消息数量
+     * @return long 成功放回数据队列的消息数量
+     */
+    public long replayErrors(Predicate<RAckQueueErrorData<V>> filter, int batchSize){
+        if (batchSize <= 0){
+            throw new IllegalArgumentException("batchSize必须大于0:" + batchSize);
+        }
+        String maxScore = String.valueOf(System.currentTimeMillis());
+        Deque<RFuture<List<String>>> pending = new ArrayDeque<>();
+        long replayed = 0;
+        String cursor = null;
+        while (true){
+            // 游标按照失败时间和消息id前进，已经重放离开失败队列的消息不影响下一批的查询
+            List<ScoredEntry<String>> entries = listErrorEntries(cursor, batchSize, maxScore);
+            if (entries.isEmpty()){
+                break;
+            }
+            List<String> ids = new ArrayList<>();
+            if (filter == null){
+                for (ScoredEntry<String> entry : entries){
+                    ids.add(entry.getValue());
+                }
+            } else {
+                for (RAckQueueErrorData<V> error : loadErrors(entries)){
+                    if (filter.test(error)){
+                        ids.add(error.getId());
+                    }
+                }
+            }
+            if (!ids.isEmpty()){
+                if (pending.size() >= REPLAY_MAX_PENDING){
+                    replayed += replayedCount(get(pending.poll()));
+                }
+                pending.add(replayErrorsWithPurgedAsync(ids));
+            }
+            if (entries.size() < batchSize){
+                break;
+            }
+            cursor = errorCursor(entries.get(entries.size() - 1));
+        }
+        while (!pending.isEmpty()){
+            replayed += replayedCount(get(pending.poll()));
+        }
+        return replayed;
+    }
+
+    /**
+     * REPLAY_LUA返回的第一个元素是没有消息数据被直接删除的数量，后面是重放的消息id
+     */
+    private static int replayedCount(List<String> results){
+        return results.size() - 1;
+    }
+
+    /**
+     * 删除失败消息的lua脚本，同时删除消息数据，返回本次删除的数量
+     */
+    private static final String PURGE_ERRORS_LUA =
+            "local values = redis.call('zrangebyscore', KEYS[1], 0, ARGV[1], 'limit', 0, ARGV[2]); " +
+            "for i, v in ipairs(values) do " +
+                "redis.call('HDEL',KEYS[2],v);" +
+                "redis.call('HDEL',KEYS[3],v);" +
+                "redis.call('HDEL',KEYS[4],v);" +
+                "redis.call('HDEL',KEYS[5],v);" +
+            "end;" +
+            "if #values > 0 then " +
+                "redis.call('zrem', KEYS[1], unpack(values));" +
+            "end;" +
+            "return #values;";
+
+    /**
+     * 删除在失败队列中停留超过指定时间的消息及其数据，每批最多删除getBatchChunkSize()条
+     * @author Marsh
+     * @date 2022-06-30
+     * @param olderThan 在失败队列中停留的时间
+     * @return long 删除的消息数量
+     */
+    public long purgeErrors(Duration olderThan){
+        long maxErrorTime = System.currentTimeMillis() - olderThan.toMillis();
+        int chunkSize = getBatchChunkSize();
+        long purged = 0;
+        while (true){
+            Long count = get(purgeErrorsAsync(maxErrorTime, chunkSize));
+            purged += count;
+            if (count < chunkSize){
+                break;
+            }
+        }
+        return purged;
+    }
+
+    private RFuture<Long> purgeErrorsAsync(long maxErrorTime, int chunkSize){
+        return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LONG,
+                PURGE_ERRORS_LUA,
+                Arrays.<Object>asList(errorName,dataHashName,retryName,priorityName,timeName),
+                maxErrorTime, chunkSize);
+    }
+
+    /**
+     * 后台清理孤儿数据的间隔毫秒数，默认0不开启
+     * 开启后每次间隔会用HSCAN增量扫描数据表、重试次数表、优先级表和时间表中的一小段数据，删除已经不在任何队列中的消息
+     * @return
+     */
+    public long getCompactIntervalMs(){
+        return options.getCompactIntervalMs();
+    }
+
+    /**
+     * 后台清理每次HSCAN扫描的数量，默认100
+     * @return
+     */
+    public int getCompactScanCount(){
+        return options.getCompactScanCount();
+    }
+
+    /**
+     * 后台清理判断消息是否还在数据队列中时，每次脚本调用会把所有优先级队列读取一遍(LRANGE)，
+     * 所有优先级队列的总长度超过这个值时跳过本次清理，等待积压消化后再清理，默认1000，单次脚本调用的开销为 O(队列总长度 + 扫描数量)
+     * @return
+     */
+    public int getCompactMaxListLength(){
+        return options.getCompactMaxListLength();
+    }
+
+    /**
+     * 失败消息的保留毫秒数，默认0永久保留，开启后台清理时会删除超过保留时间的失败消息及其数据
+     * @return
+     */
+    public long getErrorRetentionMs(){
+        return options.getErrorRetentionMs();
+    }
+
+    /**
+     * 增量清理孤儿数据的lua脚本，返回 {下一次的游标,删除的数量}
+     * 消息只要还在数据队列、超时队列、失败队列或延迟重试队列中任意一个就不会被删除
+     * 先通过ZSCORE排除在超时队列、失败队列和延迟重试队列中的消息，剩下的消息才需要判断是否在数据队列中，
+     * 这时把所有优先级队列读取一次放到lua table中查找，不对每个消息遍历一次队列
+     */
+    private static final String COMPACT_LUA =
+            "redis.replicate_commands(); " +
+            // 开启了超时清理租约时，只有持有租约的节点进行清理
+            "if tonumber(ARGV[4]) > 0 and redis.call('get', KEYS[8]) ~= ARGV[5] then " +
+                "return {ARGV[1], '0'}; " +
+            "end; " +
+            "local total = 0; " +
+            "for i = 10, #KEYS, 1 do " +
+                "total = total + redis.call('LLEN', KEYS[i]); " +
+            "end; " +
+            "if total > tonumber(ARGV[3]) then " +
+                "return {ARGV[1], '0'}; " +
+            "end; " +
+            "local scan = redis.call('HSCAN', KEYS[1], ARGV[1], 'COUNT', ARGV[2]); " +
+            "local fields = scan[2]; " +
+            "local candidates = {}; " +
+            "for i = 1, #fields, 2 do " +
+                "local v = fields[i]; " +
+                "if not (redis.call('ZSCORE', KEYS[5], v) or redis.call('ZSCORE', KEYS[6], v) or redis.call('ZSCORE', KEYS[7], v)) then " +
+                    "table.insert(candidates, v); " +
+                "end; " +
+            "end; " +
+            "local deleted = 0; " +
+            "if #candidates > 0 then " +
+                "local ready = {}; " +
+                "for i = 10, #KEYS, 1 do " +
+                    "for _, v in ipairs(redis.call('LRANGE', KEYS[i], 0, -1)) do " +
+                        "ready[v] = true; " +
+                    "end; " +
+                "end; " +
+                "for _, v in ipairs(candidates) do " +
+                    "if not ready[v] then " +
+                        "redis.call('HDEL', KEYS[2], v); " +
+                        "redis.call('HDEL', KEYS[3], v); " +
+                        "redis.call('HDEL', KEYS[4], v); " +
+                        "redis.call('HDEL', KEYS[9], v); " +
+                        "deleted = deleted + 1; " +
+                    "end; " +
+                "end; " +
+            "end; " +
+            "return {scan[1], tostring(deleted)};";
+
+    /**
+     * 增量扫描一段hash表并删除其中的孤儿数据
+     * @param hashName 扫描的hash表
+     * @param cursor HSCAN游标
+     * @return org.redisson.api.RFuture<java.util.List<java.lang.String>> {下一次的游标,删除的数量}
+     */
+    private RFuture<List<String>> compactAsync(String hashName, String cursor){
+        return commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE, RedisCommands.EVAL_LIST,
+                COMPACT_LUA,
+                keysWithLanes(hashName,dataHashName,retryName,priorityName,timeoutQueueName,errorName,retryDelayName,timeoutLeaseName,timeName,queueName),
+                cursor, getCompactScanCount(), getCompactMaxListLength(), getTimeoutLeaseMs(), leaseOwnerId);
+    }
+
+    /**
+     * 完整扫描一遍数据表、重试次数表、优先级表和时间表，删除已经不在任何队列中的消息，并按照getErrorRetentionMs()删除过期的失败消息
+     * 每次脚本调用只扫描getCompactScanCount()条数据，不会长时间阻塞redis
+     * @author Marsh
+     * @date 2022-07-01
+     * @return long 删除的孤儿数据数量
+     */
+    public long compact(){
+        if (getErrorRetentionMs() > 0){
+            purgeErrors(Duration.ofMillis(getErrorRetentionMs()));
+        }
+        long deleted = 0;
+        for (String hashName : Arrays.asList(dataHashName, retryName, priorityName, timeName)){
+            String cursor = "0";
+            do {
+                List<String> res = get(compactAsync(hashName, cursor));
+                cursor = res.get(0);
+                deleted += Long.parseLong(res.get(1));
+            } while (!"0".equals(cursor));
+        }
+        return deleted;
+    }
+
+    /**
+     * 定时执行一次增量清理，当前hash表扫描完成后切换到下一个hash表
+     */
+    private void scheduleCompact(){
+        long interval = getCompactIntervalMs();
+        if (interval <= 0 || compactDestroyed){
+            return;
+        }
+        compactTimeout = commandExecutor.getConnectionManager().newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                if (compactCursor == null){
+                    // 开始新一轮扫描时顺便清理过期的失败消息
+                    compactCursor = "0";
+                    if (getErrorRetentionMs() > 0){
+                        purgeErrorsAsync(System.currentTimeMillis() - getErrorRetentionMs(), getBatchChunkSize());
+                    }
+                }
+                List<String> hashNames = Arrays.asList(dataHashName, retryName, priorityName, timeName);
+                compactAsync(hashNames.get(compactHashIndex), compactCursor).onComplete((res, e) -> {
+                    if (e != null) {
+                        if (e instanceof RedissonShutdownException) {
+                            return;
+                        }
+                        log.error(e.getMessage(), e);
+                    } else if ("0".equals(res.get(0))) {
+                        compactHashIndex = (compactHashIndex + 1) % hashNames.size();
+                        if (compactHashIndex == 0){
+                            compactCursor = null;
+                        } else {
+                            compactCursor = "0";
+                        }
+                    } else {
+                        compactCursor = res.get(0);
+                    }
+                    scheduleCompact();
+                });
+            }
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 设置指标收集器，spring环境下引入micrometer时会自动设置
+     * @author Marsh
+     * @date 2022-07-06
+     * @param metrics
+     */
+    public void setMetrics(RAckQueueMetrics metrics){
+        this.metrics = metrics == null ? RAckQueueMetrics.NOOP : metrics;
+        this.metrics.bind(this);
+    }
+
+    public RAckQueueMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * 单条消息操作的指标，参考observe()
+     */
+    private <T> RFuture<T> observeOne(RFuture<T> future, String operation, long start){
+        RAckQueueMetrics current = metrics;
+        if (current == RAckQueueMetrics.NOOP){
+            return future;
+        }
+        future.onComplete((res, e) -> {
+            if (e == null){
+                current.recordOperation(getName(), operation, res == null ? 0 : 1, System.nanoTime() - start);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 操作完成后记录操作耗时和处理的消息数量
+     */
+    private <T extends Collection<?>> RFuture<T> observe(RFuture<T> future, String operation, long start){
+        RAckQueueMetrics current = metrics;
+        if (current == RAckQueueMetrics.NOOP){
+            return future;
+        }
+        future.onComplete((res, e) -> {
+            if (e == null){
+                current.recordOperation(getName(), operation, res == null ? 0 : res.size(), System.nanoTime() - start);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 查询队列各个阶段的消息数量，通过一次pipeline请求完成
+     * @author Marsh
+     * @date 2022-07-06
+     * @return com.marsh.framework.redisson.queue.RAckQueueStats
+     */
+    public RAckQueueStats getStats(){
+        RBatch batch = redisson.createBatch(BatchOptions.defaults());
+        List<RFuture<Integer>> laneSizes = new ArrayList<>();
+        for (String laneName : laneNames){
+            laneSizes.add(batch.getDeque(laneName, StringCodec.INSTANCE).sizeAsync());
+        }
+        RFuture<Integer> inFlight = batch.getScoredSortedSet(timeoutQueueName, StringCodec.INSTANCE).sizeAsync();
+        RFuture<Integer> delayed = batch.getScoredSortedSet(retryDelayName, StringCodec.INSTANCE).sizeAsync();
+        RFuture<Integer> dead = batch.getScoredSortedSet(errorName, StringCodec.INSTANCE).sizeAsync();
+        batch.execute();
+        RAckQueueStats stats = new RAckQueueStats();
+        long ready = 0;
+        for (RFuture<Integer> laneSize : laneSizes){
+            ready += laneSize.getNow();
+        }
+        stats.setReady(ready);
+        stats.setInFlight(inFlight.getNow());
+        stats.setDelayed(delayed.getNow());
+        stats.setDead(dead.getNow());
+        return stats;
+    }
+
+    /**
+     * 挂起等待中的take请求，收到新消息通知或者等待超时时会再次尝试取出数据
+     */
+    private class TakeWaiter implements Runnable, TimerTask {
+
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final int maxBatch;
+        private final long deadline;
+        private final RPromise<List<RAckQueueData<V>>> result;
+        private volatile Timeout timeout;
+
+        TakeWaiter(int maxBatch, long deadline, RPromise<List<RAckQueueData<V>>> result){
+            this.maxBatch = maxBatch;
+            this.deadline = deadline;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            if (done.compareAndSet(false, true)) {
+                if (timeout != null) {
+                    timeout.cancel();
+                }
+                takeAsync(maxBatch, deadline, result);
+            }
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            messageSignal.waiters.remove(this);
+            run();
+        }
+
+        /**
+         * 如果这个等待者属于指定的take请求则停止等待
+         */
+        boolean cancelIfResult(RFuture<?> future) {
+            if (result != future) {
+                return false;
+            }
+            if (done.compareAndSet(false, true) && timeout != null) {
+                timeout.cancel();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 同名队列共享的通知状态
+     */
+    private static class MessageSignal {
+
+        /**
+         * 当前节点收到的超时时间变化通知次数
+         */
+        private final AtomicLong timeoutNotifyCount = new AtomicLong();
+        /**
+         * 消息到达信号版本号
+         */
+        private final AtomicLong version = new AtomicLong();
+        private final Queue<Runnable> waiters = new ConcurrentLinkedQueue<>();
+
+        void signal(){
+            version.incrementAndGet();
+            Runnable waiter;
+            while ((waiter = waiters.poll()) != null){
+                waiter.run();
+            }
+        }
     }
 
     @Override
     public void destroy(){
+        compactDestroyed = true;
+        if (compactTimeout != null){
+            compactTimeout.cancel();
+        }
+        if (ackBatcher != null){
+            ackBatcher.destroy();
+        }
+        if (getTimeoutLeaseMs() > 0){
+            // 主动释放自己持有的租约，让其他节点尽快接管超时清理
+            commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE, RedisCommands.EVAL_VOID,
+                    "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+                        "redis.call('del', KEYS[1]); " +
+                    "end;",
+                    Arrays.<Object>asList(timeoutLeaseName), leaseOwnerId);
+        }
         RTopic topic = topicCache.get(getName());
         if (topic != null){
             topic.removeAllListeners();
@@ -0,0 +1,241 @@
+package com.marsh.framework.redisson.queue;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.marsh.framework.redisson.executor.ConsumerExecutors;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RDestroyable;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RAckQueue的消费者
+ * 由一个拉取线程通过take(批量数量,等待时间)批量取出消息，交给执行器并发处理，处理成功自动ack，失败自动unack
+ * 同一时间处理中的消息数量不会超过maxInFlight，处理不过来时拉取线程会停止拉取，未取出的消息留在队列中由其他节点消费
+ * 使用方式：
+ * RAckQueueConsumer<MyQueueData> consumer = new RAckQueueConsumer<>(queue, data -> { ... }, 8);
+ * consumer.start();
+ * // 服务关闭时
+ * consumer.destroy();
+ * @author Marsh
+ * @date 2022-07-02日 09:52
+ */
+@Slf4j
+public class RAckQueueConsumer<V> implements RDestroyable {
+
+    private final RAckQueue<V> queue;
+    private final RAckQueueHandler<V> handler;
+    private final Executor executor;
+    /**
+     * 是否是消费者自己创建的执行器，自己创建的执行器在destroy()时关闭
+     */
+    private final boolean ownExecutor;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    /**
+     * 处理成功但ack失败的消息数量
+     */
+    private final AtomicLong ackFailures = new AtomicLong();
+    private volatile boolean running;
+    private Thread pollThread;
+
+    /**
+     * 创建一个使用固定大小线程池的消费者
+     * @param queue
+     * @param handler
+     * @param concurrency 处理消息的线程数，同时也是最多处理中的消息数量
+     */
+    public RAckQueueConsumer(RAckQueue<V> queue, RAckQueueHandler<V> handler, int concurrency){
+        this(queue, handler, concurrency, false);
+    }
+
+    /**
+     * 创建一个消费者，开启虚拟线程时每条消息使用一个虚拟线程处理，JDK不支持虚拟线程时使用固定大小线程池
+     * 处理器中大量阻塞IO时可以开启虚拟线程并设置较大的maxInFlight，不需要再调整线程数
+     * @param queue
+     * @param handler
+     * @param maxInFlight 最多处理中的消息数量，使用平台线程池时同时也是线程数
+     * @param virtualThreads 是否使用虚拟线程
+     */
+    public RAckQueueConsumer(RAckQueue<V> queue, RAckQueueHandler<V> handler, int maxInFlight, boolean virtualThreads){
+        this(queue, handler, ConsumerExecutors.newExecutor("RAckQueueConsumer-" + queue.getName() + "-",
+                maxInFlight, virtualThreads), maxInFlight, true);
+    }
+
+    /**
+     * 创建一个使用外部执行器的消费者，destroy()时不会关闭外部执行器
+     * @param queue
+     * @param handler
+     * @param executor 处理消息的执行器
+     * @param maxInFlight 最多处理中的消息数量
+     */
+    public RAckQueueConsumer(RAckQueue<V> queue, RAckQueueHandler<V> handler, Executor executor, int maxInFlight){
+        this(queue, handler, executor, maxInFlight, false);
+    }
+
+    private RAckQueueConsumer(RAckQueue<V> queue, RAckQueueHandler<V> handler, Executor executor, int maxInFlight, boolean ownExecutor){
+        if (maxInFlight <= 0){
+            throw new IllegalArgumentException("maxInFlight必须大于0:" + maxInFlight);
+        }
+        this.queue = queue;
+        this.handler = handler;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.ownExecutor = ownExecutor;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * 每次拉取的最大消息数量，默认等于maxInFlight，实际拉取数量不会超过空闲的处理数量
+     * @return
+     */
+    public int getBatchSize(){
+        return maxInFlight;
+    }
+
+    /**
+     * 队列中没有消息时每次拉取最长等待的毫秒数，默认1秒，同时也决定了destroy()时拉取线程最长的退出时间
+     * @return
+     */
+    public long getPollWaitMs(){
+        return 1000L;
+    }
+
+    /**
+     * destroy()时等待处理中的消息完成的最长毫秒数，默认30秒，超时未完成的消息会在执行超时后重新投递
+     * @return
+     */
+    public long getShutdownTimeoutMs(){
+        return 30000L;
+    }
+
+    /**
+     * 启动拉取线程
+     * @author Marsh
+     * @date 2022-07-02
+     */
+    public synchronized void start(){
+        if (running){
+            return;
+        }
+        running = true;
+        pollThread = new Thread(this::pollLoop, "RAckQueueConsumer-" + queue.getName() + "-poll");
+        pollThread.setDaemon(true);
+        pollThread.start();
+    }
+
+    private void pollLoop(){
+        while (running){
+            int permits = 0;
+            try {
+                inFlight.acquire();
+                permits = 1;
+                int batchSize = Math.max(getBatchSize(), 1);
+                while (permits < batchSize && inFlight.tryAcquire()){
+                    permits++;
+                }
+                List<RAckQueueData<V>> datas = queue.take(permits, Duration.ofMillis(getPollWaitMs()));
+                // 多申请的处理数量还回去
+                inFlight.release(permits - datas.size());
+                permits = 0;
+                for (RAckQueueData<V> data : datas){
+                    dispatch(data);
+                }
+            } catch (InterruptedException e){
+                inFlight.release(permits);
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e){
+                inFlight.release(permits);
+                log.error(e.getMessage(), e);
+                ThreadUtil.sleep(getPollWaitMs());
+            }
+        }
+    }
+
+    private void dispatch(RAckQueueData<V> data){
+        try {
+            executor.execute(() -> process(data));
+        } catch (RejectedExecutionException e){
+            log.warn(queue.getName() + "\t执行器拒绝处理消息:" + data.getId());
+            inFlight.release();
+            // 消息还没有交给业务处理，归还消息不增加重试次数
+            queue.releaseAsync(Collections.singletonList(data.getId())).onComplete((res, ex) -> {
+                if (ex != null){
+                    log.error(queue.getName() + "\t归还消息失败:" + data.getId(), ex);
+                }
+            });
+        }
+    }
+
+    private void process(RAckQueueData<V> data){
+        try {
+            handler.handle(data);
+            queue.ackAsync(data.getId()).onComplete((res, e) -> {
+                if (e != null){
+                    // ack失败的消息会在执行超时后重新投递
+                    ackFailures.incrementAndGet();
+                    queue.getMetrics().recordAckFailed(queue.getName(), 1);
+                    log.error(queue.getName() + "\tack消息失败:" + data.getId(), e);
+                }
+            });
+        } catch (Throwable e){
+            log.error(queue.getName() + "\t处理消息失败:" + data.getId(), e);
+            queue.unack(data.getId());
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * 当前处理中的消息数量
+     * @return
+     */
+    public int getInFlight(){
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * 处理成功但ack失败的消息数量
+     * @return
+     */
+    public long getAckFailureCount(){
+        return ackFailures.get();
+    }
+
+    /**
+     * 停止拉取消息，并等待处理中的消息完成
+     */
+    @Override
+    public void destroy(){
+        Thread thread;
+        synchronized (this){
+            running = false;
+            thread = pollThread;
+            pollThread = null;
+        }
+        try {
+            if (thread != null){
+                thread.join(getPollWaitMs() * 2);
+            }
+            // 拿到全部的处理数量说明处理中的消息都已经完成
+            if (inFlight.tryAcquire(maxInFlight, getShutdownTimeoutMs(), TimeUnit.MILLISECONDS)){
+                inFlight.release(maxInFlight);
+            } else {
+                log.warn(queue.getName() + "\t等待处理中的消息完成超时，剩余:" + getInFlight());
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        if (ownExecutor){
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+}
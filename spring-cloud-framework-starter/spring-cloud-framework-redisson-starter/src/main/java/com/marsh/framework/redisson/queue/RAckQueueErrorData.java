@@ -0,0 +1,24 @@
+package com.marsh.framework.redisson.queue;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+/**
+ * 失败队列中的消息
+ * @author Marsh
+ * @date 2022-06-30日 10:12
+ */
+@Data
+@EqualsAndHashCode(callSuper = true)
+public class RAckQueueErrorData<V> extends RAckQueueData<V> {
+    /**
+     * 消息放入失败队列的时间戳
+     */
+    private long errorTime;
+
+    /**
+     * 放入失败队列前已经重试的次数
+     */
+    private int retry;
+
+}
@@ -0,0 +1,25 @@
+package com.marsh.framework.redisson.queue;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分页查询失败队列的结果
+ * @author Marsh
+ * @date 2022-06-30日 10:15
+ */
+@Data
+public class RAckQueueErrorPage<V> {
+    /**
+     * 下一页的游标，格式为 本页最后一条消息的失败时间:消息id，为null时表示已经查询到最后一页
+     */
+    private String nextCursor;
+
+    /**
+     * 本页的失败消息，按照放入失败队列的时间从早到晚排序
+     */
+    private List<RAckQueueErrorData<V>> errors = new ArrayList<>();
+
+}
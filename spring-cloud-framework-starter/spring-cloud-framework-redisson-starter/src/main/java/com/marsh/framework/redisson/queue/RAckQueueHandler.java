@@ -0,0 +1,21 @@
+package com.marsh.framework.redisson.queue;
+
+/**
+ * RAckQueueConsumer的消息处理器
+ * 方法正常返回时消息会被自动ack，抛出异常时消息会被自动unack，回滚次数共享RAckQueue#getRetryNumber()
+ * @author Marsh
+ * @date 2022-07-02日 09:40
+ */
+@FunctionalInterface
+public interface RAckQueueHandler<V> {
+
+    /**
+     * 处理一条消息
+     * @author Marsh
+     * @date 2022-07-02
+     * @param data
+     * @throws Exception 处理失败时抛出异常，消息会被回滚重新投递
+     */
+    void handle(RAckQueueData<V> data) throws Exception;
+
+}
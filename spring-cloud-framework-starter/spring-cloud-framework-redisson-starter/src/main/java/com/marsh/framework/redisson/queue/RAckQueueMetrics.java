@@ -0,0 +1,77 @@
+package com.marsh.framework.redisson.queue;
+
+/**
+ * RAckQueue的指标收集接口，默认不收集任何指标
+ * 引入micrometer并开启actuator时会自动为spring管理的队列设置com.marsh.framework.redisson.metrics.MicrometerAckQueueMetrics
+ * @author Marsh
+ * @date 2022-07-06日 10:02
+ */
+public interface RAckQueueMetrics {
+
+    RAckQueueMetrics NOOP = new RAckQueueMetrics() {
+    };
+
+    String OP_PUSH = "push";
+    String OP_POP = "pop";
+    String OP_ACK = "ack";
+    String OP_UNACK = "unack";
+
+    /**
+     * 排队时间：放入队列(或上一次取出)到取出
+     */
+    String STAGE_WAIT = "wait";
+    /**
+     * 处理时间：取出到ack
+     */
+    String STAGE_PROCESS = "process";
+
+    /**
+     * 队列创建后注册需要采样的队列，采样通过RAckQueue#getStats()完成
+     * @param queue
+     */
+    default void bind(RAckQueue<?> queue){
+    }
+
+    /**
+     * 记录一次操作
+     * @param queueName 队列名称
+     * @param operation 操作类型 OP_PUSH,OP_POP,OP_ACK,OP_UNACK
+     * @param count 本次操作处理的消息数量
+     * @param nanos 本次操作的耗时纳秒数
+     */
+    default void recordOperation(String queueName, String operation, int count, long nanos){
+    }
+
+    /**
+     * 记录一条消息的排队时间或处理时间，需要开启RAckQueue#isLatencyTracking()
+     * @param queueName
+     * @param stage STAGE_WAIT,STAGE_PROCESS
+     * @param millis
+     */
+    default void recordLatency(String queueName, String stage, long millis){
+    }
+
+    /**
+     * 记录超时后重新投递的消息数量
+     * @param queueName
+     * @param count
+     */
+    default void recordRedelivered(String queueName, long count){
+    }
+
+    /**
+     * 记录超时后超过最大重试次数放入失败队列的消息数量
+     * @param queueName
+     * @param count
+     */
+    default void recordDeadLettered(String queueName, long count){
+    }
+
+    /**
+     * 记录消费者处理成功但ack请求失败的消息数量，这些消息会在执行超时后重新投递
+     * @param queueName
+     * @param count
+     */
+    default void recordAckFailed(String queueName, long count){
+    }
+}
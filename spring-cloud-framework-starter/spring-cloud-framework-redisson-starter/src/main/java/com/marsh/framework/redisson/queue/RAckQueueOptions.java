@@ -0,0 +1,117 @@
+package com.marsh.framework.redisson.queue;
+
+import lombok.Data;
+
+/**
+ * RAckQueue的配置，通过RAckQueue或ShardedAckQueue的构造方法传入，RAckQueue的各个配置getter默认返回这里的值
+ * 子类仍然可以覆盖getter设置自己的配置，ShardedAckQueue的所有子队列共用同一个配置对象
+ * 使用方式：
+ * RAckQueueOptions options = RAckQueueOptions.defaults();
+ * options.setExecutionTimeoutMs(60000L);
+ * options.setPriorityLevels(3);
+ * 每个字段的含义参考RAckQueue中对应的getter
+ * @author Marsh
+ * @date 2022-07-11日 10:05
+ */
+@Data
+public class RAckQueueOptions {
+
+    /**
+     * 执行超时的毫秒数，默认5分钟
+     */
+    private long executionTimeoutMs = 300000L;
+
+    /**
+     * 失败重试次数，默认5次，-1无限重试
+     */
+    private int retryNumber = 5;
+
+    /**
+     * 退避重试的初始延迟毫秒数，默认0不开启
+     */
+    private long retryBackoffMs = 0L;
+
+    /**
+     * 退避重试的延迟倍数，默认2
+     */
+    private double retryBackoffMultiplier = 2.0;
+
+    /**
+     * 退避重试的最大延迟毫秒数，默认10分钟
+     */
+    private long retryBackoffMaxMs = 600000L;
+
+    /**
+     * 退避重试延迟的随机抖动比例，默认0.2即±20%
+     */
+    private double retryBackoffJitter = 0.2;
+
+    /**
+     * 超时清理租约的毫秒数，默认0不开启
+     */
+    private long timeoutLeaseMs = 0L;
+
+    /**
+     * 优先级数量，默认1(不区分优先级)
+     */
+    private int priorityLevels = 1;
+
+    /**
+     * 各个优先级的取出权重，默认null严格按照优先级从高到低取出数据
+     */
+    private int[] priorityWeights;
+
+    /**
+     * 是否合并批量投递消息的通知，默认false
+     */
+    private boolean coalesceNotify = false;
+
+    /**
+     * 是否统计消息的排队时间和处理时间，默认false
+     */
+    private boolean latencyTracking = false;
+
+    /**
+     * 是否使用紧凑的消息id，默认false
+     */
+    private boolean compactId = false;
+
+    /**
+     * 合并ack时一批最多包含的消息数量，默认0不开启合并
+     */
+    private int ackBatchSize = 0;
+
+    /**
+     * 合并ack时最长等待的毫秒数，默认5毫秒
+     */
+    private long ackBatchIntervalMs = 5L;
+
+    /**
+     * 批量操作时每次lua脚本调用最多处理的消息id数量，默认500
+     */
+    private int batchChunkSize = 500;
+
+    /**
+     * 后台清理孤儿数据的间隔毫秒数，默认0不开启
+     */
+    private long compactIntervalMs = 0L;
+
+    /**
+     * 后台清理每次HSCAN扫描的数量，默认100
+     */
+    private int compactScanCount = 100;
+
+    /**
+     * 后台清理时允许读取的所有优先级队列的最大总长度，默认1000
+     */
+    private int compactMaxListLength = 1000;
+
+    /**
+     * 失败消息的保留毫秒数，默认0永久保留
+     */
+    private long errorRetentionMs = 0L;
+
+    public static RAckQueueOptions defaults(){
+        return new RAckQueueOptions();
+    }
+}
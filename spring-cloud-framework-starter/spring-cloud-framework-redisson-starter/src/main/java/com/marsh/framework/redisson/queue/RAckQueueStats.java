@@ -0,0 +1,32 @@
+package com.marsh.framework.redisson.queue;
+
+import lombok.Data;
+
+/**
+ * 队列各个阶段的消息数量
+ * @author Marsh
+ * @date 2022-07-06日 10:10
+ */
+@Data
+public class RAckQueueStats {
+    /**
+     * 所有优先级数据队列中等待取出的消息数量
+     */
+    private long ready;
+
+    /**
+     * 超时队列中处理中的消息数量
+     */
+    private long inFlight;
+
+    /**
+     * 延迟重试队列中等待重试的消息数量
+     */
+    private long delayed;
+
+    /**
+     * 失败队列中的消息数量
+     */
+    private long dead;
+
+}
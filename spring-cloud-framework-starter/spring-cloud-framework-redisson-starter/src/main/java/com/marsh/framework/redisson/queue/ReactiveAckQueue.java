@@ -0,0 +1,200 @@
+package com.marsh.framework.redisson.queue;
+
+import cn.hutool.core.collection.ListUtil;
+import org.redisson.api.RFuture;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * RAckQueue的响应式(Reactor)包装，可以在WebFlux等响应式服务中消费队列而不阻塞事件循环线程
+ * 消费：订阅者request(n)时按照n(不超过getMaxBatchSize())批量取出消息，队列为空时通过消息通知等待新消息，不会轮询redis
+ * 使用方式：
+ * ReactiveAckQueue<MyQueueData> reactiveQueue = new ReactiveAckQueue<>(queue);
+ * reactiveQueue.receive()
+ *         .flatMap(data -> handle(data).then(reactiveQueue.ack(data.getId())), 16)
+ *         .subscribe();
+ * @author Marsh
+ * @date 2022-07-05日 14:30
+ */
+public class ReactiveAckQueue<V> {
+
+    private final RAckQueue<V> queue;
+
+    public ReactiveAckQueue(RAckQueue<V> queue){
+        this.queue = queue;
+    }
+
+    /**
+     * 每次取出的最大消息数量，默认100
+     * @return
+     */
+    public int getMaxBatchSize(){
+        return 100;
+    }
+
+    /**
+     * 队列为空时每次等待新消息的最长时间，默认30秒，超时后会重新检查订阅者的需求
+     * @return
+     */
+    public Duration getMaxWait(){
+        return Duration.ofSeconds(30);
+    }
+
+    /**
+     * 消费队列中的消息，每个订阅者独立取出消息，消息需要订阅者自己ack或unack
+     * 订阅取消时已经取出但还未发送给订阅者的消息会被回滚
+     * @author Marsh
+     * @date 2022-07-05
+     * @return reactor.core.publisher.Flux<com.marsh.framework.redisson.queue.RAckQueueData<V>>
+     */
+    public Flux<RAckQueueData<V>> receive(){
+        return Flux.create(sink -> {
+            Poller poller = new Poller(sink);
+            sink.onRequest(n -> poller.poll());
+            sink.onDispose(poller::cancel);
+        });
+    }
+
+    /**
+     * 确认消息已处理
+     * @param id
+     * @return reactor.core.publisher.Mono<java.lang.Boolean> false表示消息已不在处理中
+     */
+    public Mono<Boolean> ack(String id){
+        return Mono.defer(() -> Mono.fromCompletionStage(queue.ackAsync(id)));
+    }
+
+    /**
+     * 批量确认消息已处理
+     * @param ids
+     * @return reactor.core.publisher.Mono<java.util.List<java.lang.String>> 确认成功的消息id
+     */
+    public Mono<List<String>> ack(List<String> ids){
+        return Mono.defer(() -> Mono.fromCompletionStage(queue.ackAsync(ids)));
+    }
+
+    /**
+     * 回滚消息
+     * @param id
+     * @return reactor.core.publisher.Mono<java.lang.Boolean> false表示消息已不在处理中
+     */
+    public Mono<Boolean> unack(String id){
+        return unack(ListUtil.toList(id)).map(ids -> !ids.isEmpty());
+    }
+
+    /**
+     * 批量回滚消息
+     * @param ids
+     * @return reactor.core.publisher.Mono<java.util.List<java.lang.String>> 回滚成功的消息id
+     */
+    public Mono<List<String>> unack(List<String> ids){
+        return Mono.defer(() -> Mono.fromCompletionStage(queue.unackAsync(ids)));
+    }
+
+    /**
+     * 给队列中放置一个数据
+     * @param data 不能为空，为空时返回IllegalArgumentException
+     * @return reactor.core.publisher.Mono<java.lang.String> 消息id
+     */
+    public Mono<String> push(V data){
+        return push(ListUtil.toList(data), 0).map(ids -> ids.get(0));
+    }
+
+    /**
+     * 批量给指定优先级的队列放置数据
+     * @param datas 不能包含空数据，包含时返回IllegalArgumentException
+     * @param priority 优先级，取值范围 0 ~ getPriorityLevels()-1
+     * @return reactor.core.publisher.Mono<java.util.List<java.lang.String>> 消息id
+     */
+    public Mono<List<String>> push(List<V> datas, int priority){
+        if (datas != null && datas.contains(null)){
+            return Mono.error(new IllegalArgumentException("数据不能为空"));
+        }
+        return Mono.defer(() -> Mono.fromCompletionStage(queue.pushAsync(datas, priority)));
+    }
+
+    /**
+     * 一个订阅者的拉取状态，同一时间只有一个取出请求在执行
+     */
+    private class Poller {
+
+        private final FluxSink<RAckQueueData<V>> sink;
+        private final AtomicBoolean polling = new AtomicBoolean();
+        private volatile boolean cancelled;
+        /**
+         * 正在执行的取出请求
+         */
+        private volatile RFuture<List<RAckQueueData<V>>> pending;
+
+        Poller(FluxSink<RAckQueueData<V>> sink){
+            this.sink = sink;
+        }
+
+        void poll(){
+            if (cancelled || !polling.compareAndSet(false, true)){
+                return;
+            }
+            long requested = sink.requestedFromDownstream();
+            if (requested <= 0){
+                polling.set(false);
+                // 释放标记的同时订阅者可能刚好发起了新的请求
+                if (sink.requestedFromDownstream() > 0){
+                    poll();
+                }
+                return;
+            }
+            int size = (int) Math.min(requested, getMaxBatchSize());
+            RFuture<List<RAckQueueData<V>>> future = queue.takeAsync(size, getMaxWait());
+            pending = future;
+            if (cancelled){
+                queue.cancelTake(future);
+            }
+            future.onComplete((datas, e) -> {
+                pending = null;
+                if (cancelled){
+                    polling.set(false);
+                    // 取消前已经取到的消息没有交给订阅者，归还时不增加重试次数
+                    if (e == null){
+                        release(datas);
+                    }
+                    return;
+                }
+                if (e != null){
+                    polling.set(false);
+                    sink.error(e);
+                    return;
+                }
+                for (RAckQueueData<V> data : datas){
+                    sink.next(data);
+                }
+                polling.set(false);
+                poll();
+            });
+        }
+
+        void cancel(){
+            cancelled = true;
+            RFuture<List<RAckQueueData<V>>> future = pending;
+            if (future != null){
+                queue.cancelTake(future);
+            }
+        }
+
+        private void release(List<RAckQueueData<V>> datas){
+            if (datas.isEmpty()){
+                return;
+            }
+            List<String> ids = new ArrayList<>();
+            for (RAckQueueData<V> data : datas){
+                ids.add(data.getId());
+            }
+            queue.releaseAsync(ids);
+        }
+    }
+}
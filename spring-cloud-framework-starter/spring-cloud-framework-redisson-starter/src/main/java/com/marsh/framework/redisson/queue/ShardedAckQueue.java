@@ -0,0 +1,435 @@
+package com.marsh.framework.redisson.queue;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.Redisson;
+import org.redisson.api.RDestroyable;
+import org.redisson.client.codec.Codec;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分片的ack消息确认队列
+ * 一个逻辑队列由多个RAckQueue子队列组成，每个子队列使用不同的名称(redis key的hash tag不同)，在redis集群中通常会分散到不同的slot上，
+ * 从而让一个很大的队列可以利用多个redis节点的处理能力
+ * ps:不同的hash tag经过CRC16计算后仍然可能落到同一个slot，不同的slot也可能分配在同一个节点上，分片只能让数据大概率分散，
+ * 不能保证每个子队列独占一个节点，需要严格分散时应检查各子队列key所在的slot(CLUSTER KEYSLOT)和节点
+ * 1.push会按照轮询(或者指定的路由key的hash)把消息分配到子队列
+ * 2.pop从轮询到的子队列开始取数据，数据不足时依次从其他子队列补充(work-stealing)
+ * 3.返回的消息id格式为 子队列序号:子队列消息id，ack、unack会根据消息id路由到对应的子队列
+ * 使用方式：与RAckQueue相同，子类继承这个类，并交由spring管理即可，所有子队列共用构造方法传入的RAckQueueOptions
+ * @Component
+ * public class MyShardedAckQueue<V> extends ShardedAckQueue<V> {
+ *
+ *     public MyShardedAckQueue(RedissonClient redisson) {
+ *         super((Redisson) redisson, "test", new GsonCodec(Object.class), 8, RAckQueueOptions.defaults());
+ *     }
+ * }
+ * @author Marsh
+ * @date 2022-06-27日 14:05
+ */
+@Slf4j
+public class ShardedAckQueue<V> implements RDestroyable {
+
+    private static final String SHARD_SEPARATOR = ":";
+    private static final String SHARD_NAME_INFIX = "_shard_";
+
+    private final String name;
+    private final RAckQueueOptions options;
+    private final List<RAckQueue<V>> shards;
+    private final AtomicInteger pushCursor = new AtomicInteger();
+    private final AtomicInteger popCursor = new AtomicInteger();
+
+    public ShardedAckQueue(Redisson redisson, String name, Codec codec, int shardCount){
+        this(redisson, name, codec, shardCount, RAckQueueOptions.defaults());
+    }
+
+    /**
+     * 创建分片队列
+     * @param redisson
+     * @param name 逻辑队列名称，子队列名称为 name_shard_序号
+     * @param codec
+     * @param shardCount 子队列数量
+     * @param options 所有子队列共用的配置
+     */
+    public ShardedAckQueue(Redisson redisson, String name, Codec codec, int shardCount, RAckQueueOptions options){
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("分片数量必须大于0");
+        }
+        this.name = name;
+        this.options = options;
+        List<RAckQueue<V>> list = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++){
+            list.add(new Shard(redisson, name + SHARD_NAME_INFIX + i, codec, options));
+        }
+        this.shards = Collections.unmodifiableList(list);
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    /**
+     * 获取所有的子队列
+     * @return
+     */
+    public List<RAckQueue<V>> getShards(){
+        return shards;
+    }
+
+    /**
+     * 给所有子队列设置指标收集器，每个子队列按照自己的名称单独统计
+     * @author Marsh
+     * @date 2022-07-06
+     * @param metrics
+     */
+    public void setMetrics(RAckQueueMetrics metrics){
+        for (RAckQueue<V> shard : shards){
+            shard.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * 所有子队列共用的配置
+     * @return
+     */
+    public RAckQueueOptions getOptions(){
+        return options;
+    }
+
+    /**
+     * 当任意子队列中投递了消息时，触发这个方法
+     * @param id 带有子队列序号的消息id
+     */
+    public void onMessage(String id){
+        log.info(getName()+"\t"+"onMessage('"+id+"')");
+    }
+
+    /**
+     * 当任意子队列中批量投递了消息并且开启了合并通知时，触发这个方法，默认逐条调用onMessage(消息id)
+     * @param ids 带有子队列序号的消息id
+     */
+    public void onMessages(List<String> ids){
+        for (String id : ids){
+            onMessage(id);
+        }
+    }
+
+    /**
+     * 当消息重试次数达到最大被放入到子队列的失败队列时，这个方法会被触发
+     * @param id 带有子队列序号的消息id
+     */
+    public void onError(String id){
+        log.info(getName()+"\t"+"onError('"+id+"')");
+    }
+
+    /**
+     * 给队列中放置一个数据，按照轮询的方式选择子队列
+     * @author Marsh
+     * @date 2022-06-27
+     * @param data
+     * @return java.lang.String
+     */
+    public String push(V data){
+        if (data == null){
+            return "";
+        }
+        int index = nextIndex(pushCursor);
+        return toShardId(index, shards.get(index).push(data));
+    }
+
+    /**
+     * 给队列中放置一个指定优先级的数据，按照轮询的方式选择子队列
+     * @author Marsh
+     * @date 2022-06-29
+     * @param data
+     * @param priority 优先级，取值范围 0 ~ RAckQueueOptions#priorityLevels-1，数值越大越优先被取出
+     * @return java.lang.String
+     */
+    public String push(V data, int priority){
+        if (data == null){
+            return "";
+        }
+        int index = nextIndex(pushCursor);
+        return toShardId(index, shards.get(index).push(data, priority));
+    }
+
+    /**
+     * 给队列中放置一个数据，按照路由key的hash选择子队列，相同路由key的数据会放到同一个子队列中
+     * @author Marsh
+     * @date 2022-06-27
+     * @param routingKey
+     * @param data
+     * @return java.lang.String
+     */
+    public String push(String routingKey, V data){
+        if (routingKey == null){
+            throw new IllegalArgumentException("路由key不能为空");
+        }
+        if (data == null){
+            return "";
+        }
+        int index = Math.floorMod(routingKey.hashCode(), shards.size());
+        return toShardId(index, shards.get(index).push(data));
+    }
+
+    /**
+     * 按照业务key去重给队列中放置一个数据，业务key同时作为路由key，保证重复的业务key落到同一个子队列中去重
+     * @author Marsh
+     * @date 2022-07-01
+     * @param key 业务key
+     * @param data
+     * @param window 去重窗口
+     * @return java.lang.String 新放置的消息id，业务key重复时返回已经存在的消息id
+     */
+    public String pushIfAbsent(String key, V data, Duration window){
+        if (StrUtil.isBlank(key)){
+            throw new IllegalArgumentException("业务key不能为空");
+        }
+        int index = Math.floorMod(key.hashCode(), shards.size());
+        return toShardId(index, shards.get(index).pushIfAbsent(key, data, window));
+    }
+
+    /**
+     * 批量给队列放置数据，数据按照轮询的方式平均分配到子队列，每个子队列一次批量请求
+     * @author Marsh
+     * @date 2022-06-27
+     * @param datas
+     * @return java.util.List<java.lang.String> 与datas顺序一致的消息id
+     */
+    public List<String> push(List<V> datas){
+        List<String> result = new ArrayList<>();
+        if (datas == null || datas.size() == 0){
+            return result;
+        }
+        int start = nextIndex(pushCursor);
+        List<List<V>> groups = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++){
+            groups.add(new ArrayList<>());
+        }
+        for (int i = 0; i < datas.size(); i++){
+            groups.get((start + i) % shards.size()).add(datas.get(i));
+        }
+        List<Iterator<String>> ids = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++){
+            ids.add(shards.get(i).push(groups.get(i)).iterator());
+        }
+        for (int i = 0; i < datas.size(); i++){
+            int index = (start + i) % shards.size();
+            result.add(toShardId(index, ids.get(index).next()));
+        }
+        return result;
+    }
+
+    /**
+     * 直接通过消息id弹出数据
+     * @author Marsh
+     * @date 2022-06-27
+     * @param id 带有子队列序号的消息id
+     * @return com.marsh.framework.redisson.queue.RAckQueueData<V>
+     */
+    public RAckQueueData<V> pop(String id){
+        int index = shardIndex(id);
+        return toShardData(index, shards.get(index).pop(shardMessageId(id)));
+    }
+
+    /**
+     * 取出一个数据
+     * @author Marsh
+     * @date 2022-06-27
+     * @return com.marsh.framework.redisson.queue.RAckQueueData<V>
+     */
+    public RAckQueueData<V> pop(){
+        List<RAckQueueData<V>> results = pop(1);
+        return results.size() > 0 ? results.get(0) : null;
+    }
+
+    /**
+     * 批量取出数据，从轮询到的子队列开始取，数据不足时依次从后面的子队列中补充
+     * @author Marsh
+     * @date 2022-06-27
+     * @param size
+     * @return java.util.List<com.marsh.framework.redisson.queue.RAckQueueData<V>>
+     */
+    public List<RAckQueueData<V>> pop(int size){
+        return pop(size, Duration.ofMillis(options.getExecutionTimeoutMs()));
+    }
+
+    /**
+     * 批量取出数据并指定这批消息的处理超时时间，参考RAckQueue#pop(int,Duration)
+     * @author Marsh
+     * @date 2022-06-28
+     * @param size
+     * @param visibility 消息的处理超时时间
+     * @return java.util.List<com.marsh.framework.redisson.queue.RAckQueueData<V>>
+     */
+    public List<RAckQueueData<V>> pop(int size, Duration visibility){
+        List<RAckQueueData<V>> results = new ArrayList<>();
+        int start = nextIndex(popCursor);
+        for (int i = 0; i < shards.size() && results.size() < size; i++){
+            int index = (start + i) % shards.size();
+            for (RAckQueueData<V> data : shards.get(index).pop(size - results.size(), visibility)){
+                results.add(toShardData(index, data));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 给处理中的消息续期，参考RAckQueue#touch(String,Duration)
+     * @author Marsh
+     * @date 2022-06-28
+     * @param id 带有子队列序号的消息id
+     * @param visibility 从现在开始计算的处理超时时间
+     * @return boolean
+     */
+    public boolean touch(String id, Duration visibility){
+        int index = shardIndex(id);
+        return shards.get(index).touch(shardMessageId(id), visibility);
+    }
+
+    /**
+     * 确认消息已成功处理
+     * @author Marsh
+     * @date 2022-06-27
+     * @param id 带有子队列序号的消息id
+     * @return boolean
+     */
+    public boolean ack(String id){
+        int index = shardIndex(id);
+        return shards.get(index).ack(shardMessageId(id));
+    }
+
+    /**
+     * 批量确认消息已处理，按照子队列分组后分别确认
+     * @author Marsh
+     * @date 2022-06-27
+     * @param ids 带有子队列序号的消息id
+     * @return java.util.List<java.lang.String> 确认成功的消息id
+     */
+    public List<String> ack(List<String> ids){
+        List<String> results = new ArrayList<>();
+        if (ids == null || ids.size() == 0){
+            return results;
+        }
+        groupByShard(ids).forEach((index, shardIds) -> {
+            for (String id : shards.get(index).ack(shardIds)){
+                results.add(toShardId(index, id));
+            }
+        });
+        return results;
+    }
+
+    /**
+     * 通过消息id将消息回滚
+     * @author Marsh
+     * @date 2022-06-27
+     * @param id 带有子队列序号的消息id
+     */
+    public void unack(String id){
+        int index = shardIndex(id);
+        shards.get(index).unack(shardMessageId(id));
+    }
+
+    /**
+     * 批量回滚消息，按照子队列分组后分别回滚
+     * @author Marsh
+     * @date 2022-06-27
+     * @param ids 带有子队列序号的消息id
+     */
+    public void unack(List<String> ids){
+        if (ids == null || ids.size() == 0){
+            return;
+        }
+        groupByShard(ids).forEach((index, shardIds) -> shards.get(index).unack(shardIds));
+    }
+
+    @Override
+    public void destroy(){
+        for (RAckQueue<V> shard : shards){
+            shard.destroy();
+        }
+    }
+
+    private int nextIndex(AtomicInteger cursor){
+        return Math.floorMod(cursor.getAndIncrement(), shards.size());
+    }
+
+    private Map<Integer, List<String>> groupByShard(List<String> ids){
+        Map<Integer, List<String>> groups = new LinkedHashMap<>();
+        for (String id : ids){
+            groups.computeIfAbsent(shardIndex(id), k -> new ArrayList<>()).add(shardMessageId(id));
+        }
+        return groups;
+    }
+
+    private String toShardId(int index, String id){
+        if (id == null || id.isEmpty()){
+            return id;
+        }
+        return index + SHARD_SEPARATOR + id;
+    }
+
+    private RAckQueueData<V> toShardData(int index, RAckQueueData<V> data){
+        if (data == null){
+            return null;
+        }
+        RAckQueueData<V> result = new RAckQueueData<>();
+        result.setId(toShardId(index, data.getId()));
+        result.setData(data.getData());
+        return result;
+    }
+
+    private int shardIndex(String id){
+        int pos = id == null ? -1 : id.indexOf(SHARD_SEPARATOR);
+        if (pos <= 0){
+            throw new IllegalArgumentException("消息id格式错误:" + id);
+        }
+        int index = Integer.parseInt(id.substring(0, pos));
+        if (index < 0 || index >= shards.size()){
+            throw new IllegalArgumentException("消息id对应的子队列不存在:" + id);
+        }
+        return index;
+    }
+
+    private String shardMessageId(String id){
+        return id.substring(id.indexOf(SHARD_SEPARATOR) + 1);
+    }
+
+    /**
+     * 子队列，使用分片队列的配置对象，事件回调委托给所属的分片队列
+     * 子队列序号从队列名称中解析，父类构造方法注册通知监听后立即收到的消息也能拿到正确的序号
+     */
+    private class Shard extends RAckQueue<V> {
+
+        Shard(Redisson redisson, String name, Codec codec, RAckQueueOptions options){
+            super(redisson, name, codec, options);
+        }
+
+        private int index(){
+            return Integer.parseInt(getName().substring(getName().lastIndexOf(SHARD_NAME_INFIX) + SHARD_NAME_INFIX.length()));
+        }
+
+        @Override
+        public void onMessage(String id){
+            ShardedAckQueue.this.onMessage(toShardId(index(), id));
+        }
+
+        @Override
+        public void onMessages(List<String> ids){
+            int index = index();
+            List<String> shardIds = new ArrayList<>(ids.size());
+            for (String id : ids){
+                shardIds.add(toShardId(index, id));
+            }
+            ShardedAckQueue.this.onMessages(shardIds);
+        }
+
+        @Override
+        public void onError(String id){
+            ShardedAckQueue.this.onError(toShardId(index(), id));
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.marsh.framework.redisson.task;
 
 import cn.hutool.core.util.StrUtil;
+import com.marsh.framework.redisson.executor.ConsumerExecutors;
+import com.marsh.framework.redisson.queue.AckBatcher;
 import io.netty.util.Timeout;
 import io.netty.util.TimerTask;
 import lombok.extern.slf4j.Slf4j;
@@ -12,6 +14,13 @@ import org.redisson.api.listener.BaseStatusListener;
 import org.redisson.api.listener.MessageListener;
 import org.redisson.connection.ConnectionManager;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -35,14 +44,43 @@ public abstract class DelayedConsumerTask<V> {
     private final AtomicReference<QueueTransferTask.TimeoutTask> lastTimeout = new AtomicReference<QueueTransferTask.TimeoutTask>();
     private final ConnectionManager connectionManager;
     private final RDelayedTaskHandler<V> delayedTaskHandler;
+    /**
+     * 执行任务的执行器和并发数量控制，RDelayedTaskOptions#getMaxConcurrency()为0时为null，任务在redisson的回调线程中逐个执行
+     * 执行器在start()时才创建，同一个类型的延时任务只有一个实例会被DelayedTaskTransferService启动，其他实例不会创建线程
+     */
+    private volatile ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxConcurrency;
+    private final boolean virtualThreads;
+    /**
+     * 每次取出的任务数量，大于1时批量取出任务并合并ack，合并ack的AckBatcher同样在start()时才创建
+     */
+    private final int batchSize;
+    private final long ackBatchIntervalMs;
+    private volatile AckBatcher ackBatcher;
 
     public DelayedConsumerTask(ConnectionManager connectionManager, RDelayedTaskHandler<V> delayedTaskHandler){
+        this(connectionManager, delayedTaskHandler, RDelayedTaskOptions.defaults());
+    }
+
+    public DelayedConsumerTask(ConnectionManager connectionManager, RDelayedTaskHandler<V> delayedTaskHandler, RDelayedTaskOptions options){
         this.connectionManager = connectionManager;
         this.delayedTaskHandler = delayedTaskHandler;
+        this.maxConcurrency = options.getMaxConcurrency();
+        this.virtualThreads = options.isVirtualThreads();
+        this.permits = maxConcurrency > 0 ? new Semaphore(maxConcurrency) : null;
+        this.batchSize = Math.max(options.getBatchSize(), 1);
+        this.ackBatchIntervalMs = options.getAckBatchIntervalMs();
     }
 
 
     public void start() {
+        if (maxConcurrency > 0){
+            executor = ConsumerExecutors.newExecutor("DelayedConsumerTask-", maxConcurrency, virtualThreads);
+        }
+        if (batchSize > 1){
+            ackBatcher = new AckBatcher(this::ackAll, connectionManager, batchSize, ackBatchIntervalMs);
+        }
         RTopic topic = getTopic();
         statusListenerId = topic.addListener(new BaseStatusListener() {
             @Override
@@ -64,6 +102,14 @@ public abstract class DelayedConsumerTask<V> {
         RTopic topic = getTopic();
         topic.removeListener(messageListenerId);
         topic.removeListener(statusListenerId);
+        if (executor != null){
+            // 已经提交的任务继续执行完，之后取出的任务会被拒绝并归还到任务队列
+            executor.shutdown();
+        }
+        if (ackBatcher != null){
+            // 提交剩余的ack，之后完成的任务直接提交ack
+            ackBatcher.destroy();
+        }
     }
 
 
@@ -128,10 +174,40 @@ public abstract class DelayedConsumerTask<V> {
 
     protected abstract RFuture<Void> unack(String taskId);
 
+    /**
+     * 归还已经取出但还没有开始执行的任务，和unack不同，归还不算一次失败，不增加重试次数，任务放回任务队列的出队端
+     * @param taskIds
+     * @return org.redisson.api.RFuture<java.util.List<java.lang.String>> 成功归还的任务id
+     */
+    protected abstract RFuture<List<String>> release(List<String> taskIds);
+
+    /**
+     * 批量取出就绪的任务，任务id和任务数据通过一次lua脚本取出
+     * @param size 最多取出的任务数量
+     * @return org.redisson.api.RFuture<java.util.Map<java.lang.String,V>> 任务id和任务数据，保持取出顺序
+     */
+    protected abstract RFuture<Map<String, V>> pushTasksAsync(int size);
+
+    /**
+     * 批量ack任务
+     * @param taskIds
+     * @return org.redisson.api.RFuture<java.util.List<java.lang.String>> 确认成功的任务id
+     */
+    protected abstract RFuture<List<String>> ackAll(List<String> taskIds);
+
     private void consumerTask() {
+        if (batchSize > 1) {
+            consumerTasks();
+            return;
+        }
+        // 没有空闲的执行数量时不再取出任务，等正在执行的任务完成后再继续
+        if (permits != null && !permits.tryAcquire()) {
+            return;
+        }
         RFuture<String> dataFuture = pushTaskAsync();
         dataFuture.onComplete((taskId, e) -> {
             if (e != null) {
+                releasePermit();
                 if (e instanceof RedissonShutdownException) {
                     return;
                 }
@@ -139,31 +215,156 @@ public abstract class DelayedConsumerTask<V> {
                 return;
             }
 
-            if (StrUtil.isNotBlank(taskId)) {
-                RFuture<V> data = getData(taskId);
-                data.onComplete((v,err) ->{
-                    if (e != null) {
-                        if (e instanceof RedissonShutdownException) {
-                            return;
-                        }
-                        log.error(e.getMessage(), e);
+            if (StrUtil.isBlank(taskId)) {
+                releasePermit();
+                return;
+            }
+            RFuture<V> data = getData(taskId);
+            data.onComplete((v,err) ->{
+                if (err != null) {
+                    releasePermit();
+                    if (err instanceof RedissonShutdownException) {
                         return;
                     }
-                    if (v != null){
+                    log.error(err.getMessage(), err);
+                    return;
+                }
+                if (v == null){
+                    releasePermit();
+                    return;
+                }
+                if (executor == null){
+                    execute(taskId, v);
+                    //递归查看是否还有没处理完的任务,直到任务队列清空
+                    consumerTask();
+                    return;
+                }
+                try {
+                    executor.execute(() -> {
                         try {
-                            delayedTaskHandler.execute(taskId,v);
-                            ack(taskId);
-                        } catch (Exception exception){
-                            log.error(exception.getMessage(), exception);
-                            unack(taskId);
-                            log.error("{}任务执行失败已回滚任务!",taskId);
+                            execute(taskId, v);
+                        } finally {
+                            releasePermit();
                         }
-                        //递归查看是否还有没处理完的任务,直到任务队列清空
                         consumerTask();
-                    }
-                });
+                    });
+                } catch (RejectedExecutionException exception){
+                    releasePermit();
+                    releaseRejected(Collections.singletonList(taskId));
+                    return;
+                }
+                //还有空闲的执行数量时继续取出任务
+                consumerTask();
+            });
+        });
+    }
+
+    /**
+     * 批量取出任务并执行，每次取出的数量不超过空闲的执行数量
+     */
+    private void consumerTasks() {
+        int size = batchSize;
+        if (permits != null) {
+            if (!permits.tryAcquire()) {
+                return;
+            }
+            size = 1;
+            while (size < batchSize && permits.tryAcquire()) {
+                size++;
+            }
+        }
+        final int acquired = size;
+        pushTasksAsync(size).onComplete((tasks, e) -> {
+            if (e != null) {
+                releasePermits(acquired);
+                if (e instanceof RedissonShutdownException) {
+                    return;
+                }
+                log.error(e.getMessage(), e);
+                return;
+            }
+            // 多申请的执行数量还回去
+            releasePermits(acquired - tasks.size());
+            if (tasks.isEmpty()) {
+                return;
+            }
+            if (executor == null) {
+                tasks.forEach(this::executeBatched);
+                consumerTask();
+                return;
+            }
+            List<String> rejected = new ArrayList<>();
+            tasks.forEach((taskId, v) -> {
+                try {
+                    executor.execute(() -> {
+                        try {
+                            executeBatched(taskId, v);
+                        } finally {
+                            releasePermit();
+                        }
+                        // 空闲的执行数量够一批时再继续取出，最后一个完成的任务一定会触发
+                        if (permits.availablePermits() >= Math.min(batchSize, maxConcurrency)) {
+                            consumerTask();
+                        }
+                    });
+                } catch (RejectedExecutionException exception) {
+                    releasePermit();
+                    rejected.add(taskId);
+                }
+            });
+            if (!rejected.isEmpty()) {
+                releaseRejected(rejected);
+                return;
+            }
+            // 取满了一批说明任务队列中可能还有任务
+            if (tasks.size() == acquired) {
+                consumerTask();
             }
         });
     }
 
+    /**
+     * 执行器拒绝的任务还没有开始执行，归还到任务队列，不增加重试次数
+     */
+    private void releaseRejected(List<String> taskIds){
+        log.warn("执行器拒绝执行任务，归还到任务队列:{}", taskIds);
+        release(taskIds).onComplete((res, e) -> {
+            if (e != null && !(e instanceof RedissonShutdownException)) {
+                log.error(e.getMessage(), e);
+            }
+        });
+    }
+
+    private void executeBatched(String taskId, V v){
+        try {
+            delayedTaskHandler.execute(taskId,v);
+            ackBatcher.add(taskId);
+        } catch (Exception exception){
+            log.error(exception.getMessage(), exception);
+            unack(taskId);
+            log.error("{}任务执行失败已回滚任务!",taskId);
+        }
+    }
+
+    private void execute(String taskId, V v){
+        try {
+            delayedTaskHandler.execute(taskId,v);
+            ack(taskId);
+        } catch (Exception exception){
+            log.error(exception.getMessage(), exception);
+            unack(taskId);
+            log.error("{}任务执行失败已回滚任务!",taskId);
+        }
+    }
+
+    private void releasePermit(){
+        releasePermits(1);
+    }
+
+    private void releasePermits(int count){
+        if (permits != null && count > 0){
+            permits.release(count);
+        }
+    }
+
 }
@@ -4,6 +4,7 @@ import org.redisson.api.RDestroyable;
 import org.redisson.api.RFuture;
 
 import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -94,4 +95,26 @@ public interface RDelayedTask<V> extends RDestroyable {
      */
     RFuture<Void> offerAsync(String taskId,V data, Date schedule);
 
+    /**
+     * 批量提供任务
+     * 相同任务id重复提交会修改这个任务信息（仅在任务还未执行时，如果已经执行，则会插入一个新的任务）
+     * 部分写入失败时抛出RDelayedTaskOfferException，参考offerAllAsync()
+     * @author Marsh
+     * @date 2022-07-08
+     * @param tasks 任务id => (任务数据,计划任务执行的时间戳)
+     * @return
+     */
+    void offerAll(Map<String, Map.Entry<V, Long>> tasks);
+
+    /**
+     * 批量提供任务(异步)
+     * 任务按照RDelayedTaskOptions#offerChunkSize拆分成多次脚本调用按顺序写入，全部写入后最多只发布一次计划时间通知
+     * 整体不是原子的，某一批写入失败时之前的批次已经写入，返回RDelayedTaskOfferException，其中包含没有写入的任务id
+     * @author Marsh
+     * @date 2022-07-08
+     * @param tasks 任务id => (任务数据,计划任务执行的时间戳)
+     * @return org.redisson.api.RFuture<java.lang.Void>
+     */
+    RFuture<Void> offerAllAsync(Map<String, Map.Entry<V, Long>> tasks);
+
 }
@@ -0,0 +1,31 @@
+package com.marsh.framework.redisson.task;
+
+import org.redisson.client.RedisException;
+
+import java.util.List;
+
+/**
+ * 批量提供任务部分写入失败
+ * 任务按照RDelayedTaskOptions#offerChunkSize拆分后按顺序写入，某一批写入失败时后面的批次不再写入，
+ * 之前的批次已经写入成功，调用方可以只重新提交getUnwrittenTaskIds()中的任务
+ * 继承RedisException，同步调用offerAll()时不会被redisson再包装一层
+ * @author Marsh
+ * @date 2022-07-11日 18:20
+ */
+public class RDelayedTaskOfferException extends RedisException {
+
+    private final List<String> unwrittenTaskIds;
+
+    public RDelayedTaskOfferException(List<String> unwrittenTaskIds, Throwable cause) {
+        super("批量提供任务部分写入失败，未写入的任务数量:" + unwrittenTaskIds.size(), cause);
+        this.unwrittenTaskIds = unwrittenTaskIds;
+    }
+
+    /**
+     * 没有写入的任务id，写入失败的批次中的任务可能已经写入也可能没有写入，重复提交同一个任务id只会修改任务信息
+     * @return
+     */
+    public List<String> getUnwrittenTaskIds() {
+        return unwrittenTaskIds;
+    }
+}
@@ -0,0 +1,103 @@
+package com.marsh.framework.redisson.task;
+
+import lombok.Data;
+
+/**
+ * 延时任务的配置，通过RedissonDelayedTaskProxy的构造方法传入
+ * 使用方式：
+ * RDelayedTaskOptions options = RDelayedTaskOptions.defaults();
+ * options.setMaxConcurrency(200);
+ * options.setVirtualThreads(true);
+ * @author Marsh
+ * @date 2022-07-04日 11:20
+ */
+@Data
+public class RDelayedTaskOptions {
+
+    /**
+     * 同一个节点最多同时执行的任务数量，默认0表示在redisson的回调线程中逐个执行任务
+     * 大于0时任务交给独立的执行器并发执行
+     */
+    private int maxConcurrency = 0;
+
+    /**
+     * 是否使用虚拟线程执行任务，仅在maxConcurrency大于0时生效，JDK不支持虚拟线程时使用maxConcurrency大小的线程池
+     */
+    private boolean virtualThreads = false;
+
+    /**
+     * 每次从任务队列中取出的任务数量，默认1
+     * 大于1时任务id和任务数据通过一次lua脚本批量取出，执行成功的任务也会合并成批量ack提交
+     */
+    private int batchSize = 1;
+
+    /**
+     * 批量ack时最长等待的毫秒数，仅在batchSize大于1时生效，默认5毫秒
+     */
+    private long ackBatchIntervalMs = 5L;
+
+    /**
+     * 每次从任务计划表转移到任务队列的最大任务数量，默认100
+     */
+    private int transferBatchSize = 100;
+
+    /**
+     * 预取任务计划时间窗口的毫秒数，默认0表示不预取，只给最早的一个任务计划时间设置定时器
+     * 大于0时会预取接下来这个时间窗口内的任务计划时间，放到本地时间轮中按时间格批量转移任务，参考TimingWheelTransferTask
+     */
+    private long prefetchWindowMs = 0L;
+
+    /**
+     * 本地时间轮一个时间格的毫秒数，仅在prefetchWindowMs大于0时生效，默认10毫秒
+     * 同一个时间格内到期的任务会在这个时间格结束时一次性转移
+     */
+    private long tickMs = 10L;
+
+    /**
+     * 任务执行超时的毫秒数，默认3分钟，超过这个时间还没有ack的任务认为执行失败，按重试策略重新投递
+     */
+    private long executionTimeoutMs = 180000L;
+
+    /**
+     * 任务执行失败或超时后第一次重试的延迟毫秒数，默认5分钟
+     */
+    private long retryDelayMs = 300000L;
+
+    /**
+     * 重试延迟的倍数，默认1即固定延迟，大于1时第n次重试的延迟为 retryDelayMs * retryBackoffMultiplier^(n-1)
+     */
+    private double retryBackoffMultiplier = 1.0;
+
+    /**
+     * 重试延迟的最大毫秒数，默认0不限制
+     */
+    private long retryMaxDelayMs = 0L;
+
+    /**
+     * 重试延迟的随机抖动比例，默认0不抖动，例如0.2即±20%，防止大量失败的任务在同一时刻重试
+     */
+    private double retryJitter = 0;
+
+    /**
+     * 最大重试次数，默认0不限制，超过后任务放到死信表(后缀dead)中不再执行，任务取消时清理
+     */
+    private int maxRetries = 0;
+
+    /**
+     * 批量提供任务时每次脚本调用最多写入的任务数量，默认500
+     */
+    private int offerChunkSize = 500;
+
+    /**
+     * 任务计划表按时间分桶的毫秒数，默认0不分桶，所有任务放在一个SortedSet中
+     * 例如3600000表示每小时一个桶，转移到期任务时只扫描当前及之前的桶，适合大量远期任务的场景
+     * 分桶模式下计划表本身仍然会保存重试的任务，开启分桶之前已经在计划表中的任务也会正常转移，关闭分桶时桶中的任务不会被迁移
+     * 脚本访问的桶都通过KEYS传入，转移任务前需要先读取一次分桶索引，每次转移多一次读请求
+     * 所有桶和计划表使用相同的hash tag位于同一个slot，集群模式下不会分散到多个节点
+     */
+    private long scheduleBucketMs = 0L;
+
+    public static RDelayedTaskOptions defaults(){
+        return new RDelayedTaskOptions();
+    }
+}
@@ -1,5 +1,6 @@
 package com.marsh.framework.redisson.task;
 
+import io.netty.buffer.ByteBuf;
 import org.redisson.QueueTransferTask;
 import org.redisson.RedissonObject;
 import org.redisson.RedissonTopic;
@@ -9,11 +10,23 @@ import org.redisson.client.codec.Codec;
 import org.redisson.client.codec.LongCodec;
 import org.redisson.client.codec.StringCodec;
 import org.redisson.client.protocol.RedisCommands;
+import org.redisson.codec.CompositeCodec;
 import org.redisson.command.CommandAsyncExecutor;
+import org.redisson.misc.RPromise;
+import org.redisson.misc.RedissonPromise;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * 基于redisson的延时任务,具体使用可参考 com.yihai.cloud.redis.task.spring.RedissonDelayedTaskProxy
@@ -24,13 +37,20 @@ import java.util.concurrent.TimeUnit;
  * 5.所有发布的任务均保存到redis中，即使程序关闭，下次运行时还是会将过期的任务继续执行
  * 6.一个延时任务仅被消费一次(除非之前执行报错)
  *
- * 不足：
- * 1.任务执行超时固定是3分钟，超过3分钟的任务会认为是超时了，重新投递到任务列表中5分钟后重试执行
+ * 7.任务计划密集时可以开启预取时间窗口，由本地时间轮按时间格批量转移到期任务，参考RDelayedTaskOptions#prefetchWindowMs
+ * 8.远期任务数量很大时可以开启计划表按时间分桶，参考RDelayedTaskOptions#scheduleBucketMs
+ * 9.任务执行超时时间、重试延迟策略(固定或指数退避加随机抖动)及最大重试次数可以通过RDelayedTaskOptions配置，
+ *   超过最大重试次数的任务放到死信表中不再执行
  * @author Marsh
  * @date 2022-02-11日 8:59
  */
 public class RRedissonDelayedTask<V> extends RedissonObject implements RDelayedTask<V> {
 
+    /**
+     * 分桶模式下转移任务时传入脚本的最早的桶数量，参考withIndexedBuckets()
+     */
+    private static final int SCHEDULE_DECLARED_BUCKETS = 64;
+
     private final DelayedTaskTransferService delayedTaskTransferService;
 
     /**
@@ -45,6 +65,23 @@ public class RRedissonDelayedTask<V> extends RedissonObject implements RDelayedT
      */
     private final String taskScheduleName;
 
+    /**
+     * 任务计划表分桶索引（仅在RDelayedTaskOptions#scheduleBucketMs大于0时使用）
+     * redis数据类型:SortedSet
+     * score => 桶中最早的任务计划时间，桶中的任务被删除或移动后可能偏早，转移任务读取这个桶时重新计算
+     * member => 桶开始时间戳
+     */
+    private final String taskScheduleIndexName;
+
+    /**
+     * 任务所在的计划表分桶（仅在RDelayedTaskOptions#scheduleBucketMs大于0时使用）
+     * 桶中的任务和这里记录的桶不一致(或者这里没有记录)时是已经删除或者移动到其他桶的任务，在读取桶时跳过并删除
+     * redis数据类型:Hash
+     * key => 任务id
+     * value => 桶开始时间戳
+     */
+    private final String taskScheduleBucketName;
+
     /**
      * 任务数据表(这里存放任务id和数据的hash对应表)
      * redis数据类型:Hash
@@ -75,6 +112,14 @@ public class RRedissonDelayedTask<V> extends RedissonObject implements RDelayedT
      */
     private final String taskRetryName;
 
+    /**
+     * 任务死信表（超过最大重试次数的任务，任务数据和重试次数会保留，直到任务取消）
+     * redis数据类型:SortedSet
+     * score => 进入死信表的时间戳
+     * member => 任务id
+     */
+    private final String taskDeadName;
+
     /**
      * 任务计划表通道名称
      */
@@ -84,52 +129,105 @@ public class RRedissonDelayedTask<V> extends RedissonObject implements RDelayedT
      */
     private final String taskChannelName;
 
+    /**
+     * 批量取出任务时解码 任务id => 任务数据 使用的codec
+     */
+    private final Codec batchCodec;
+
+    private final RDelayedTaskOptions options;
+
     public RRedissonDelayedTask(String taskType,
                                 Codec codec,
                                 DelayedTaskTransferService delayedTaskTransferService,
                                 CommandAsyncExecutor commandExecutor,
                                 RDelayedTaskHandler delayedTaskHandler) {
+        this(taskType, codec, delayedTaskTransferService, commandExecutor, delayedTaskHandler, RDelayedTaskOptions.defaults());
+    }
+
+    public RRedissonDelayedTask(String taskType,
+                                Codec codec,
+                                DelayedTaskTransferService delayedTaskTransferService,
+                                CommandAsyncExecutor commandExecutor,
+                                RDelayedTaskHandler delayedTaskHandler,
+                                RDelayedTaskOptions options) {
         super(codec, commandExecutor, taskType);
         this.taskName = prefixName("redisson_delay_task", getName());
         this.taskQueueName = suffixName(this.taskName, "task_queue");
         this.taskDataName = suffixName(this.taskName, "data");
         this.taskRetryName = suffixName(this.taskName, "retry");
+        this.taskDeadName = suffixName(this.taskName, "dead");
         this.taskTimeoutQueueName = suffixName(this.taskName, "task_timeout_queue");
         this.taskScheduleName = suffixName(this.taskName, "schedule");
+        this.taskScheduleIndexName = suffixName(this.taskScheduleName, "index");
+        this.taskScheduleBucketName = suffixName(this.taskScheduleName, "bucket");
         this.scheduleChannelName = suffixName(this.taskName, "schedule_channel");
         this.taskChannelName = suffixName(this.taskName, "task_channel");
+        this.batchCodec = new CompositeCodec(StringCodec.INSTANCE, codec, codec);
+        this.options = options;
 
-        QueueTransferTask task = new QueueTransferTask(commandExecutor.getConnectionManager()) {
-            @Override
-            protected RFuture<Long> pushTaskAsync() {
-                return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LONG,
-                        "local expiredValues = redis.call('zrangebyscore', KEYS[1], 0, ARGV[1], 'limit', 0, ARGV[2]); "
-                                + "if #expiredValues > 0 then "
-                                + "for i, v in ipairs(expiredValues) do "
-                                + "redis.call('rpush', KEYS[2], v);"
-                                + "end; "
-                                + "redis.call('zrem', KEYS[1], unpack(expiredValues));"
-                                // 通知系统进行任务消费
-                                + "redis.call('publish', KEYS[3], #expiredValues);"
-                                + "end; "
-                                // 查询一个最新的过期任务,主要用来更新超时任务时间  QueueTransferTask#scheduleTask
-                                + "local v = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES'); "
-                                + "if v[1] ~= nil then "
-                                + "return v[2]; "
-                                + "end "
-                                + "return nil;",
-                        Arrays.<Object>asList(taskScheduleName, taskQueueName, taskChannelName),
-                        System.currentTimeMillis(), 100);
-            }
+        QueueTransferTask task;
+        if (options.getPrefetchWindowMs() > 0) {
+            task = new TimingWheelTransferTask(commandExecutor.getConnectionManager(), options.getPrefetchWindowMs(), options.getTickMs()) {
+                @Override
+                protected RFuture<List<Long>> transferAsync(long now, long windowEnd, long tickMs, int maxBuckets) {
+                    return withIndexedBuckets(buckets -> commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LIST,
+                            scheduleLua(1, 4)
+                                    + "local expiredValues = schedDue(ARGV[1], ARGV[2]); "
+                                    + "if #expiredValues > 0 then "
+                                    + "for i, v in ipairs(expiredValues) do "
+                                    + "redis.call('rpush', KEYS[2], v);"
+                                    + "end; "
+                                    + "redis.call('publish', KEYS[3], #expiredValues);"
+                                    + "end; "
+                                    + "local res = {}; "
+                                    + "local head = schedHead(); "
+                                    + "if head == nil then "
+                                    + "return res; "
+                                    + "end; "
+                                    + "table.insert(res, head); "
+                                    // 按时间格跳跃查询窗口内的任务计划时间，每个时间格只需要一次zrangebyscore
+                                    + "local tick = tonumber(ARGV[4]); "
+                                    + "local from = tonumber(ARGV[1]); "
+                                    + "for i = 1, tonumber(ARGV[5]), 1 do "
+                                    + "local n = schedNext(from, ARGV[3]); "
+                                    + "if n == nil then "
+                                    + "break; "
+                                    + "end; "
+                                    + "local bucket = math.ceil(n / tick) * tick; "
+                                    + "table.insert(res, bucket); "
+                                    + "from = bucket; "
+                                    + "end; "
+                                    + "return res;",
+                            scheduleKeys(buckets, taskScheduleName, taskQueueName, taskChannelName),
+                            now, options.getTransferBatchSize(), windowEnd, tickMs, maxBuckets));
+                }
 
+                @Override
+                protected RFuture<Long> transferDueAsync(long now) {
+                    return RRedissonDelayedTask.this.transferDueAsync(now);
+                }
 
-            @Override
-            protected RTopic getTopic() {
-                return new RedissonTopic(LongCodec.INSTANCE, commandExecutor, scheduleChannelName);
-            }
-        };
+                @Override
+                protected RTopic getTopic() {
+                    return new RedissonTopic(LongCodec.INSTANCE, commandExecutor, scheduleChannelName);
+                }
+            };
+        } else {
+            task = new QueueTransferTask(commandExecutor.getConnectionManager()) {
+                @Override
+                protected RFuture<Long> pushTaskAsync() {
+                    return transferDueAsync(System.currentTimeMillis());
+                }
+
+
+                @Override
+                protected RTopic getTopic() {
+                    return new RedissonTopic(LongCodec.INSTANCE, commandExecutor, scheduleChannelName);
+                }
+            };
+        }
 
-        DelayedConsumerTask<V> delayedConsumerTask = new DelayedConsumerTask<V>(commandExecutor.getConnectionManager(),delayedTaskHandler) {
+        DelayedConsumerTask<V> delayedConsumerTask = new DelayedConsumerTask<V>(commandExecutor.getConnectionManager(),delayedTaskHandler,options) {
 
             @Override
             protected RTopic getTopic() {
@@ -146,19 +244,28 @@ public class RRedissonDelayedTask<V> extends RedissonObject implements RDelayedT
                         "return nil; ";
                 return commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE,RedisCommands.EVAL_OBJECT,
                         lua,Arrays.<Object>asList(taskQueueName,taskTimeoutQueueName),
-                        // 目前写死3分钟内如果这个任务执行失败则重新投递到任务队列中
-                        getMillisecondsByAfterMinutes(3));
+                        // 超过执行超时时间的任务认为执行失败，按重试策略重新投递
+                        System.currentTimeMillis() + options.getExecutionTimeoutMs());
             }
 
             @Override
             protected RFuture<Long> pushTimeoutTaskAsync() {
-                String lua = "local expiredValues = redis.call('zrangebyscore', KEYS[1], 0, ARGV[1], 'limit', 0, ARGV[2]); "
+                long now = System.currentTimeMillis();
+                String lua = scheduleLua(2, 6) + retryLua(3, 4, 3)
+                        + "local expiredValues = redis.call('zrangebyscore', KEYS[1], 0, ARGV[1], 'limit', 0, ARGV[2]); "
                         + "if #expiredValues > 0 then "
+                        + "local earliest = nil; "
                         + "for i, v in ipairs(expiredValues) do "
-                        + "redis.call('ZADD',KEYS[2],ARGV[3],v); "
-                        + "redis.call('HINCRBY', KEYS[3], v, 1);"
+                        + "local due = retry(v); "
+                        + "if due ~= nil and (earliest == nil or due < earliest) then "
+                        + "earliest = due; "
+                        + "end; "
                         + "end; "
                         + "redis.call('zrem', KEYS[1], unpack(expiredValues));"
+                        // 重新投递的任务成为任务计划表中最早的任务时通知更新计划时间
+                        + "if earliest ~= nil and schedHead() == earliest then "
+                        + "redis.call('publish', KEYS[5], earliest); "
+                        + "end; "
                         + "end; "
                         // 查询一个最新的过期任务,主要用来更新超时任务时间  QueueTransferTask#scheduleTask
                         + "local v = redis.call('zrange', KEYS[1], 0, 0, 'WITHSCORES'); "
@@ -168,14 +275,49 @@ public class RRedissonDelayedTask<V> extends RedissonObject implements RDelayedT
                         + "return nil;";
                 return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE,RedisCommands.EVAL_LONG,
                         lua,
-                        Arrays.<Object>asList(taskTimeoutQueueName,taskScheduleName,taskRetryName),
-                        System.currentTimeMillis(),100,getMillisecondsByAfterMinutes(5)// 把所有超时的任务推后到5分钟后重新执行
+                        scheduleKeys(taskTimeoutQueueName,taskScheduleName,taskRetryName,taskDeadName,scheduleChannelName),
+                        retryParams(now, now, options.getTransferBatchSize())
                 );
             }
 
-            private long getMillisecondsByAfterMinutes(int minutes){
-                long timeout = minutes*60*1000;
-                return System.currentTimeMillis() + timeout;
+            @Override
+            protected RFuture<Map<String, V>> pushTasksAsync(int size) {
+                String lua = "local res = {}; " +
+                        "for i = 1, tonumber(ARGV[2]), 1 do " +
+                        "local v = redis.call('LPOP',KEYS[1]); " +
+                        "if v == false then " +
+                        "break; " +
+                        "end; " +
+                        // 已经取消的任务没有数据，直接丢弃
+                        "local d = redis.call('HGET',KEYS[3],v); " +
+                        "if d ~= false then " +
+                        "redis.call('ZADD',KEYS[2],ARGV[1],v); " +
+                        "table.insert(res, v); " +
+                        "table.insert(res, d); " +
+                        "end; " +
+                        "end; " +
+                        "return res; ";
+                return commandExecutor.evalWriteAsync(getName(), batchCodec, RedisCommands.EVAL_MAP,
+                        lua,Arrays.<Object>asList(taskQueueName,taskTimeoutQueueName,taskDataName),
+                        System.currentTimeMillis() + options.getExecutionTimeoutMs(), size);
+            }
+
+            @Override
+            protected RFuture<List<String>> ackAll(List<String> taskIds) {
+                String lua = "local results = {}; " +
+                        "for i = 1, #ARGV, 1 do " +
+                        "if redis.call('ZREM', KEYS[1], ARGV[i]) > 0 then " +
+                        "redis.call('HDEL',KEYS[2],ARGV[i]); " +
+                        "redis.call('HDEL',KEYS[3],ARGV[i]); " +
+                        "table.insert(results, ARGV[i]); " +
+                        "end; " +
+                        "end; " +
+                        "return results; ";
+                return commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE,RedisCommands.EVAL_LIST,
+                        lua,
+                        Arrays.<Object>asList(taskTimeoutQueueName,taskDataName,taskRetryName),
+                        taskIds.toArray()
+                );
             }
 
             @Override
@@ -199,22 +341,42 @@ public class RRedissonDelayedTask<V> extends RedissonObject implements RDelayedT
 
             @Override
             protected RFuture<Void> unack(String taskId) {
-                String lua = "local result = redis.call('ZREM', KEYS[2], KEYS[1]); "
+                String lua = scheduleLua(3, 7) + retryLua(4, 6, 1)
+                        + "local result = redis.call('ZREM', KEYS[2], KEYS[1]); "
                         + "if result > 0 then "
-                        + "redis.call('ZADD',KEYS[3],ARGV[1],KEYS[1]);"
-                        + "redis.call('HINCRBY', KEYS[4],KEYS[1], 1);"
+                        + "local due = retry(KEYS[1]); "
                         //检查这个定时任务是否是队列中最先过期的
-                        + "local v = redis.call('zrange', KEYS[3], 0, 0,'WITHSCORES'); "
-                        + "if v[2] == ARGV[1] then "
-                        + "redis.call('publish', KEYS[5], ARGV[1]); "
+                        + "if due ~= nil and schedHead() == due then "
+                        + "redis.call('publish', KEYS[5], due); "
                         + "end;"
                         + "return 1;"
                         + "end; "
                         + "return 0;";
                 return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE,RedisCommands.EVAL_BOOLEAN,
                         lua,
-                        Arrays.<Object>asList(taskId,taskTimeoutQueueName,taskScheduleName,taskRetryName,scheduleChannelName),
-                        getMillisecondsByAfterMinutes(5)// 5分钟后重新执行这个任务
+                        scheduleKeys(taskId,taskTimeoutQueueName,taskScheduleName,taskRetryName,scheduleChannelName,taskDeadName),
+                        retryParams(System.currentTimeMillis())
+                );
+            }
+
+            @Override
+            protected RFuture<List<String>> release(List<String> taskIds) {
+                // 仅归还还在执行超时队列中的任务，已经取消的任务没有数据，直接丢弃
+                String lua = "local results = {}; " +
+                        "for i = 1, #ARGV, 1 do " +
+                        "if redis.call('ZREM', KEYS[1], ARGV[i]) > 0 and redis.call('HEXISTS', KEYS[3], ARGV[i]) == 1 then " +
+                        "redis.call('LPUSH', KEYS[2], ARGV[i]); " +
+                        "table.insert(results, ARGV[i]); " +
+                        "end; " +
+                        "end; " +
+                        "if #results > 0 then " +
+                        "redis.call('publish', KEYS[4], #results); " +
+                        "end; " +
+                        "return results; ";
+                return commandExecutor.evalWriteAsync(getName(), StringCodec.INSTANCE,RedisCommands.EVAL_LIST,
+                        lua,
+                        Arrays.<Object>asList(taskTimeoutQueueName,taskQueueName,taskDataName,taskChannelName),
+                        taskIds.toArray()
                 );
             }
         };
@@ -223,9 +385,366 @@ public class RRedissonDelayedTask<V> extends RedissonObject implements RDelayedT
         this.delayedTaskTransferService = delayedTaskTransferService;
     }
 
+    /**
+     * 把任务计划表中已经到期的任务转移到任务队列中，每次最多转移RDelayedTaskOptions#transferBatchSize个
+     * @param now 当前时间戳
+     * @return org.redisson.api.RFuture<java.lang.Long> 转移后最早的任务计划时间，没有任务时返回null
+     */
+    private RFuture<Long> transferDueAsync(long now) {
+        return withIndexedBuckets(buckets -> commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LONG,
+                scheduleLua(1, 4)
+                        + "local expiredValues = schedDue(ARGV[1], ARGV[2]); "
+                        + "if #expiredValues > 0 then "
+                        + "for i, v in ipairs(expiredValues) do "
+                        + "redis.call('rpush', KEYS[2], v);"
+                        + "end; "
+                        // 通知系统进行任务消费
+                        + "redis.call('publish', KEYS[3], #expiredValues);"
+                        + "end; "
+                        // 查询一个最新的过期任务,主要用来更新超时任务时间  QueueTransferTask#scheduleTask
+                        + "return schedHead();",
+                scheduleKeys(buckets, taskScheduleName, taskQueueName, taskChannelName),
+                now, options.getTransferBatchSize()));
+    }
+
+    /**
+     * 生成操作任务计划表的lua函数，所有读写任务计划表的脚本都通过这些函数访问，不直接操作计划表的key
+     * schedAdd(任务id,计划时间) 添加或修改任务的计划时间
+     * schedRem(任务id) 删除任务，返回删除的数量
+     * schedHead() 返回最早的任务计划时间，没有任务时返回nil
+     * schedDue(当前时间戳,数量) 取出并删除已经到期的任务id
+     * schedNext(开始时间戳,结束时间戳) 返回(开始,结束]之间最早的任务计划时间，没有时返回nil
+     *
+     * RDelayedTaskOptions#scheduleBucketMs大于0时任务计划表按时间分桶，{计划表}:{桶开始时间戳}是每个桶的SortedSet，
+     * 分桶索引taskScheduleIndexName记录非空的桶和桶中最早的任务计划时间(可能偏早)，taskScheduleBucketName记录 任务id => 桶开始时间戳，
+     * 转移到期任务时只扫描最早计划时间不晚于当前时间的桶，远期任务的数量不影响扫描的开销
+     * 脚本只访问通过KEYS传入的桶，参考scheduleKeys(Collection,Object...)：
+     * 1.schedAdd的计划时间所在的桶传入时放到桶中，否则放到计划表本身(重试等在脚本中计算计划时间的场景)，
+     *   所以分桶模式下计划表本身也会保存任务，开启分桶之前已经在计划表中的任务也会正常转移
+     * 2.schedRem只删除任务所在分桶表中的记录，桶中的任务延迟删除，不需要知道任务原来所在的桶，
+     *   索引中的计划时间因此可能偏早，读取传入的桶时重新计算
+     * 3.schedHead和schedNext读取到没有传入的桶时使用索引中的计划时间，只会偏早，转移任务会提前醒来再重新读取，不会错过任务
+     * @param scheduleKey 任务计划表在KEYS中的下标
+     * @param indexKey 分桶索引在KEYS中的下标，任务所在分桶表的下标为 indexKey + 1，之后是传入的桶，参考scheduleKeys()
+     */
+    private String scheduleLua(int scheduleKey, int indexKey){
+        String key = "KEYS[" + scheduleKey + "]";
+        long bucketMs = options.getScheduleBucketMs();
+        if (bucketMs <= 0) {
+            return "local function schedAdd(v, score) " +
+                        "redis.call('zadd', " + key + ", score, v); " +
+                    "end; " +
+                    "local function schedRem(v) " +
+                        "return redis.call('zrem', " + key + ", v); " +
+                    "end; " +
+                    "local function schedHead() " +
+                        "local h = redis.call('zrange', " + key + ", 0, 0, 'WITHSCORES'); " +
+                        "if h[1] == nil then " +
+                            "return nil; " +
+                        "end; " +
+                        "return tonumber(h[2]); " +
+                    "end; " +
+                    "local function schedDue(now, limit) " +
+                        "local vs = redis.call('zrangebyscore', " + key + ", 0, now, 'limit', 0, limit); " +
+                        "if #vs > 0 then " +
+                            "redis.call('zrem', " + key + ", unpack(vs)); " +
+                        "end; " +
+                        "return vs; " +
+                    "end; " +
+                    "local function schedNext(from, to) " +
+                        "local n = redis.call('zrangebyscore', " + key + ", '(' .. from, to, 'WITHSCORES', 'limit', 0, 1); " +
+                        "if n[1] == nil then " +
+                            "return nil; " +
+                        "end; " +
+                        "return tonumber(n[2]); " +
+                    "end; ";
+        }
+        return "local schedIndex = KEYS[" + indexKey + "]; " +
+                "local schedBucket = KEYS[" + (indexKey + 1) + "]; " +
+                // 桶开始时间戳 => 传入的桶的key
+                "local schedBuckets = {}; " +
+                "for i = " + (indexKey + 2) + ", #KEYS, 1 do " +
+                    "schedBuckets[string.sub(KEYS[i], string.len(" + key + ") + 2)] = KEYS[i]; " +
+                "end; " +
+                "local function isLive(v, b) " +
+                    "return redis.call('hget', schedBucket, v) == b; " +
+                "end; " +
+                "local function schedRem(v) " +
+                    "local r = redis.call('zrem', " + key + ", v); " +
+                    "if redis.call('hdel', schedBucket, v) > 0 then " +
+                        "r = 1; " +
+                    "end; " +
+                    "return r; " +
+                "end; " +
+                "local function schedAdd(v, score) " +
+                    "redis.call('zrem', " + key + ", v); " +
+                    "local b = string.format('%d', math.floor(tonumber(score) / " + bucketMs + ") * " + bucketMs + "); " +
+                    "local k = schedBuckets[b]; " +
+                    "if k == nil then " +
+                        "redis.call('hdel', schedBucket, v); " +
+                        "redis.call('zadd', " + key + ", score, v); " +
+                        "return; " +
+                    "end; " +
+                    "redis.call('zadd', k, score, v); " +
+                    "redis.call('hset', schedBucket, v, b); " +
+                    "local cur = redis.call('zscore', schedIndex, b); " +
+                    "if cur == false or tonumber(score) < tonumber(cur) then " +
+                        "redis.call('zadd', schedIndex, score, b); " +
+                    "end; " +
+                "end; " +
+                // 桶中最早的有效任务计划时间，顺便删除桶头部已经失效的任务
+                "local function bucketHead(b, k) " +
+                    "while true do " +
+                        "local h = redis.call('zrange', k, 0, 9, 'WITHSCORES'); " +
+                        "if h[1] == nil then " +
+                            "return nil; " +
+                        "end; " +
+                        "for i = 1, #h, 2 do " +
+                            "if isLive(h[i], b) then " +
+                                "return tonumber(h[i + 1]); " +
+                            "end; " +
+                            "redis.call('zrem', k, h[i]); " +
+                        "end; " +
+                    "end; " +
+                "end; " +
+                // 重新计算传入的桶在索引中的计划时间，桶为空时从索引中删除
+                "local function bucketIndex(b, k) " +
+                    "local h = bucketHead(b, k); " +
+                    "if h == nil then " +
+                        "redis.call('zrem', schedIndex, b); " +
+                    "else " +
+                        "redis.call('zadd', schedIndex, h, b); " +
+                    "end; " +
+                    "return h; " +
+                "end; " +
+                "local function schedHead() " +
+                    "local head = nil; " +
+                    "local h = redis.call('zrange', " + key + ", 0, 0, 'WITHSCORES'); " +
+                    "if h[1] ~= nil then " +
+                        "head = tonumber(h[2]); " +
+                    "end; " +
+                    "while true do " +
+                        "local bs = redis.call('zrange', schedIndex, 0, 0, 'WITHSCORES'); " +
+                        "if bs[1] == nil then " +
+                            "return head; " +
+                        "end; " +
+                        "local score = tonumber(bs[2]); " +
+                        "if head ~= nil and score >= head then " +
+                            "return head; " +
+                        "end; " +
+                        "local k = schedBuckets[bs[1]]; " +
+                        "if k == nil then " +
+                            "return score; " +
+                        "end; " +
+                        "local bh = bucketIndex(bs[1], k); " +
+                        "if bh ~= nil and bh <= score then " +
+                            "return bh; " +
+                        "end; " +
+                    "end; " +
+                "end; " +
+                "local function schedDue(now, limit) " +
+                    "local res = redis.call('zrangebyscore', " + key + ", 0, now, 'limit', 0, limit); " +
+                    "if #res > 0 then " +
+                        "redis.call('zrem', " + key + ", unpack(res)); " +
+                    "end; " +
+                    "local bs = redis.call('zrangebyscore', schedIndex, '-inf', now, 'limit', 0, limit); " +
+                    "for _, b in ipairs(bs) do " +
+                        "if tonumber(limit) <= #res then " +
+                            "break; " +
+                        "end; " +
+                        "local k = schedBuckets[b]; " +
+                        "if k ~= nil then " +
+                            "while tonumber(limit) > #res do " +
+                                "local vs = redis.call('zrangebyscore', k, 0, now, 'limit', 0, tonumber(limit) - #res); " +
+                                "if #vs == 0 then " +
+                                    "break; " +
+                                "end; " +
+                                "redis.call('zrem', k, unpack(vs)); " +
+                                "for _, v in ipairs(vs) do " +
+                                    "if isLive(v, b) then " +
+                                        "redis.call('hdel', schedBucket, v); " +
+                                        "table.insert(res, v); " +
+                                    "end; " +
+                                "end; " +
+                            "end; " +
+                            "bucketIndex(b, k); " +
+                        "end; " +
+                    "end; " +
+                    "return res; " +
+                "end; " +
+                "local function schedNext(from, to) " +
+                    "local best = nil; " +
+                    "local n = redis.call('zrangebyscore', " + key + ", '(' .. from, to, 'WITHSCORES', 'limit', 0, 1); " +
+                    "if n[1] ~= nil then " +
+                        "best = tonumber(n[2]); " +
+                    "end; " +
+                    "local bs = redis.call('zrangebyscore', schedIndex, '-inf', to, 'WITHSCORES'); " +
+                    "for i = 1, #bs, 2 do " +
+                        "local b = bs[i]; " +
+                        "local score = tonumber(bs[i + 1]); " +
+                        "if best ~= nil and score >= best then " +
+                            "break; " +
+                        "end; " +
+                        "local k = schedBuckets[b]; " +
+                        "if k == nil then " +
+                            "local e = math.max(score, tonumber(from) + 1); " +
+                            "if best == nil or e < best then " +
+                                "best = e; " +
+                            "end; " +
+                            "break; " +
+                        "end; " +
+                        "local offset = 0; " +
+                        "while true do " +
+                            "local ms = redis.call('zrangebyscore', k, '(' .. from, to, 'WITHSCORES', 'limit', offset, 10); " +
+                            "if ms[1] == nil then " +
+                                "break; " +
+                            "end; " +
+                            "local found = nil; " +
+                            "for j = 1, #ms, 2 do " +
+                                "if isLive(ms[j], b) then " +
+                                    "found = tonumber(ms[j + 1]); " +
+                                    "break; " +
+                                "end; " +
+                            "end; " +
+                            "if found ~= nil then " +
+                                "if best == nil or found < best then " +
+                                    "best = found; " +
+                                "end; " +
+                                "break; " +
+                            "end; " +
+                            "offset = offset + #ms / 2; " +
+                        "end; " +
+                    "end; " +
+                    "return best; " +
+                "end; ";
+    }
+
+    /**
+     * 在脚本的KEYS后面追加分桶索引和任务所在分桶表，与scheduleLua()的indexKey对应，不传入任何桶
+     */
+    private List<Object> scheduleKeys(Object... keys){
+        return scheduleKeys(Collections.<Long>emptyList(), keys);
+    }
+
+    /**
+     * 在脚本的KEYS后面追加分桶索引、任务所在分桶表和需要访问的桶，与scheduleLua()的indexKey对应
+     * 所有桶和计划表使用相同的hash tag位于同一个slot，到期转移需要在一个脚本中原子的把任务从桶移动到任务队列，所以不按桶分散slot
+     * @param buckets 需要访问的桶开始时间戳，不分桶时忽略
+     */
+    private List<Object> scheduleKeys(Collection<Long> buckets, Object... keys){
+        List<Object> result = new ArrayList<>(Arrays.asList(keys));
+        result.add(taskScheduleIndexName);
+        result.add(taskScheduleBucketName);
+        if (options.getScheduleBucketMs() > 0) {
+            for (Long bucket : buckets) {
+                result.add(taskScheduleName + ":" + bucket);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 计划时间所在的桶，不分桶时返回空集合
+     */
+    private Collection<Long> bucketsOf(long... schedules){
+        if (options.getScheduleBucketMs() <= 0) {
+            return Collections.emptyList();
+        }
+        Set<Long> buckets = new LinkedHashSet<>();
+        for (long schedule : schedules) {
+            buckets.add(bucketOf(schedule));
+        }
+        return buckets;
+    }
+
+    /**
+     * 计划时间所在的桶开始时间戳，和scheduleLua()中的计算方式一致
+     */
+    private long bucketOf(long schedule){
+        long bucketMs = options.getScheduleBucketMs();
+        return schedule / bucketMs * bucketMs;
+    }
+
+    /**
+     * 分桶模式下转移任务前先读取分桶索引中最早的SCHEDULE_DECLARED_BUCKETS个桶，再把这些桶通过KEYS传给转移脚本
+     * 不分桶时直接执行脚本
+     * @param script 桶开始时间戳 => 脚本调用
+     */
+    private <T> RFuture<T> withIndexedBuckets(Function<List<Long>, RFuture<T>> script){
+        if (options.getScheduleBucketMs() <= 0) {
+            return script.apply(Collections.<Long>emptyList());
+        }
+        RPromise<T> result = new RedissonPromise<>();
+        RFuture<List<Long>> buckets = commandExecutor.evalReadAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_LIST,
+                "return redis.call('zrange', KEYS[1], 0, ARGV[1]);",
+                Collections.<Object>singletonList(taskScheduleIndexName), SCHEDULE_DECLARED_BUCKETS - 1);
+        buckets.onComplete((bs, e) -> {
+            if (e != null) {
+                result.tryFailure(e);
+                return;
+            }
+            script.apply(bs).onComplete((res, ex) -> {
+                if (ex != null) {
+                    result.tryFailure(ex);
+                    return;
+                }
+                result.trySuccess(res);
+            });
+        });
+        return result;
+    }
+
+    /**
+     * 生成一个重新投递任务的lua函数 retry(任务id)
+     * 重试次数+1，超过最大重试次数时放到死信表中并返回nil，否则按重试延迟策略放回任务计划表并返回计划时间
+     * 依赖scheduleLua()生成的schedAdd(任务id,计划时间)函数
+     * @param retryKey 任务重试表在KEYS中的下标
+     * @param deadKey 任务死信表在KEYS中的下标
+     * @param retryArgv 重试参数在ARGV中的起始下标，依次为 当前时间戳,重试延迟,倍数,最大延迟,抖动比例,最大重试次数,随机数种子
+     */
+    private static String retryLua(int retryKey, int deadKey, int retryArgv){
+        return "math.randomseed(tonumber(ARGV[" + (retryArgv + 6) + "])); " +
+                "local function retry(v) " +
+                    "local n = redis.call('HINCRBY', KEYS[" + retryKey + "], v, 1); " +
+                    "local now = tonumber(ARGV[" + retryArgv + "]); " +
+                    "local maxRetries = tonumber(ARGV[" + (retryArgv + 5) + "]); " +
+                    "if maxRetries > 0 and n > maxRetries then " +
+                        "redis.call('ZADD', KEYS[" + deadKey + "], now, v); " +
+                        "return nil; " +
+                    "end; " +
+                    "local delay = tonumber(ARGV[" + (retryArgv + 1) + "]) * math.pow(tonumber(ARGV[" + (retryArgv + 2) + "]), n - 1); " +
+                    "local maxDelay = tonumber(ARGV[" + (retryArgv + 3) + "]); " +
+                    "if maxDelay > 0 then " +
+                        "delay = math.min(delay, maxDelay); " +
+                    "end; " +
+                    "delay = math.floor(delay * (1 + tonumber(ARGV[" + (retryArgv + 4) + "]) * (2 * math.random() - 1))); " +
+                    "local due = now + delay; " +
+                    "schedAdd(v, due); " +
+                    "return due; " +
+                "end; ";
+    }
+
+    /**
+     * 重试参数，与retryLua()的retryArgv对应
+     * @param now 当前时间戳
+     * @param leading 放在重试参数前面的参数
+     */
+    private Object[] retryParams(long now, Object... leading){
+        List<Object> params = new ArrayList<>(Arrays.asList(leading));
+        params.add(now);
+        params.add(options.getRetryDelayMs());
+        params.add(options.getRetryBackoffMultiplier());
+        params.add(options.getRetryMaxDelayMs());
+        params.add(options.getRetryJitter());
+        params.add(options.getMaxRetries());
+        params.add(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
+        return params.toArray();
+    }
+
     @Override
     public boolean tryCancel(String taskId) {
-        String lua = "local result = redis.call('ZREM', KEYS[2], KEYS[1]); "
+        String lua = scheduleLua(2, 7)
+                + "local result = schedRem(KEYS[1]); "
                 + "if result > 0 then "
                 + "redis.call('HDEL',KEYS[4],KEYS[1]);"
                 + "redis.call('HDEL',KEYS[5],KEYS[1]);"
@@ -237,10 +756,17 @@ public class RRedissonDelayedTask<V> extends RedissonObject implements RDelayedT
                 + "redis.call('HDEL',KEYS[5],KEYS[1]);"
                 + "return 1;"
                 + "end; "
+                // 死信表中的任务取消后清理保留的数据
+                + "local result2 = redis.call('ZREM', KEYS[6], KEYS[1]); "
+                + "if result2 > 0 then "
+                + "redis.call('HDEL',KEYS[4],KEYS[1]);"
+                + "redis.call('HDEL',KEYS[5],KEYS[1]);"
+                + "return 1;"
+                + "end; "
                 + "return 0;";
         return get(commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE,RedisCommands.EVAL_BOOLEAN,
                 lua,
-                Arrays.<Object>asList(taskId,taskScheduleName,taskQueueName,taskDataName,taskRetryName)
+                scheduleKeys(taskId,taskScheduleName,taskQueueName,taskDataName,taskRetryName,taskDeadName)
         ));
     }
 
@@ -274,15 +800,15 @@ public class RRedissonDelayedTask<V> extends RedissonObject implements RDelayedT
             throw new IllegalArgumentException("定时任务时间戳设置异常");
         }
         return commandExecutor.evalWriteAsync(getName(), codec, RedisCommands.EVAL_VOID,
-                "redis.call('zadd', KEYS[1], ARGV[1], KEYS[3]);"
+                scheduleLua(1, 5)
+                        + "schedAdd(KEYS[3], ARGV[1]);"
                         + "redis.call('hset', KEYS[2], KEYS[3], ARGV[2]);"
                         // if new object added to queue head when publish its startTime
                         // to all scheduler workers
-                        + "local v = redis.call('zrange', KEYS[1], 0, 0); "
-                        + "if v[1] == KEYS[3] then "
+                        + "if schedHead() == tonumber(ARGV[1]) then "
                         + "redis.call('publish', KEYS[4], ARGV[1]); "
                         + "end;",
-                Arrays.<Object>asList(taskScheduleName, taskDataName,taskId, scheduleChannelName),
+                scheduleKeys(bucketsOf(schedule), taskScheduleName, taskDataName,taskId, scheduleChannelName),
                 schedule, encode(data));
     }
 
@@ -291,6 +817,143 @@ public class RRedissonDelayedTask<V> extends RedissonObject implements RDelayedT
         return offerAsync(taskId, data, schedule.getTime());
     }
 
+    @Override
+    public void offerAll(Map<String, Map.Entry<V, Long>> tasks) {
+        get(offerAllAsync(tasks));
+    }
+
+    @Override
+    public RFuture<Void> offerAllAsync(Map<String, Map.Entry<V, Long>> tasks) {
+        if (tasks == null || tasks.isEmpty()) {
+            return RedissonPromise.newSucceededFuture(null);
+        }
+        // 先校验全部任务再编码任务数据，防止校验失败时已经编码的数据没有释放
+        long earliest = Long.MAX_VALUE;
+        for (Map.Entry<String, Map.Entry<V, Long>> task : tasks.entrySet()) {
+            if (task.getKey() == null || task.getValue() == null || task.getValue().getValue() == null) {
+                throw new IllegalArgumentException("任务id和定时任务时间戳不能为空");
+            }
+            if (task.getValue().getKey() == null) {
+                throw new IllegalArgumentException("任务数据不能为空:" + task.getKey());
+            }
+            long schedule = task.getValue().getValue();
+            if (schedule < 0) {
+                throw new IllegalArgumentException("定时任务时间戳设置异常");
+            }
+            earliest = Math.min(earliest, schedule);
+        }
+        List<List<Object>> chunks = new ArrayList<>();
+        List<List<String>> chunkIds = new ArrayList<>();
+        List<Object> chunk = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        try {
+            for (Map.Entry<String, Map.Entry<V, Long>> task : tasks.entrySet()) {
+                if (chunk.isEmpty()) {
+                    // 第一个参数是需要检查并通知的计划时间，只有最后一批需要检查
+                    chunk.add(-1L);
+                }
+                chunk.add(task.getKey());
+                chunk.add(task.getValue().getValue());
+                chunk.add(encode(task.getValue().getKey()));
+                ids.add(task.getKey());
+                if (ids.size() >= options.getOfferChunkSize()) {
+                    chunks.add(chunk);
+                    chunkIds.add(ids);
+                    chunk = new ArrayList<>();
+                    ids = new ArrayList<>();
+                }
+            }
+        } catch (RuntimeException e) {
+            chunks.add(chunk);
+            release(chunks);
+            throw e;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+            chunkIds.add(ids);
+        }
+        chunks.get(chunks.size() - 1).set(0, earliest);
+
+        RPromise<Void> result = new RedissonPromise<>();
+        offerChunk(chunks, chunkIds, 0, Long.MAX_VALUE, result);
+        return result;
+    }
+
+    /**
+     * 按顺序写入一批任务，上一批写入成功后再写入下一批
+     * 最后一批在同一个脚本中检查整批最早的任务是否成为计划表中最早的任务，是则通知，不需要额外的脚本调用
+     * 某一批写入失败时不再写入后面的批次，通过RDelayedTaskOfferException返回没有写入的任务id
+     * @param written 已经写入的任务中最早的计划时间，写入失败时用来补发通知
+     */
+    private void offerChunk(List<List<Object>> chunks, List<List<String>> chunkIds, int index, long written, RPromise<Void> result) {
+        List<Object> params = chunks.get(index);
+        long chunkEarliest = Long.MAX_VALUE;
+        long[] schedules = new long[(params.size() - 1) / 3];
+        for (int i = 2; i < params.size(); i += 3) {
+            long schedule = (Long) params.get(i);
+            schedules[i / 3] = schedule;
+            chunkEarliest = Math.min(chunkEarliest, schedule);
+        }
+        long writtenEarliest = Math.min(written, chunkEarliest);
+        RFuture<Void> future = commandExecutor.evalWriteAsync(getName(), codec, RedisCommands.EVAL_VOID,
+                scheduleLua(1, 4)
+                        + "for i = 2, #ARGV, 3 do "
+                        + "schedAdd(ARGV[i], ARGV[i + 1]); "
+                        + "redis.call('hset', KEYS[2], ARGV[i], ARGV[i + 2]); "
+                        + "end; "
+                        // 全部写入后只检查一次，批量中最早的任务成为计划表中最早的任务时才通知
+                        + "if tonumber(ARGV[1]) >= 0 and schedHead() == tonumber(ARGV[1]) then "
+                        + "redis.call('publish', KEYS[3], ARGV[1]); "
+                        + "end;",
+                scheduleKeys(bucketsOf(schedules), taskScheduleName, taskDataName, scheduleChannelName),
+                params.toArray());
+        future.onComplete((res, e) -> {
+            if (e != null) {
+                release(chunks.subList(index + 1, chunks.size()));
+                List<String> unwritten = new ArrayList<>();
+                for (List<String> ids : chunkIds.subList(index, chunkIds.size())) {
+                    unwritten.addAll(ids);
+                }
+                RDelayedTaskOfferException exception = new RDelayedTaskOfferException(unwritten, e);
+                if (written == Long.MAX_VALUE) {
+                    result.tryFailure(exception);
+                    return;
+                }
+                // 之前的批次已经写入，尽量补发一次通知，防止已经写入的任务延迟执行
+                publishIfEarliestAsync(written).onComplete((r, ex) -> result.tryFailure(exception));
+                return;
+            }
+            if (index + 1 < chunks.size()) {
+                offerChunk(chunks, chunkIds, index + 1, writtenEarliest, result);
+                return;
+            }
+            result.trySuccess(null);
+        });
+    }
+
+    /**
+     * 释放还没有发送的任务数据
+     */
+    private void release(List<List<Object>> chunks) {
+        for (List<Object> params : chunks) {
+            for (Object param : params) {
+                if (param instanceof ByteBuf) {
+                    ((ByteBuf) param).release();
+                }
+            }
+        }
+    }
+
+    private RFuture<Void> publishIfEarliestAsync(long schedule) {
+        return commandExecutor.evalWriteAsync(getName(), LongCodec.INSTANCE, RedisCommands.EVAL_VOID,
+                scheduleLua(1, 3)
+                        + "if schedHead() == tonumber(ARGV[1]) then "
+                        + "redis.call('publish', KEYS[2], ARGV[1]); "
+                        + "end;",
+                scheduleKeys(taskScheduleName, scheduleChannelName),
+                schedule);
+    }
+
     @Override
     public void destroy() {
         this.delayedTaskTransferService.remove(this.taskName);
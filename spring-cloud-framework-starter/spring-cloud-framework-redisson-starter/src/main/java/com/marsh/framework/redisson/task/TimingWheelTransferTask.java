@@ -0,0 +1,160 @@
+package com.marsh.framework.redisson.task;
+
+import io.netty.util.Timeout;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.QueueTransferTask;
+import org.redisson.RedissonShutdownException;
+import org.redisson.api.RFuture;
+import org.redisson.connection.ConnectionManager;
+import org.redisson.misc.RPromise;
+import org.redisson.misc.RedissonPromise;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 预取时间窗口的任务计划表转移任务
+ * QueueTransferTask只会给最早的一个任务计划时间设置定时器，每次到期后再查询下一个计划时间，密集的任务会产生大量的查询和通知
+ * 这里每次转移到期任务时会同时预取接下来prefetchWindowMs内的任务计划时间，按照tickMs对齐成时间格，
+ * 每个时间格在本地时间轮(redisson的netty HashedWheelTimer)上设置一个定时器，到期时一次性把这个时间格内的任务转移到任务队列中
+ * 多个节点同时预取时由转移脚本保证一个任务只会被转移一次
+ * @author Marsh
+ * @date 2022-07-07日 14:20
+ */
+@Slf4j
+public abstract class TimingWheelTransferTask extends QueueTransferTask {
+
+    private final ConnectionManager connectionManager;
+    private final long prefetchWindowMs;
+    private final long tickMs;
+    /**
+     * 本地时间轮上已经设置了定时器的时间格
+     */
+    private final Map<Long, Timeout> buckets = new ConcurrentHashMap<>();
+    /**
+     * 最近一次预取的时间窗口结束时间戳，窗口结束时QueueTransferTask会重新预取
+     */
+    private volatile long windowEnd;
+
+    public TimingWheelTransferTask(ConnectionManager connectionManager, long prefetchWindowMs, long tickMs) {
+        super(connectionManager);
+        this.connectionManager = connectionManager;
+        this.prefetchWindowMs = prefetchWindowMs;
+        this.tickMs = Math.max(tickMs, 1);
+    }
+
+    /**
+     * 预取时间窗口内最多设置的时间格数量
+     */
+    protected int getMaxBuckets() {
+        return (int) Math.min(prefetchWindowMs / tickMs + 1, 1000);
+    }
+
+    /**
+     * 转移已经到期的任务，并预取时间窗口内的时间格
+     * @param now 当前时间戳
+     * @param windowEnd 预取时间窗口的结束时间戳
+     * @param tickMs 时间格的毫秒数
+     * @param maxBuckets 最多返回的时间格数量
+     * @return org.redisson.api.RFuture<java.util.List<java.lang.Long>> 任务计划表为空时返回空集合，否则为 {最早的任务计划时间,时间格1,时间格2...}
+     */
+    protected abstract RFuture<List<Long>> transferAsync(long now, long windowEnd, long tickMs, int maxBuckets);
+
+    /**
+     * 只转移已经到期的任务，不预取时间格，时间格的定时器到期时使用
+     * @param now 当前时间戳
+     * @return org.redisson.api.RFuture<java.lang.Long> 转移后最早的任务计划时间，没有任务时返回null
+     */
+    protected abstract RFuture<Long> transferDueAsync(long now);
+
+    @Override
+    protected RFuture<Long> pushTaskAsync() {
+        RPromise<Long> result = new RedissonPromise<>();
+        long now = System.currentTimeMillis();
+        long windowEnd = now + prefetchWindowMs;
+        this.windowEnd = windowEnd;
+        int maxBuckets = getMaxBuckets();
+        transferAsync(now, windowEnd, tickMs, maxBuckets).onComplete((res, e) -> {
+            if (e != null) {
+                result.tryFailure(e);
+                return;
+            }
+            if (res == null || res.isEmpty()) {
+                result.trySuccess(null);
+                return;
+            }
+            for (int i = 1; i < res.size(); i++) {
+                scheduleBucket(res.get(i));
+            }
+            long head = res.get(0);
+            if (head <= now) {
+                // 超过单次转移数量的到期任务，立即继续转移
+                result.trySuccess(head);
+            } else if (head > windowEnd) {
+                // 时间窗口内没有任务，交给QueueTransferTask在对齐后的计划时间再来转移
+                result.trySuccess(alignTick(head));
+            } else if (res.size() - 1 >= maxBuckets) {
+                // 时间格数量达到上限，从最后一个时间格开始预取下一个窗口
+                result.trySuccess(res.get(res.size() - 1));
+            } else {
+                result.trySuccess(windowEnd);
+            }
+        });
+        return result;
+    }
+
+    private long alignTick(long time) {
+        return (time + tickMs - 1) / tickMs * tickMs;
+    }
+
+    private void scheduleBucket(Long bucket) {
+        if (buckets.containsKey(bucket)) {
+            return;
+        }
+        long delay = Math.max(bucket - System.currentTimeMillis(), 0);
+        Timeout timeout = connectionManager.newTimeout(t -> {
+            buckets.remove(bucket, t);
+            transferBucket();
+        }, delay, TimeUnit.MILLISECONDS);
+        if (buckets.putIfAbsent(bucket, timeout) != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * 转移时间格内到期的任务，窗口内的时间格已经在预取时设置过，这里不再预取
+     * 到期任务超过单次转移数量时立即继续转移，不等待下一个时间格
+     * 预取之后投递的任务如果不是最早的任务不会发布通知，也就没有时间格，所以每次转移后给新的最早任务设置时间格，
+     * 这样窗口内的任务最多延迟一个时间格执行，不会等到窗口结束时才被转移
+     */
+    private void transferBucket() {
+        long now = System.currentTimeMillis();
+        transferDueAsync(now).onComplete((head, e) -> {
+            if (e != null) {
+                if (!(e instanceof RedissonShutdownException)) {
+                    log.error(e.getMessage(), e);
+                }
+                return;
+            }
+            if (head == null) {
+                return;
+            }
+            if (head <= now) {
+                transferBucket();
+            } else if (head <= windowEnd) {
+                scheduleBucket(alignTick(head));
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        for (Timeout timeout : buckets.values()) {
+            timeout.cancel();
+        }
+        buckets.clear();
+    }
+}
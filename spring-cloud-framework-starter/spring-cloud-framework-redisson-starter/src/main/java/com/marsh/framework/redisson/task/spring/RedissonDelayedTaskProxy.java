@@ -3,6 +3,7 @@ package com.marsh.framework.redisson.task.spring;
 import com.marsh.framework.redisson.task.DelayedTaskTransferService;
 import com.marsh.framework.redisson.task.RDelayedTask;
 import com.marsh.framework.redisson.task.RDelayedTaskHandler;
+import com.marsh.framework.redisson.task.RDelayedTaskOptions;
 import com.marsh.framework.redisson.task.RRedissonDelayedTask;
 import lombok.Getter;
 import org.redisson.Redisson;
@@ -11,6 +12,7 @@ import org.redisson.client.codec.Codec;
 import org.redisson.client.codec.StringCodec;
 
 import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -58,8 +60,15 @@ public class RedissonDelayedTaskProxy<V> implements RDelayedTask<V> {
     }
 
     public RedissonDelayedTaskProxy(Redisson redisson, String taskType, Codec codec, RDelayedTaskHandler<V> delayedTaskHandler){
+        this(redisson,taskType,codec,delayedTaskHandler,RDelayedTaskOptions.defaults());
+    }
+
+    /**
+     * 使用自定义配置创建延时任务，例如并发执行任务，具体配置参考RDelayedTaskOptions
+     */
+    public RedissonDelayedTaskProxy(Redisson redisson, String taskType, Codec codec, RDelayedTaskHandler<V> delayedTaskHandler, RDelayedTaskOptions options){
         this(new RRedissonDelayedTask(taskType, codec,
-                DELAYED_TASK_TRANSFER_SERVICE, redisson.getCommandExecutor(),delayedTaskHandler));
+                DELAYED_TASK_TRANSFER_SERVICE, redisson.getCommandExecutor(),delayedTaskHandler,options));
     }
 
     @Override
@@ -97,6 +106,16 @@ public class RedissonDelayedTaskProxy<V> implements RDelayedTask<V> {
         return proxy.offerAsync(taskId,data,schedule);
     }
 
+    @Override
+    public void offerAll(Map<String, Map.Entry<V, Long>> tasks) {
+        proxy.offerAll(tasks);
+    }
+
+    @Override
+    public RFuture<Void> offerAllAsync(Map<String, Map.Entry<V, Long>> tasks) {
+        return proxy.offerAllAsync(tasks);
+    }
+
     @Override
     public void destroy() {
         proxy.destroy();
@@ -0,0 +1,123 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.queue.AckBatcher;
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import com.marsh.framework.redisson.queue.RAckQueueOptions;
+import org.junit.Assert;
+import org.junit.Test;
+import org.redisson.api.RFuture;
+import org.redisson.client.codec.StringCodec;
+import org.redisson.misc.RedissonPromise;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * ack合并器测试
+ * @author Marsh
+ * @date 2022-07-12日 10:05
+ */
+public class AckBatcherTest extends RedisTestSupport {
+
+    /**
+     * 每次批量提交的消息id
+     */
+    private final List<List<String>> sent = new CopyOnWriteArrayList<>();
+
+    /**
+     * 记录提交的消息id，除了"lost"以外都确认成功
+     */
+    private final Function<List<String>, RFuture<List<String>>> sender = ids -> {
+        sent.add(ids);
+        List<String> acked = new ArrayList<>(ids);
+        acked.remove("lost");
+        return RedissonPromise.newSucceededFuture(acked);
+    };
+
+    private AckBatcher batcher(int batchSize, long intervalMs){
+        return new AckBatcher(sender, redisson.getCommandExecutor().getConnectionManager(), batchSize, intervalMs);
+    }
+
+    @Test
+    public void fullBatchIsSentAtOnce() throws Exception {
+        AckBatcher batcher = batcher(3, 60000L);
+        RFuture<Boolean> a = batcher.add("a");
+        RFuture<Boolean> lost = batcher.add("lost");
+        Assert.assertTrue(sent.isEmpty());
+        RFuture<Boolean> c = batcher.add("c");
+
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(Arrays.asList("a", "lost", "c"), sent.get(0));
+        Assert.assertTrue(a.get(1, TimeUnit.SECONDS));
+        Assert.assertFalse(lost.get(1, TimeUnit.SECONDS));
+        Assert.assertTrue(c.get(1, TimeUnit.SECONDS));
+        batcher.destroy();
+    }
+
+    @Test
+    public void partialBatchIsSentAfterInterval() throws Exception {
+        AckBatcher batcher = batcher(100, 50L);
+        RFuture<Boolean> a = batcher.add("a");
+        RFuture<Boolean> b = batcher.add("b");
+        Assert.assertTrue(a.get(2, TimeUnit.SECONDS));
+        Assert.assertTrue(b.get(2, TimeUnit.SECONDS));
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(Arrays.asList("a", "b"), sent.get(0));
+        batcher.destroy();
+    }
+
+    @Test
+    public void destroyFlushesAndStopsBuffering() throws Exception {
+        AckBatcher batcher = batcher(100, 60000L);
+        RFuture<Boolean> a = batcher.add("a");
+        batcher.destroy();
+        Assert.assertTrue(a.get(1, TimeUnit.SECONDS));
+
+        // 销毁后添加的ack直接提交
+        Assert.assertTrue(batcher.add("b").get(1, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("b")), sent);
+    }
+
+    @Test
+    public void failedSendFailsEveryAck() throws Exception {
+        AckBatcher batcher = new AckBatcher(ids -> RedissonPromise.newFailedFuture(new IllegalStateException("down")),
+                redisson.getCommandExecutor().getConnectionManager(), 2, 60000L);
+        RFuture<Boolean> a = batcher.add("a");
+        RFuture<Boolean> b = batcher.add("b");
+        for (RFuture<Boolean> future : Arrays.asList(a, b)){
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                Assert.fail("提交失败时应该抛出异常");
+            } catch (ExecutionException e){
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        batcher.destroy();
+    }
+
+    @Test
+    public void queueAcksThroughBatcher(){
+        RAckQueueOptions options = RAckQueueOptions.defaults();
+        options.setAckBatchSize(10);
+        options.setAckBatchIntervalMs(20L);
+        RAckQueue<String> queue = new RAckQueue<>(redisson, randomName("ack_batch"), StringCodec.INSTANCE, options);
+        try {
+            queue.push(Arrays.asList("a", "b"));
+            List<RAckQueueData<String>> datas = queue.pop(2);
+            Assert.assertTrue(queue.ack(datas.get(0).getId()));
+            Assert.assertTrue(queue.ack(datas.get(1).getId()));
+            // 已经确认的消息再次确认失败
+            Assert.assertFalse(queue.ack(datas.get(0).getId()));
+            Assert.assertEquals(0, queue.getStats().getInFlight());
+        } finally {
+            queue.destroy();
+            deleteKeys(queue.getName());
+        }
+    }
+}
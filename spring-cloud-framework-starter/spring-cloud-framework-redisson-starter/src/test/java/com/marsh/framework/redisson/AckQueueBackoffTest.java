@@ -0,0 +1,133 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.codec.GsonCodec;
+import com.marsh.framework.redisson.queue.MyQueueData;
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 退避重试测试，回滚的消息进入延迟重试队列，到期后由清理任务放回数据队列
+ * @author Marsh
+ * @date 2022-07-09日 11:05
+ */
+public class AckQueueBackoffTest extends RedisTestSupport {
+
+    private static final long BACKOFF_MS = 300L;
+
+    private RAckQueue<MyQueueData> queue;
+
+    @Before
+    public void init(){
+        queue = new RAckQueue<MyQueueData>(redisson, randomName("backoff"), new GsonCodec(MyQueueData.class)) {
+            @Override
+            public Long getExecutionTimeoutMs(){
+                return 30000L;
+            }
+
+            @Override
+            public int getRetryNumber(){
+                return 2;
+            }
+
+            @Override
+            public long getRetryBackoffMs(){
+                return BACKOFF_MS;
+            }
+
+            @Override
+            public double getRetryBackoffJitter(){
+                return 0;
+            }
+        };
+    }
+
+    @After
+    public void destroy(){
+        queue.destroy();
+        deleteKeys(queue.getName());
+    }
+
+    private static MyQueueData data(String name){
+        MyQueueData data = new MyQueueData();
+        data.setId(name);
+        data.setName(name);
+        return data;
+    }
+
+    private void unack(String id){
+        queue.unackAsync(Collections.singletonList(id)).syncUninterruptibly();
+    }
+
+    /**
+     * 等待消息重新可以被取出，返回等待的毫秒数
+     */
+    private long awaitRedelivery(String id, long timeoutMs) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        AtomicReference<RAckQueueData<MyQueueData>> popped = new AtomicReference<>();
+        Assert.assertTrue("退避到期后消息没有放回队列", await(() -> {
+            popped.set(queue.pop());
+            return popped.get() != null;
+        }, timeoutMs));
+        Assert.assertEquals(id, popped.get().getId());
+        return System.currentTimeMillis() - start;
+    }
+
+    @Test
+    public void unackWaitsForBackoff() throws InterruptedException {
+        String id = queue.push(data("a"));
+        Assert.assertEquals(id, queue.pop().getId());
+        unack(id);
+
+        // 退避期间消息不可取出，处于延迟重试状态
+        Assert.assertNull(queue.pop());
+        Assert.assertEquals(1, queue.getStats().getDelayed());
+        Assert.assertEquals(0, queue.getStats().getReady());
+
+        long waited = awaitRedelivery(id, BACKOFF_MS + 2000L);
+        Assert.assertTrue("消息提前放回了队列:" + waited, waited >= BACKOFF_MS - 50L);
+        Assert.assertEquals(0, queue.getStats().getDelayed());
+    }
+
+    @Test
+    public void backoffGrowsExponentially() throws InterruptedException {
+        String id = queue.push(data("a"));
+        Assert.assertEquals(id, queue.pop().getId());
+        unack(id);
+        awaitRedelivery(id, BACKOFF_MS + 2000L);
+
+        // 第二次重试的延迟为 BACKOFF_MS * 2
+        unack(id);
+        long waited = awaitRedelivery(id, BACKOFF_MS * 2 + 2000L);
+        Assert.assertTrue("第二次退避没有翻倍:" + waited, waited >= BACKOFF_MS * 2 - 50L);
+
+        // 超过最大重试次数放入失败队列
+        unack(id);
+        Assert.assertNull(queue.pop());
+        Assert.assertEquals(1, queue.getStats().getDead());
+        Assert.assertEquals(0, queue.getStats().getDelayed());
+    }
+
+    @Test
+    public void longVisibilityDoesNotDelayPromotion() throws InterruptedException {
+        String a = queue.push(data("a"));
+        String b = queue.push(data("b"));
+        Assert.assertEquals(a, queue.pop().getId());
+        unack(a);
+
+        // a的重试时间更早，之后取出b并设置很长的可见时间，不能把清理定时器推迟到b超时的时候
+        Assert.assertEquals(b, queue.pop(1, Duration.ofMinutes(10)).get(0).getId());
+        Assert.assertTrue(queue.touch(b, Duration.ofMinutes(20)));
+
+        awaitRedelivery(a, BACKOFF_MS + 2000L);
+        Assert.assertTrue(queue.ack(a));
+        Assert.assertTrue(queue.ack(b));
+    }
+}
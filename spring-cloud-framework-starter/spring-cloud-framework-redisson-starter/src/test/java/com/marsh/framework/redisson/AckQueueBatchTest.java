@@ -0,0 +1,90 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 大批量ack和回滚测试，消息id按照分片大小拆分成多次脚本调用并通过一次pipeline发送
+ * @author Marsh
+ * @date 2022-07-12日 09:40
+ */
+public class AckQueueBatchTest extends RedisTestSupport {
+
+    private RAckQueue<String> queue;
+
+    @Before
+    public void init(){
+        queue = new RAckQueue<>(redisson, randomName("batch"), StringCodec.INSTANCE);
+    }
+
+    @After
+    public void destroy(){
+        queue.destroy();
+        deleteKeys(queue.getName());
+    }
+
+    private List<String> pushAndPop(int count){
+        List<String> datas = new ArrayList<>();
+        for (int i = 0; i < count; i++){
+            datas.add("msg" + i);
+        }
+        queue.push(datas);
+        List<String> ids = new ArrayList<>();
+        for (RAckQueueData<String> data : queue.pop(count)){
+            ids.add(data.getId());
+        }
+        Assert.assertEquals(count, ids.size());
+        return ids;
+    }
+
+    @Test
+    public void ackAllAcrossChunks(){
+        List<String> ids = pushAndPop(10);
+        List<String> request = new ArrayList<>(ids);
+        request.add("unknown");
+
+        Map<String, Boolean> results = queue.ackAll(request, 3);
+        Assert.assertEquals(request, new ArrayList<>(results.keySet()));
+        for (String id : ids){
+            Assert.assertTrue(id, results.get(id));
+        }
+        // 不在处理中的消息确认失败
+        Assert.assertFalse(results.get("unknown"));
+        Assert.assertEquals(0, queue.getStats().getInFlight());
+
+        // 已经确认的消息再次确认失败
+        Assert.assertFalse(queue.ackAll(ids.subList(0, 1), 3).get(ids.get(0)));
+    }
+
+    @Test
+    public void unackAllAcrossChunks(){
+        List<String> ids = pushAndPop(7);
+        Map<String, Boolean> results = queue.unackAll(ids, 2);
+        Assert.assertEquals(7, results.size());
+        Assert.assertFalse(results.containsValue(false));
+        Assert.assertEquals(0, queue.getStats().getInFlight());
+        Assert.assertEquals(7, queue.getStats().getReady());
+        Assert.assertEquals(7, queue.pop(10).size());
+    }
+
+    @Test
+    public void emptyIdsReturnEmptyResult(){
+        Assert.assertTrue(queue.ackAll(Collections.emptyList()).isEmpty());
+        Assert.assertTrue(queue.unackAll(null).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveChunkSizeIsRejected(){
+        queue.ackAll(Collections.singletonList("id"), 0);
+    }
+}
@@ -0,0 +1,81 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import com.marsh.framework.redisson.queue.RAckQueueOptions;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 紧凑消息id测试
+ * @author Marsh
+ * @date 2022-07-12日 11:30
+ */
+public class AckQueueCompactIdTest extends RedisTestSupport {
+
+    private RAckQueue<String> queue;
+
+    @Before
+    public void init(){
+        RAckQueueOptions options = RAckQueueOptions.defaults();
+        options.setCompactId(true);
+        queue = new RAckQueue<>(redisson, randomName("compact_id"), StringCodec.INSTANCE, options);
+    }
+
+    @After
+    public void destroy(){
+        queue.destroy();
+        deleteKeys(queue.getName());
+    }
+
+    @Test
+    public void idsAreIncreasingBase36(){
+        List<String> datas = new ArrayList<>();
+        for (int i = 0; i < 12; i++){
+            datas.add("msg" + i);
+        }
+        List<String> ids = queue.push(datas);
+        Assert.assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8", "9", "a", "b", "c"), ids);
+        // 后续放置的数据继续递增
+        Assert.assertEquals("d", queue.push("msg"));
+    }
+
+    @Test
+    public void compactIdsPopAndAck(){
+        List<String> ids = queue.push(Arrays.asList("a", "b"));
+        List<RAckQueueData<String>> datas = queue.pop(2);
+        Assert.assertEquals(ids.get(0), datas.get(0).getId());
+        Assert.assertEquals("a", datas.get(0).getData());
+        Assert.assertEquals(ids.get(1), datas.get(1).getId());
+        Assert.assertEquals("b", datas.get(1).getData());
+        Assert.assertTrue(queue.ack(ids.get(0)));
+        Assert.assertTrue(queue.unackAll(ids.subList(1, 2)).get(ids.get(1)));
+        Assert.assertEquals(1, queue.getStats().getReady());
+        Assert.assertEquals(ids.get(1), queue.pop().getId());
+    }
+
+    @Test
+    public void uuidAndCompactIdsCoexist(){
+        // 同一个队列切换配置前后的消息id可以共存
+        RAckQueue<String> uuidQueue = new RAckQueue<>(redisson, queue.getName(), StringCodec.INSTANCE);
+        String uuid = uuidQueue.push("old");
+        String compact = queue.push("new");
+        Assert.assertEquals(36, uuid.length());
+        Assert.assertEquals("1", compact);
+
+        List<RAckQueueData<String>> datas = queue.pop(2);
+        Assert.assertEquals(uuid, datas.get(0).getId());
+        Assert.assertEquals("old", datas.get(0).getData());
+        Assert.assertEquals(compact, datas.get(1).getId());
+        Assert.assertEquals("new", datas.get(1).getData());
+        Assert.assertTrue(queue.ack(uuid));
+        Assert.assertTrue(queue.ack(compact));
+    }
+}
@@ -0,0 +1,170 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.codec.GsonCodec;
+import com.marsh.framework.redisson.queue.MyQueueData;
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.redisson.RedissonObject;
+import org.redisson.api.RMap;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 孤儿数据清理测试
+ * @author Marsh
+ * @date 2022-07-09日 15:40
+ */
+public class AckQueueCompactTest extends RedisTestSupport {
+
+    private final List<RAckQueue<MyQueueData>> queues = new ArrayList<>();
+
+    @After
+    public void destroy(){
+        for (RAckQueue<MyQueueData> queue : queues){
+            queue.destroy();
+            deleteKeys(queue.getName());
+        }
+    }
+
+    private <Q extends RAckQueue<MyQueueData>> Q register(Q queue){
+        queues.add(queue);
+        return queue;
+    }
+
+    private static MyQueueData data(String name){
+        MyQueueData data = new MyQueueData();
+        data.setId(name);
+        data.setName(name);
+        return data;
+    }
+
+    private RMap<String, String> hash(RAckQueue<?> queue, String suffix){
+        return redisson.getMap(RedissonObject.suffixName(RedissonObject.prefixName("redisson_ack_queue", queue.getName()), suffix), StringCodec.INSTANCE);
+    }
+
+    @Test
+    public void compactRemovesOrphansAndKeepsLiveMessages(){
+        RAckQueue<MyQueueData> queue = register(new RAckQueue<>(redisson, randomName("compact"), new GsonCodec(MyQueueData.class)));
+        String ready = queue.push(data("ready"));
+        String inFlight = queue.push(data("inFlight"));
+        Assert.assertEquals(ready, queue.pop().getId());
+        queue.unackAsync(Collections.singletonList(ready)).syncUninterruptibly();
+        Assert.assertEquals(ready, queue.pop(ready).getId());
+        queue.unackAsync(Collections.singletonList(ready)).syncUninterruptibly();
+        Assert.assertEquals(inFlight, queue.pop(inFlight).getId());
+
+        // 不在任何队列中的孤儿数据，分别只存在于其中一张hash表
+        hash(queue, "data").put("orphan_data", "{}");
+        hash(queue, "retry").put("orphan_retry", "1");
+        hash(queue, "priority").put("orphan_priority", "1");
+        hash(queue, "time").put("orphan_time", "1");
+
+        Assert.assertEquals(4, queue.compact());
+        Assert.assertFalse(hash(queue, "data").containsKey("orphan_data"));
+        Assert.assertFalse(hash(queue, "retry").containsKey("orphan_retry"));
+        Assert.assertFalse(hash(queue, "priority").containsKey("orphan_priority"));
+        Assert.assertFalse(hash(queue, "time").containsKey("orphan_time"));
+
+        // 数据队列和超时队列中的消息数据和重试次数都保留
+        Assert.assertEquals("2", hash(queue, "retry").get(ready));
+        RAckQueueData<MyQueueData> popped = queue.pop();
+        Assert.assertEquals(ready, popped.getId());
+        Assert.assertEquals("ready", popped.getData().getName());
+        Assert.assertTrue(queue.ack(ready));
+        Assert.assertTrue(queue.ack(inFlight));
+        Assert.assertEquals(0, queue.compact());
+    }
+
+    @Test
+    public void compactSkipsLongLists(){
+        RAckQueue<MyQueueData> queue = register(new RAckQueue<MyQueueData>(redisson, randomName("compact_long"), new GsonCodec(MyQueueData.class)) {
+            @Override
+            public int getCompactMaxListLength(){
+                return 1;
+            }
+        });
+        queue.push(data("a"));
+        queue.push(data("b"));
+        hash(queue, "data").put("orphan", "{}");
+
+        // 队列长度超过限制时跳过清理
+        Assert.assertEquals(0, queue.compact());
+        Assert.assertTrue(hash(queue, "data").containsKey("orphan"));
+
+        queue.pop();
+        Assert.assertEquals(1, queue.compact());
+        Assert.assertFalse(hash(queue, "data").containsKey("orphan"));
+    }
+
+    @Test
+    public void compactLimitCountsAllPriorityLanes(){
+        RAckQueue<MyQueueData> queue = register(new RAckQueue<MyQueueData>(redisson, randomName("compact_lanes"), new GsonCodec(MyQueueData.class)) {
+            @Override
+            public int getPriorityLevels(){
+                return 2;
+            }
+
+            @Override
+            public int getCompactMaxListLength(){
+                return 1;
+            }
+        });
+        queue.push(data("high"), 1);
+        String low = queue.push(data("low"), 0);
+        hash(queue, "data").put("orphan", "{}");
+
+        // 每个优先级队列都没有超过限制，但总长度超过了
+        Assert.assertEquals(0, queue.compact());
+        Assert.assertTrue(hash(queue, "data").containsKey("orphan"));
+
+        queue.pop();
+        Assert.assertEquals(1, queue.compact());
+        Assert.assertFalse(hash(queue, "data").containsKey("orphan"));
+        Assert.assertEquals(low, queue.pop().getId());
+    }
+
+    @Test
+    public void compactPurgesExpiredErrors() throws InterruptedException {
+        RAckQueue<MyQueueData> queue = register(new RAckQueue<MyQueueData>(redisson, randomName("compact_error"), new GsonCodec(MyQueueData.class)) {
+            @Override
+            public int getRetryNumber(){
+                return 0;
+            }
+
+            @Override
+            public long getErrorRetentionMs(){
+                return 50L;
+            }
+        });
+        String id = queue.push(data("a"));
+        queue.pop();
+        queue.unackAsync(Collections.singletonList(id)).syncUninterruptibly();
+        Assert.assertEquals(1, queue.getStats().getDead());
+
+        Thread.sleep(100L);
+        queue.compact();
+        Assert.assertEquals(0, queue.getStats().getDead());
+        Assert.assertFalse(hash(queue, "data").containsKey(id));
+    }
+
+    @Test
+    public void backgroundCompact() throws InterruptedException {
+        RAckQueue<MyQueueData> queue = register(new RAckQueue<MyQueueData>(redisson, randomName("compact_bg"), new GsonCodec(MyQueueData.class)) {
+            @Override
+            public long getCompactIntervalMs(){
+                return 50L;
+            }
+        });
+        String id = queue.push(data("a"));
+        hash(queue, "data").put("orphan", "{}");
+
+        Assert.assertTrue(await(() -> !hash(queue, "data").containsKey("orphan"), 3000L));
+        Assert.assertEquals(id, queue.pop().getId());
+    }
+}
@@ -0,0 +1,103 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueConsumer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.RedissonObject;
+import org.redisson.api.RMap;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RAckQueue消费者测试
+ * @author Marsh
+ * @date 2022-07-11日 15:10
+ */
+public class AckQueueConsumerTest extends RedisTestSupport {
+
+    private RAckQueue<String> queue;
+    private RAckQueueConsumer<String> consumer;
+
+    @Before
+    public void init(){
+        queue = new RAckQueue<>(redisson, randomName("consumer"), StringCodec.INSTANCE);
+    }
+
+    @After
+    public void destroy(){
+        if (consumer != null){
+            consumer.destroy();
+        }
+        queue.destroy();
+        deleteKeys(queue.getName());
+    }
+
+    private RMap<String, String> retryHash(){
+        return redisson.getMap(RedissonObject.suffixName(RedissonObject.prefixName("redisson_ack_queue", queue.getName()), "retry"), StringCodec.INSTANCE);
+    }
+
+    @Test
+    public void processesAndAcks() throws InterruptedException {
+        List<String> handled = new CopyOnWriteArrayList<>();
+        consumer = new RAckQueueConsumer<>(queue, data -> handled.add(data.getData()), 4);
+        consumer.start();
+        queue.push(Arrays.asList("a", "b", "c", "d", "e"));
+
+        Assert.assertTrue(await(() -> handled.size() == 5, 5000L));
+        Assert.assertTrue(handled.containsAll(Arrays.asList("a", "b", "c", "d", "e")));
+        Assert.assertTrue(await(() -> queue.getStats().getInFlight() == 0, 2000L));
+        Assert.assertEquals(0, consumer.getAckFailureCount());
+    }
+
+    @Test
+    public void failureIsRetried() throws InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+        consumer = new RAckQueueConsumer<>(queue, data -> {
+            if (attempts.incrementAndGet() == 1){
+                throw new IllegalStateException("第一次处理失败");
+            }
+        }, 1);
+        consumer.start();
+        String id = queue.push("a");
+
+        Assert.assertTrue(await(() -> attempts.get() == 2, 5000L));
+        Assert.assertTrue(await(() -> queue.getStats().getInFlight() == 0, 2000L));
+        Assert.assertFalse("ack后清理重试次数", retryHash().containsKey(id));
+    }
+
+    @Test
+    public void rejectedMessageIsReleasedWithoutRetry() throws InterruptedException {
+        AtomicInteger rejected = new AtomicInteger();
+        List<String> handled = new CopyOnWriteArrayList<>();
+        // 第一次提交被拒绝，之后在调用线程中直接执行
+        Executor executor = command -> {
+            if (rejected.getAndIncrement() == 0){
+                throw new RejectedExecutionException();
+            }
+            command.run();
+        };
+        List<String> retries = new CopyOnWriteArrayList<>();
+        consumer = new RAckQueueConsumer<>(queue, data -> {
+            String retry = retryHash().get(data.getId());
+            if (retry != null){
+                retries.add(retry);
+            }
+            handled.add(data.getData());
+        }, executor, 1);
+        consumer.start();
+        queue.push("a");
+
+        Assert.assertTrue(await(() -> handled.size() == 1, 5000L));
+        Assert.assertEquals("a", handled.get(0));
+        Assert.assertTrue("被拒绝的消息不增加重试次数:" + retries, retries.isEmpty());
+    }
+}
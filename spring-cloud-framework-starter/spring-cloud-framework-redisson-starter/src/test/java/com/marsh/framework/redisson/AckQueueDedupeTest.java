@@ -0,0 +1,99 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import java.time.Duration;
+
+/**
+ * 按照业务key去重放置数据测试
+ * @author Marsh
+ * @date 2022-07-11日 14:20
+ */
+public class AckQueueDedupeTest extends RedisTestSupport {
+
+    private RAckQueue<String> queue;
+
+    @Before
+    public void init(){
+        queue = new RAckQueue<>(redisson, randomName("dedupe"), StringCodec.INSTANCE);
+    }
+
+    @After
+    public void destroy(){
+        queue.destroy();
+        deleteKeys(queue.getName());
+    }
+
+    @Test
+    public void duplicateKeyReturnsExistingId(){
+        String id = queue.pushIfAbsent("order-1", "a", Duration.ofMinutes(1));
+        Assert.assertNotEquals("", id);
+        Assert.assertEquals(id, queue.pushIfAbsent("order-1", "b", Duration.ofMinutes(1)));
+        Assert.assertEquals(1, queue.getStats().getReady());
+
+        // 消息被取出并确认后，窗口内仍然返回原来的消息id
+        RAckQueueData<String> data = queue.pop();
+        Assert.assertEquals(id, data.getId());
+        Assert.assertEquals("a", data.getData());
+        Assert.assertTrue(queue.ack(id));
+        Assert.assertEquals(id, queue.pushIfAbsent("order-1", "c", Duration.ofMinutes(1)));
+        Assert.assertNull(queue.pop());
+    }
+
+    @Test
+    public void differentKeysArePushedSeparately(){
+        String first = queue.pushIfAbsent("order-1", "a", Duration.ofMinutes(1));
+        String second = queue.pushIfAbsent("order-2", "b", Duration.ofMinutes(1));
+        Assert.assertNotEquals(first, second);
+        Assert.assertEquals(2, queue.getStats().getReady());
+    }
+
+    @Test
+    public void keyCanBeReusedAfterWindow() throws InterruptedException {
+        String first = queue.pushIfAbsent("order-1", "a", Duration.ofMillis(100));
+        Thread.sleep(300L);
+        String second = queue.pushIfAbsent("order-1", "b", Duration.ofMillis(100));
+        Assert.assertNotEquals(first, second);
+        Assert.assertEquals(2, queue.getStats().getReady());
+    }
+
+    @Test
+    public void compactIdIsUsedForDedupe(){
+        RAckQueue<String> compact = new RAckQueue<String>(redisson, randomName("dedupe_compact"), StringCodec.INSTANCE) {
+            @Override
+            public boolean isCompactId(){
+                return true;
+            }
+        };
+        try {
+            String id = compact.pushIfAbsent("order-1", "a", Duration.ofMinutes(1));
+            Assert.assertTrue("紧凑id应该远短于uuid:" + id, id.length() < 10);
+            Assert.assertEquals(id, compact.pushIfAbsent("order-1", "b", Duration.ofMinutes(1)));
+            Assert.assertEquals(id, compact.pop().getId());
+        } finally {
+            compact.destroy();
+            deleteKeys(compact.getName());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void blankKeyIsRejected(){
+        queue.pushIfAbsent(" ", "a", Duration.ofMinutes(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullDataIsRejected(){
+        queue.pushIfAbsent("order-1", null, Duration.ofMinutes(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyWindowIsRejected(){
+        queue.pushIfAbsent("order-1", "a", Duration.ZERO);
+    }
+}
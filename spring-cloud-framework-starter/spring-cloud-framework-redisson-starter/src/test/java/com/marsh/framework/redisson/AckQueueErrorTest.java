@@ -0,0 +1,199 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.codec.GsonCodec;
+import com.marsh.framework.redisson.queue.MyQueueData;
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import com.marsh.framework.redisson.queue.RAckQueueErrorData;
+import com.marsh.framework.redisson.queue.RAckQueueErrorPage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.RedissonObject;
+import org.redisson.client.codec.StringCodec;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * 失败队列的查询、重放和清理测试
+ * @author Marsh
+ * @date 2022-07-09日 14:20
+ */
+public class AckQueueErrorTest extends RedisTestSupport {
+
+    private RAckQueue<MyQueueData> queue;
+
+    @Before
+    public void init(){
+        queue = new RAckQueue<MyQueueData>(redisson, randomName("error"), new GsonCodec(MyQueueData.class)) {
+            /**
+             * 不重试，回滚的消息直接放入失败队列
+             */
+            @Override
+            public int getRetryNumber(){
+                return 0;
+            }
+        };
+    }
+
+    @After
+    public void destroy(){
+        queue.destroy();
+        deleteKeys(queue.getName());
+    }
+
+    private static MyQueueData data(String name){
+        MyQueueData data = new MyQueueData();
+        data.setId(name);
+        data.setName(name);
+        return data;
+    }
+
+    /**
+     * 投递并回滚消息，每条消息的失败时间不同，保证失败队列中的顺序和投递顺序一致
+     */
+    private List<String> fail(String... names) throws InterruptedException {
+        List<String> ids = new ArrayList<>();
+        for (String name : names){
+            queue.push(data(name));
+            RAckQueueData<MyQueueData> popped = queue.pop();
+            Assert.assertEquals(name, popped.getData().getName());
+            queue.unackAsync(Collections.singletonList(popped.getId())).syncUninterruptibly();
+            ids.add(popped.getId());
+            Thread.sleep(5L);
+        }
+        return ids;
+    }
+
+    @Test
+    public void listErrorsByPage() throws InterruptedException {
+        List<String> ids = fail("a", "b", "c");
+        Assert.assertNull(queue.pop());
+        Assert.assertEquals(3, queue.getStats().getDead());
+
+        RAckQueueErrorPage<MyQueueData> first = queue.listErrors(null, 2);
+        Assert.assertEquals(2, first.getErrors().size());
+        Assert.assertNotNull(first.getNextCursor());
+        Assert.assertEquals(ids.get(0), first.getErrors().get(0).getId());
+        Assert.assertEquals("a", first.getErrors().get(0).getData().getName());
+
+        RAckQueueErrorPage<MyQueueData> second = queue.listErrors(first.getNextCursor(), 2);
+        Assert.assertEquals(1, second.getErrors().size());
+        Assert.assertNull(second.getNextCursor());
+        RAckQueueErrorData<MyQueueData> last = second.getErrors().get(0);
+        Assert.assertEquals(ids.get(2), last.getId());
+        Assert.assertTrue(last.getErrorTime() > 0);
+    }
+
+    @Test
+    public void pagingSurvivesConcurrentChanges() throws InterruptedException {
+        List<String> ids = fail("a", "b", "c");
+        RAckQueueErrorPage<MyQueueData> first = queue.listErrors(null, 2);
+        Assert.assertEquals(ids.get(1), first.getErrors().get(1).getId());
+
+        // 翻页期间前面的消息离开失败队列，新的消息进入失败队列，下一页仍然从游标之后继续
+        queue.replayErrors(Collections.singletonList(ids.get(0)));
+        List<String> more = fail("d");
+        RAckQueueErrorPage<MyQueueData> second = queue.listErrors(first.getNextCursor(), 10);
+        Assert.assertEquals(2, second.getErrors().size());
+        Assert.assertEquals(ids.get(2), second.getErrors().get(0).getId());
+        Assert.assertEquals(more.get(0), second.getErrors().get(1).getId());
+    }
+
+    @Test
+    public void pagingSameErrorTime(){
+        List<String> ids = new ArrayList<>();
+        for (String name : new String[]{"a", "b", "c", "d", "e"}){
+            queue.push(data(name));
+            ids.add(queue.pop().getId());
+        }
+        // 一次回滚的消息失败时间相同，按照消息id排序翻页
+        queue.unackAll(ids);
+        Assert.assertEquals(5, queue.getStats().getDead());
+
+        List<String> listed = new ArrayList<>();
+        String cursor = null;
+        do {
+            RAckQueueErrorPage<MyQueueData> page = queue.listErrors(cursor, 2);
+            for (RAckQueueErrorData<MyQueueData> error : page.getErrors()){
+                listed.add(error.getId());
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        Assert.assertEquals(5, listed.size());
+        Assert.assertEquals(5, new HashSet<>(listed).size());
+        Assert.assertTrue(listed.containsAll(ids));
+    }
+
+    @Test
+    public void replayWithFilter() throws InterruptedException {
+        List<String> ids = fail("a", "b", "c");
+        Thread.sleep(5L);
+
+        long replayed = queue.replayErrors(error -> "b".equals(error.getData().getName()), 1);
+        Assert.assertEquals(1, replayed);
+        Assert.assertEquals(2, queue.getStats().getDead());
+
+        // 重放的消息重试次数被清空，可以再次取出
+        RAckQueueData<MyQueueData> popped = queue.pop();
+        Assert.assertEquals(ids.get(1), popped.getId());
+        Assert.assertTrue(queue.ack(popped.getId()));
+        Assert.assertNull(queue.pop());
+
+        Assert.assertEquals(Collections.singletonList(ids.get(0)), queue.replayErrors(Collections.singletonList(ids.get(0))));
+        Assert.assertEquals(ids.get(0), queue.pop().getId());
+    }
+
+    @Test
+    public void replaySkipsEntriesWithoutData() throws InterruptedException {
+        List<String> ids = fail("a", "b", "c", "d");
+        // 前2条失败消息的数据丢失，重放时只会从失败队列中删除，不能导致后面的消息被游标跳过
+        redisson.getMap(dataHashName(), StringCodec.INSTANCE).fastRemove(ids.get(0), ids.get(1));
+        Thread.sleep(5L);
+
+        long replayed = queue.replayErrors(null, 2);
+        Assert.assertEquals(2, replayed);
+        Assert.assertEquals(0, queue.getStats().getDead());
+        List<RAckQueueData<MyQueueData>> datas = queue.pop(10);
+        Assert.assertEquals(2, datas.size());
+        List<String> poppedIds = new ArrayList<>();
+        for (RAckQueueData<MyQueueData> d : datas){
+            poppedIds.add(d.getId());
+        }
+        Assert.assertTrue(poppedIds.contains(ids.get(2)));
+        Assert.assertTrue(poppedIds.contains(ids.get(3)));
+    }
+
+    @Test
+    public void replayWithBatchSizeOneAfterMissingData() throws InterruptedException {
+        List<String> ids = fail("a", "b", "c");
+        redisson.getMap(dataHashName(), StringCodec.INSTANCE).fastRemove(ids.get(0));
+        Thread.sleep(5L);
+
+        Assert.assertEquals(2, queue.replayErrors(null, 1));
+        Assert.assertEquals(0, queue.getStats().getDead());
+        Assert.assertEquals(2, queue.getStats().getReady());
+    }
+
+    @Test
+    public void purgeErrors() throws InterruptedException {
+        List<String> ids = fail("a", "b");
+        Thread.sleep(5L);
+
+        // 停留时间不够的不会被删除
+        Assert.assertEquals(0, queue.purgeErrors(Duration.ofMinutes(10)));
+        Assert.assertEquals(2, queue.purgeErrors(Duration.ZERO));
+        Assert.assertEquals(0, queue.getStats().getDead());
+        Assert.assertEquals(0, queue.listErrors(null, 10).getErrors().size());
+        Assert.assertFalse(redisson.getMap(dataHashName(), StringCodec.INSTANCE).containsKey(ids.get(0)));
+    }
+
+    private String dataHashName(){
+        return RedissonObject.suffixName(RedissonObject.prefixName("redisson_ack_queue", queue.getName()), "data");
+    }
+}
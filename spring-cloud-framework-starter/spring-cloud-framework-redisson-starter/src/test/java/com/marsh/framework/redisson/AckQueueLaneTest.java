@@ -0,0 +1,93 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.codec.GsonCodec;
+import com.marsh.framework.redisson.queue.MyQueueData;
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 优先级队列测试
+ * @author Marsh
+ * @date 2022-07-09日 10:30
+ */
+public class AckQueueLaneTest extends RedisTestSupport {
+
+    private RAckQueue<MyQueueData> queue;
+
+    @Before
+    public void init(){
+        queue = new RAckQueue<MyQueueData>(redisson, randomName("lane"), new GsonCodec(MyQueueData.class)) {
+            @Override
+            public int getPriorityLevels(){
+                return 3;
+            }
+        };
+    }
+
+    @After
+    public void destroy(){
+        queue.destroy();
+        deleteKeys(queue.getName());
+    }
+
+    private static MyQueueData data(String name){
+        MyQueueData data = new MyQueueData();
+        data.setId(name);
+        data.setName(name);
+        return data;
+    }
+
+    @Test
+    public void popHighPriorityFirst(){
+        queue.push(data("low"), 0);
+        queue.push(data("high"), 2);
+        queue.push(data("mid"), 1);
+
+        List<RAckQueueData<MyQueueData>> datas = queue.pop(3);
+        Assert.assertEquals(3, datas.size());
+        Assert.assertEquals("high", datas.get(0).getData().getName());
+        Assert.assertEquals("mid", datas.get(1).getData().getName());
+        Assert.assertEquals("low", datas.get(2).getData().getName());
+    }
+
+    @Test
+    public void unackBackToSameLane(){
+        queue.push(data("low"), 0);
+        String highId = queue.push(data("high"), 2);
+
+        RAckQueueData<MyQueueData> high = queue.pop();
+        Assert.assertEquals(highId, high.getId());
+        queue.unackAsync(Collections.singletonList(high.getId())).syncUninterruptibly();
+
+        // 回滚的消息回到原来的高优先级队列，仍然先于低优先级的消息被取出
+        RAckQueueData<MyQueueData> again = queue.pop();
+        Assert.assertEquals(highId, again.getId());
+        Assert.assertTrue(queue.ack(again.getId()));
+        Assert.assertEquals("low", queue.pop().getData().getName());
+    }
+
+    @Test
+    public void popByIdFromPriorityLane(){
+        String lowId = queue.push(data("low"), 0);
+        String midId = queue.push(data("mid"), 1);
+
+        RAckQueueData<MyQueueData> mid = queue.pop(midId);
+        Assert.assertNotNull(mid);
+        Assert.assertEquals("mid", mid.getData().getName());
+        // 已经取出的消息不能再次通过id取出
+        Assert.assertNull(queue.pop(midId));
+        Assert.assertEquals(lowId, queue.pop().getId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectPriorityOutOfRange(){
+        queue.push(data("x"), 3);
+    }
+}
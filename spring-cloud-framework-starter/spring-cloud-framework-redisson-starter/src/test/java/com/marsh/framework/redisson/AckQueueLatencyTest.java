@@ -0,0 +1,95 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import com.marsh.framework.redisson.queue.RAckQueueMetrics;
+import com.marsh.framework.redisson.queue.RAckQueueOptions;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 消息排队时间和处理时间统计测试
+ * @author Marsh
+ * @date 2022-07-12日 14:10
+ */
+public class AckQueueLatencyTest extends RedisTestSupport {
+
+    private final List<RAckQueue<String>> queues = new ArrayList<>();
+    /**
+     * 阶段 => 记录的耗时毫秒数
+     */
+    private final Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+
+    @After
+    public void destroy(){
+        for (RAckQueue<String> queue : queues){
+            queue.destroy();
+            deleteKeys(queue.getName());
+        }
+    }
+
+    private RAckQueue<String> create(boolean latencyTracking){
+        RAckQueueOptions options = RAckQueueOptions.defaults();
+        options.setLatencyTracking(latencyTracking);
+        RAckQueue<String> queue = new RAckQueue<>(redisson, randomName("latency"), StringCodec.INSTANCE, options);
+        queue.setMetrics(new RAckQueueMetrics() {
+            @Override
+            public void recordLatency(String queueName, String stage, long millis){
+                latencies.computeIfAbsent(stage, k -> new CopyOnWriteArrayList<>()).add(millis);
+            }
+        });
+        queues.add(queue);
+        return queue;
+    }
+
+    private List<Long> latencies(String stage){
+        return latencies.getOrDefault(stage, new ArrayList<>());
+    }
+
+    @Test
+    public void waitAndProcessLatencyAreRecorded() throws InterruptedException {
+        RAckQueue<String> queue = create(true);
+        String id = queue.push("a");
+        Thread.sleep(200L);
+        RAckQueueData<String> data = queue.pop();
+        // 返回的消息id不带耗时后缀
+        Assert.assertEquals(id, data.getId());
+        Assert.assertEquals(1, latencies(RAckQueueMetrics.STAGE_WAIT).size());
+        Assert.assertTrue(latencies(RAckQueueMetrics.STAGE_WAIT).get(0) >= 200L);
+
+        Thread.sleep(100L);
+        Assert.assertTrue(queue.ack(id));
+        Assert.assertEquals(1, latencies(RAckQueueMetrics.STAGE_PROCESS).size());
+        Assert.assertTrue(latencies(RAckQueueMetrics.STAGE_PROCESS).get(0) >= 100L);
+    }
+
+    @Test
+    public void popByIdAndAckAllRecordLatency(){
+        RAckQueue<String> queue = create(true);
+        String id = queue.push("a");
+        Assert.assertEquals(id, queue.pop(id).getId());
+        Assert.assertEquals(1, latencies(RAckQueueMetrics.STAGE_WAIT).size());
+
+        Map<String, Boolean> results = queue.ackAll(Collections.singletonList(id));
+        Assert.assertTrue(results.get(id));
+        Assert.assertEquals(1, latencies(RAckQueueMetrics.STAGE_PROCESS).size());
+    }
+
+    @Test
+    public void nothingIsRecordedWhenDisabled(){
+        RAckQueue<String> queue = create(false);
+        String id = queue.push("a");
+        Assert.assertEquals(id, queue.pop().getId());
+        Assert.assertTrue(queue.ack(id));
+        Assert.assertTrue(latencies.isEmpty());
+    }
+}
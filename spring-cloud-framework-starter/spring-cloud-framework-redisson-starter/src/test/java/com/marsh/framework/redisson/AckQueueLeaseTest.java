@@ -0,0 +1,69 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueOptions;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.RedissonObject;
+import org.redisson.api.RBucket;
+import org.redisson.client.codec.StringCodec;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 超时清理租约测试，开启租约后只有持有租约的节点清理超时消息
+ * @author Marsh
+ * @date 2022-07-12日 10:40
+ */
+public class AckQueueLeaseTest extends RedisTestSupport {
+
+    private RAckQueue<String> queue;
+
+    @Before
+    public void init(){
+        RAckQueueOptions options = RAckQueueOptions.defaults();
+        options.setTimeoutLeaseMs(1000L);
+        queue = new RAckQueue<>(redisson, randomName("lease"), StringCodec.INSTANCE, options);
+    }
+
+    @After
+    public void destroy(){
+        queue.destroy();
+        deleteKeys(queue.getName());
+    }
+
+    private RBucket<String> lease(){
+        return redisson.getBucket(RedissonObject.suffixName(RedissonObject.prefixName("redisson_ack_queue", queue.getName()), "timeout_lease"), StringCodec.INSTANCE);
+    }
+
+    @Test
+    public void otherOwnerBlocksCleaningUntilLeaseExpires() throws InterruptedException {
+        queue.push("a");
+        // 模拟其他节点持有租约
+        lease().set("other", 1500L, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull(queue.pop(1, Duration.ofMillis(200L)).get(0));
+
+        // 租约过期前超时的消息不会被本节点重新投递
+        Thread.sleep(800L);
+        Assert.assertEquals(1, queue.getStats().getInFlight());
+        Assert.assertEquals(0, queue.getStats().getReady());
+
+        // 租约过期后本节点获取租约并清理
+        Assert.assertTrue(await(() -> queue.getStats().getReady() == 1, 3000L));
+        Assert.assertEquals(0, queue.getStats().getInFlight());
+        String owner = lease().get();
+        Assert.assertNotNull(owner);
+        Assert.assertNotEquals("other", owner);
+    }
+
+    @Test
+    public void ownerCleansWithoutWaiting() throws InterruptedException {
+        queue.push("a");
+        queue.pop(1, Duration.ofMillis(200L));
+        Assert.assertTrue(await(() -> queue.getStats().getReady() == 1, 1500L));
+        Assert.assertTrue(lease().remainTimeToLive() > 0);
+    }
+}
@@ -0,0 +1,119 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 超时时间变化通知测试，ack不再发布超时通知，只有最早的超时时间提前时才发布
+ * @author Marsh
+ * @date 2022-07-11日 09:20
+ */
+public class AckQueueNotifyTest extends RedisTestSupport {
+
+    private RAckQueue<String> queue;
+
+    @Before
+    public void init(){
+        queue = new RAckQueue<>(redisson, randomName("notify"), StringCodec.INSTANCE);
+    }
+
+    @After
+    public void destroy(){
+        queue.destroy();
+        deleteKeys(queue.getName());
+    }
+
+    @Test
+    public void ackDoesNotPublishTimeout() throws InterruptedException {
+        queue.push(Arrays.asList("a", "b", "c", "d"));
+        List<String> ids = new ArrayList<>();
+        for (RAckQueueData<String> data : queue.pop(4)){
+            ids.add(data.getId());
+        }
+        Assert.assertEquals(4, ids.size());
+        // 等待取出时发布的通知到达
+        Thread.sleep(300L);
+        long received = queue.getReceivedTimeoutNotifyCount();
+
+        for (String id : ids){
+            Assert.assertTrue(queue.ack(id));
+        }
+        Thread.sleep(300L);
+        Assert.assertEquals(received, queue.getReceivedTimeoutNotifyCount());
+    }
+
+    @Test
+    public void laterDeadlineDoesNotPublish() throws InterruptedException {
+        queue.push(Arrays.asList("a", "b"));
+        String first = queue.pop().getId();
+        Thread.sleep(300L);
+        long received = queue.getReceivedTimeoutNotifyCount();
+        Assert.assertTrue("第一次取出应该发布超时通知", received > 0);
+
+        // 后取出的消息超时时间更晚，不会成为最早的超时时间
+        String second = queue.pop().getId();
+        Thread.sleep(300L);
+        Assert.assertEquals(received, queue.getReceivedTimeoutNotifyCount());
+        Assert.assertTrue(queue.ack(first));
+        Assert.assertTrue(queue.ack(second));
+    }
+
+    @Test
+    public void coalescedPushPublishesOneNotice() throws InterruptedException {
+        List<List<String>> notices = new CopyOnWriteArrayList<>();
+        RAckQueue<String> coalesced = new RAckQueue<String>(redisson, randomName("notify_coalesce"), StringCodec.INSTANCE) {
+            @Override
+            public boolean isCoalesceNotify(){
+                return true;
+            }
+
+            @Override
+            public void onMessages(List<String> ids){
+                notices.add(ids);
+            }
+        };
+        try {
+            // 等待订阅完成，避免丢失通知
+            Thread.sleep(300L);
+            List<String> ids = coalesced.push(Arrays.asList("a", "b", "c"));
+            Assert.assertTrue(await(() -> notices.size() > 0, 2000L));
+            Thread.sleep(200L);
+            // 整批数据只收到一条通知，通知中带有全部消息id
+            Assert.assertEquals(1, notices.size());
+            Assert.assertEquals(ids, notices.get(0));
+        } finally {
+            coalesced.destroy();
+            deleteKeys(coalesced.getName());
+        }
+    }
+
+    @Test
+    public void pushPublishesOneNoticePerMessageByDefault() throws InterruptedException {
+        List<String> notices = new CopyOnWriteArrayList<>();
+        RAckQueue<String> single = new RAckQueue<String>(redisson, randomName("notify_single"), StringCodec.INSTANCE) {
+            @Override
+            public void onMessage(String id){
+                notices.add(id);
+            }
+        };
+        try {
+            Thread.sleep(300L);
+            List<String> ids = single.push(Arrays.asList("a", "b", "c"));
+            Assert.assertTrue(await(() -> notices.size() == 3, 2000L));
+            Assert.assertTrue(notices.containsAll(ids));
+        } finally {
+            single.destroy();
+            deleteKeys(single.getName());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.RedissonObject;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 批量取出数据测试，消息id和消息数据通过一次lua脚本取出
+ * @author Marsh
+ * @date 2022-07-12日 09:10
+ */
+public class AckQueuePopTest extends RedisTestSupport {
+
+    private RAckQueue<String> queue;
+
+    @Before
+    public void init(){
+        queue = new RAckQueue<>(redisson, randomName("pop"), StringCodec.INSTANCE);
+    }
+
+    @After
+    public void destroy(){
+        queue.destroy();
+        deleteKeys(queue.getName());
+    }
+
+    @Test
+    public void popReturnsIdsAndDataInPushOrder(){
+        List<String> ids = queue.push(Arrays.asList("a", "b", "c", "d", "e"));
+
+        List<RAckQueueData<String>> datas = queue.pop(3);
+        Assert.assertEquals(3, datas.size());
+        for (int i = 0; i < datas.size(); i++){
+            Assert.assertEquals(ids.get(i), datas.get(i).getId());
+            Assert.assertEquals(String.valueOf((char) ('a' + i)), datas.get(i).getData());
+        }
+        // 取出的消息进入处理中，剩下的消息继续按照先进先出的顺序取出
+        Assert.assertEquals(3, queue.getStats().getInFlight());
+        List<RAckQueueData<String>> rest = queue.pop(10);
+        Assert.assertEquals(2, rest.size());
+        Assert.assertEquals("d", rest.get(0).getData());
+        Assert.assertEquals("e", rest.get(1).getData());
+        Assert.assertTrue(queue.pop(10).isEmpty());
+    }
+
+    @Test
+    public void popSkipsMessagesWithoutData(){
+        List<String> ids = queue.push(Arrays.asList("a", "b", "c"));
+        // 模拟数据表中已经被清理的消息
+        redisson.<String, String>getMap(dataHashName(), StringCodec.INSTANCE).fastRemove(ids.get(1));
+
+        List<RAckQueueData<String>> datas = queue.pop(3);
+        List<String> popped = new ArrayList<>();
+        for (RAckQueueData<String> data : datas){
+            popped.add(data.getId());
+        }
+        Assert.assertEquals(Arrays.asList(ids.get(0), ids.get(2)), popped);
+        Assert.assertEquals("c", datas.get(1).getData());
+    }
+
+    @Test
+    public void popSingleAndById(){
+        List<String> ids = queue.push(Arrays.asList("a", "b"));
+        RAckQueueData<String> second = queue.pop(ids.get(1));
+        Assert.assertEquals("b", second.getData());
+        // 已经取出的消息不能再通过消息id取出
+        Assert.assertNull(queue.pop(ids.get(1)));
+
+        RAckQueueData<String> first = queue.pop();
+        Assert.assertEquals(ids.get(0), first.getId());
+        Assert.assertEquals("a", first.getData());
+        Assert.assertNull(queue.pop());
+        Assert.assertTrue(queue.ack(first.getId()));
+        Assert.assertTrue(queue.ack(second.getId()));
+    }
+
+    private String dataHashName(){
+        return RedissonObject.suffixName(RedissonObject.prefixName("redisson_ack_queue", queue.getName()), "data");
+    }
+}
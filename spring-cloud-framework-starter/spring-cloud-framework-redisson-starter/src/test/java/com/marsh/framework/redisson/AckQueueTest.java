@@ -6,10 +6,13 @@ import com.marsh.framework.redisson.queue.RAckQueue;
 import com.marsh.framework.redisson.queue.RAckQueueData;
 import lombok.Data;
 import lombok.SneakyThrows;
+import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.redisson.Redisson;
+import org.redisson.api.RFuture;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
 import org.redisson.config.Config;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
@@ -20,6 +23,11 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Component;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author Marsh
  * @date 2022-06-16日
@@ -135,6 +143,74 @@ public class AckQueueTest {
         }
     }
 
+    @Autowired
+    private Redisson redisson;
+
+    /**
+     * 创建一个独立的队列，不受demo队列中遗留消息的影响
+     */
+    private RAckQueue<String> newQueue(){
+        return new RAckQueue<>(redisson, "take_" + IdUtil.fastSimpleUUID(), StringCodec.INSTANCE);
+    }
+
+    @SneakyThrows
+    @Test
+    public void takeWakesOnPush(){
+        RAckQueue<String> queue = newQueue();
+        try {
+            // 队列为空时挂起等待，投递消息后被通知唤醒，不需要等到超时
+            long start = System.currentTimeMillis();
+            RFuture<List<RAckQueueData<String>>> future = queue.takeAsync(10, Duration.ofSeconds(10));
+            Thread.sleep(200L);
+            Assert.assertFalse(future.isDone());
+            String id = queue.push("msg");
+
+            List<RAckQueueData<String>> datas = future.get(5, TimeUnit.SECONDS);
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000L);
+            Assert.assertEquals(1, datas.size());
+            Assert.assertEquals(id, datas.get(0).getId());
+            Assert.assertEquals("msg", datas.get(0).getData());
+            Assert.assertTrue(queue.ack(id));
+        } finally {
+            queue.destroy();
+            redisson.getKeys().deleteByPattern("*" + queue.getName() + "*");
+        }
+    }
+
+    @Test
+    public void takeTimesOutWhenEmpty(){
+        RAckQueue<String> queue = newQueue();
+        try {
+            long start = System.currentTimeMillis();
+            List<RAckQueueData<String>> datas = queue.take(10, Duration.ofMillis(500));
+            long waited = System.currentTimeMillis() - start;
+            Assert.assertTrue(datas.isEmpty());
+            Assert.assertTrue("没有等待到超时:" + waited, waited >= 450L);
+            Assert.assertTrue("等待超时后没有及时返回:" + waited, waited < 3000L);
+        } finally {
+            queue.destroy();
+            redisson.getKeys().deleteByPattern("*" + queue.getName() + "*");
+        }
+    }
+
+    @Test
+    public void takeReturnsReadyMessagesImmediately(){
+        RAckQueue<String> queue = newQueue();
+        try {
+            queue.push(Arrays.asList("a", "b", "c"));
+            long start = System.currentTimeMillis();
+            List<RAckQueueData<String>> datas = queue.take(2, Duration.ofSeconds(10));
+            Assert.assertTrue(System.currentTimeMillis() - start < 1000L);
+            Assert.assertEquals(2, datas.size());
+            Assert.assertEquals("a", datas.get(0).getData());
+            Assert.assertEquals("b", datas.get(1).getData());
+            Assert.assertEquals(1, queue.take(10, Duration.ofSeconds(1)).size());
+        } finally {
+            queue.destroy();
+            redisson.getKeys().deleteByPattern("*" + queue.getName() + "*");
+        }
+    }
+
     @SneakyThrows
     @Test
     public void timeout(){
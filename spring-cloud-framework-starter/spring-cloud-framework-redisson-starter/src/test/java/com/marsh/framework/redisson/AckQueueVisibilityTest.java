@@ -0,0 +1,79 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import java.time.Duration;
+
+/**
+ * 单批消息的处理超时时间和续期测试
+ * @author Marsh
+ * @date 2022-07-12日 11:10
+ */
+public class AckQueueVisibilityTest extends RedisTestSupport {
+
+    private RAckQueue<String> queue;
+
+    @Before
+    public void init(){
+        queue = new RAckQueue<>(redisson, randomName("visibility"), StringCodec.INSTANCE);
+    }
+
+    @After
+    public void destroy(){
+        queue.destroy();
+        deleteKeys(queue.getName());
+    }
+
+    @Test
+    public void visibilityOverridesExecutionTimeout() throws InterruptedException {
+        String id = queue.push("a");
+        // 队列默认的执行超时时间是5分钟，这批消息300毫秒后就会重新投递
+        RAckQueueData<String> data = queue.pop(1, Duration.ofMillis(300L)).get(0);
+        Assert.assertEquals(id, data.getId());
+        Assert.assertTrue(await(() -> queue.getStats().getReady() == 1, 2000L));
+        Assert.assertEquals(id, queue.pop().getId());
+    }
+
+    @Test
+    public void touchKeepsMessageInFlight() throws InterruptedException {
+        String id = queue.push("a");
+        queue.pop(1, Duration.ofMillis(300L));
+        for (int i = 0; i < 6; i++){
+            Thread.sleep(150L);
+            Assert.assertTrue(queue.touch(id, Duration.ofMillis(300L)));
+        }
+        // 持续续期的消息超过最初的超时时间也不会重新投递
+        Assert.assertEquals(1, queue.getStats().getInFlight());
+        Assert.assertEquals(0, queue.getStats().getReady());
+
+        // 停止续期后重新投递
+        Assert.assertTrue(await(() -> queue.getStats().getReady() == 1, 2000L));
+    }
+
+    @Test
+    public void touchCanShortenDeadline() throws InterruptedException {
+        String id = queue.push("a");
+        queue.pop(1, Duration.ofMinutes(10));
+        // 缩短超时时间时会通知各节点提前清理
+        Assert.assertTrue(queue.touch(id, Duration.ofMillis(200L)));
+        Assert.assertTrue(await(() -> queue.getStats().getReady() == 1, 2000L));
+    }
+
+    @Test
+    public void touchIgnoresMessagesNotInFlight(){
+        String id = queue.push("a");
+        // 还没有取出的消息
+        Assert.assertFalse(queue.touch(id, Duration.ofMinutes(1)));
+        queue.pop();
+        Assert.assertTrue(queue.ack(id));
+        // 已经确认的消息
+        Assert.assertFalse(queue.touch(id, Duration.ofMinutes(1)));
+        Assert.assertFalse(queue.touch("unknown", Duration.ofMinutes(1)));
+    }
+}
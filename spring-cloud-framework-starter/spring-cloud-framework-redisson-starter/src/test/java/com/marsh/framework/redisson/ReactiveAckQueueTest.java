@@ -0,0 +1,119 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import com.marsh.framework.redisson.queue.ReactiveAckQueue;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * RAckQueue响应式包装和归还消息通知测试
+ * @author Marsh
+ * @date 2022-07-11日 17:05
+ */
+public class ReactiveAckQueueTest extends RedisTestSupport {
+
+    private final List<RAckQueue<String>> queues = new ArrayList<>();
+    /**
+     * 收到的单条消息通知和批量消息通知
+     */
+    private final List<String> messages = new CopyOnWriteArrayList<>();
+    private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+
+    @After
+    public void destroy(){
+        for (RAckQueue<String> queue : queues){
+            queue.destroy();
+            deleteKeys(queue.getName());
+        }
+    }
+
+    private RAckQueue<String> create(boolean coalesceNotify){
+        RAckQueue<String> queue = new RAckQueue<String>(redisson, randomName("reactive"), StringCodec.INSTANCE) {
+            @Override
+            public boolean isCoalesceNotify(){
+                return coalesceNotify;
+            }
+
+            @Override
+            public void onMessage(String id){
+                messages.add(id);
+            }
+
+            @Override
+            public void onMessages(List<String> ids){
+                batches.add(ids);
+            }
+        };
+        queues.add(queue);
+        return queue;
+    }
+
+    @Test
+    public void pushAndReceive(){
+        ReactiveAckQueue<String> reactiveQueue = new ReactiveAckQueue<>(create(false));
+        List<String> ids = reactiveQueue.push(Arrays.asList("a", "b", "c"), 0).block(Duration.ofSeconds(5));
+        Assert.assertEquals(3, ids.size());
+
+        List<RAckQueueData<String>> received = reactiveQueue.receive().take(3).collectList().block(Duration.ofSeconds(5));
+        Assert.assertEquals(3, received.size());
+        for (RAckQueueData<String> data : received){
+            Assert.assertTrue(ids.contains(data.getId()));
+            Assert.assertTrue(reactiveQueue.ack(data.getId()).block(Duration.ofSeconds(5)));
+        }
+    }
+
+    @Test
+    public void receiveWaitsForPush(){
+        ReactiveAckQueue<String> reactiveQueue = new ReactiveAckQueue<>(create(false));
+        Mono<RAckQueueData<String>> next = reactiveQueue.receive().next().cache();
+        next.subscribe();
+        String id = reactiveQueue.push("a").delaySubscription(Duration.ofMillis(300)).block(Duration.ofSeconds(5));
+
+        RAckQueueData<String> data = next.block(Duration.ofSeconds(5));
+        Assert.assertEquals(id, data.getId());
+        Assert.assertEquals("a", data.getData());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pushNullIsRejected(){
+        new ReactiveAckQueue<>(create(false)).push((String) null).block(Duration.ofSeconds(5));
+    }
+
+    @Test
+    public void releasePublishesPerMessage() throws InterruptedException {
+        RAckQueue<String> queue = create(false);
+        List<String> ids = queue.push(Arrays.asList("a", "b"));
+        queue.pop(2);
+        Assert.assertTrue(await(() -> messages.size() == 2, 2000L));
+        messages.clear();
+
+        Assert.assertEquals(2, queue.releaseAsync(ids).syncUninterruptibly().getNow().size());
+        Assert.assertTrue(await(() -> messages.size() == 2, 2000L));
+        Assert.assertTrue(messages.containsAll(ids));
+        Assert.assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    public void releasePublishesOneBatchWhenCoalescing() throws InterruptedException {
+        RAckQueue<String> queue = create(true);
+        List<String> ids = queue.push(Arrays.asList("a", "b"));
+        queue.pop(2);
+        Assert.assertTrue(await(() -> batches.size() == 1, 2000L));
+        batches.clear();
+
+        Assert.assertEquals(2, queue.releaseAsync(ids).syncUninterruptibly().getNow().size());
+        Assert.assertTrue(await(() -> batches.size() == 1, 2000L));
+        Assert.assertTrue(batches.get(0).containsAll(ids));
+        Assert.assertTrue(messages.isEmpty());
+    }
+}
@@ -0,0 +1,70 @@
+package com.marsh.framework.redisson;
+
+import cn.hutool.core.util.IdUtil;
+import org.junit.runner.RunWith;
+import org.redisson.Redisson;
+import org.redisson.config.Config;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * 需要连接redis的测试基类，每个测试使用随机的队列名称，互不影响
+ * @author Marsh
+ * @date 2022-07-09日 10:12
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest(classes = RedisTestSupport.RedissonConfig.class)
+public abstract class RedisTestSupport {
+
+    /**
+     * 使用的时候自行修改下这2个配置
+     */
+    private static String redisAddress = "redis://127.0.0.1:6379";
+    private static String redisPassword = "123456";
+
+    @Configuration
+    public static class RedissonConfig {
+        @Bean(destroyMethod = "shutdown")
+        public Redisson redisson(){
+            Config config = new Config();
+            config.useSingleServer().setAddress(redisAddress).setPassword(redisPassword);
+            return (Redisson) Redisson.create(config);
+        }
+    }
+
+    @Autowired
+    protected Redisson redisson;
+
+    /**
+     * 生成一个不会和其他测试冲突的名称
+     */
+    protected static String randomName(String prefix){
+        return prefix + "_" + IdUtil.fastSimpleUUID();
+    }
+
+    /**
+     * 删除名称相关的全部key，队列和延时任务的key都包含名称
+     */
+    protected void deleteKeys(String name){
+        redisson.getKeys().deleteByPattern("*" + name + "*");
+    }
+
+    /**
+     * 等待条件成立，超时返回false
+     */
+    protected static boolean await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline){
+            if (condition.getAsBoolean()){
+                return true;
+            }
+            Thread.sleep(20L);
+        }
+        return condition.getAsBoolean();
+    }
+}
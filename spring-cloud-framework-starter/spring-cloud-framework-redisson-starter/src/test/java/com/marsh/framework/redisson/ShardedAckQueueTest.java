@@ -0,0 +1,131 @@
+package com.marsh.framework.redisson;
+
+import com.marsh.framework.redisson.queue.RAckQueue;
+import com.marsh.framework.redisson.queue.RAckQueueData;
+import com.marsh.framework.redisson.queue.RAckQueueOptions;
+import com.marsh.framework.redisson.queue.ShardedAckQueue;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 分片队列测试
+ * @author Marsh
+ * @date 2022-07-11日 10:40
+ */
+public class ShardedAckQueueTest extends RedisTestSupport {
+
+    private static final int SHARD_COUNT = 4;
+
+    private ShardedAckQueue<String> queue;
+    private final List<String> notified = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void init(){
+        RAckQueueOptions options = RAckQueueOptions.defaults();
+        options.setExecutionTimeoutMs(60000L);
+        options.setRetryNumber(1);
+        queue = new ShardedAckQueue<String>(redisson, randomName("sharded"), StringCodec.INSTANCE, SHARD_COUNT, options) {
+            @Override
+            public void onMessage(String id){
+                notified.add(id);
+            }
+        };
+    }
+
+    @After
+    public void destroy(){
+        queue.destroy();
+        deleteKeys(queue.getName());
+    }
+
+    private static int shardOf(String id){
+        return Integer.parseInt(id.substring(0, id.indexOf(':')));
+    }
+
+    @Test
+    public void shardsShareOptions(){
+        for (RAckQueue<String> shard : queue.getShards()){
+            Assert.assertEquals(60000L, shard.getExecutionTimeoutMs().longValue());
+            Assert.assertEquals(1, shard.getRetryNumber());
+        }
+    }
+
+    @Test
+    public void pushRoundRobinAndPopAll(){
+        List<String> ids = queue.push(Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h"));
+        Assert.assertEquals(8, ids.size());
+        Set<Integer> usedShards = new HashSet<>();
+        for (String id : ids){
+            usedShards.add(shardOf(id));
+        }
+        Assert.assertEquals(SHARD_COUNT, usedShards.size());
+
+        // 从任意子队列开始取，不足时从其他子队列补充
+        List<RAckQueueData<String>> datas = queue.pop(8);
+        Assert.assertEquals(8, datas.size());
+        List<String> popped = new ArrayList<>();
+        for (RAckQueueData<String> data : datas){
+            popped.add(data.getId());
+        }
+        Assert.assertTrue(popped.containsAll(ids));
+        Assert.assertEquals(8, queue.ack(popped).size());
+        Assert.assertNull(queue.pop());
+    }
+
+    @Test
+    public void routingKeyPinsShardAndPopStealsWork(){
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++){
+            ids.add(queue.push("same-key", "msg" + i));
+        }
+        int shard = shardOf(ids.get(0));
+        for (String id : ids){
+            Assert.assertEquals(shard, shardOf(id));
+        }
+        // 所有数据都在一个子队列中，一次批量取出也能全部拿到
+        Assert.assertEquals(5, queue.pop(5).size());
+    }
+
+    @Test
+    public void unackAndPopByIdRouteToShard() throws InterruptedException {
+        String id = queue.push("a");
+        RAckQueueData<String> data = queue.pop(id);
+        Assert.assertEquals("a", data.getData());
+        Assert.assertEquals(id, data.getId());
+
+        queue.unack(id);
+        Assert.assertTrue(await(() -> queue.pop(id) != null, 2000L));
+        // 重试1次后再回滚进入子队列的失败队列
+        queue.unack(id);
+        Thread.sleep(200L);
+        Assert.assertNull(queue.pop(id));
+        Assert.assertEquals(1, queue.getShards().get(shardOf(id)).getStats().getDead());
+    }
+
+    @Test
+    public void notifiedIdsCarryShardIndex() throws InterruptedException {
+        List<String> ids = queue.push(Arrays.asList("a", "b", "c", "d"));
+        Assert.assertTrue(await(() -> notified.size() >= ids.size(), 2000L));
+        Assert.assertTrue(notified.containsAll(ids));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectNullRoutingKey(){
+        queue.push((String) null, "a");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectUnknownShardId(){
+        queue.ack(SHARD_COUNT + ":abc");
+    }
+}
@@ -0,0 +1,65 @@
+package com.marsh.framework.redisson.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * micrometer指标测试，不需要连接redis
+ * @author Marsh
+ * @date 2022-07-11日 17:40
+ */
+public class MicrometerAckQueueMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final MicrometerAckQueueMetrics metrics = new MicrometerAckQueueMetrics(registry, 10000L);
+
+    @After
+    public void destroy(){
+        metrics.destroy();
+        registry.close();
+    }
+
+    @Test
+    public void operationsShareCachedMeters(){
+        metrics.recordOperation("q1", "push", 3, TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.recordOperation("q1", "push", 5, TimeUnit.MILLISECONDS.toNanos(4));
+        metrics.recordOperation("q1", "pop", 0, TimeUnit.MILLISECONDS.toNanos(1));
+        metrics.recordOperation("q2", "push", 1, TimeUnit.MILLISECONDS.toNanos(1));
+
+        Timer push = registry.get("rack.queue.operation").tag("queue", "q1").tag("operation", "push").timer();
+        Assert.assertEquals(2, push.count());
+        Assert.assertEquals(6.0, push.totalTime(TimeUnit.MILLISECONDS), 0.001);
+        DistributionSummary size = registry.get("rack.queue.batch.size").tag("queue", "q1").tag("operation", "push").summary();
+        Assert.assertEquals(2, size.count());
+        Assert.assertEquals(8.0, size.totalAmount(), 0.001);
+
+        // 没有处理消息的操作只记录耗时
+        Assert.assertEquals(1, registry.get("rack.queue.operation").tag("queue", "q1").tag("operation", "pop").timer().count());
+        Assert.assertNull(registry.find("rack.queue.batch.size").tag("queue", "q1").tag("operation", "pop").summary());
+        Assert.assertEquals(1, registry.get("rack.queue.operation").tag("queue", "q2").timer().count());
+        Assert.assertEquals(3, registry.find("rack.queue.operation").timers().size());
+    }
+
+    @Test
+    public void latencyAndCounters(){
+        metrics.recordLatency("q1", "wait", 10L);
+        metrics.recordLatency("q1", "wait", 20L);
+        metrics.recordLatency("q1", "process", 5L);
+        metrics.recordRedelivered("q1", 2);
+        metrics.recordRedelivered("q1", 3);
+        metrics.recordDeadLettered("q1", 1);
+        metrics.recordAckFailed("q1", 4);
+
+        Assert.assertEquals(2, registry.get("rack.queue.latency").tag("stage", "wait").timer().count());
+        Assert.assertEquals(1, registry.get("rack.queue.latency").tag("stage", "process").timer().count());
+        Assert.assertEquals(5.0, registry.get("rack.queue.redelivered").tag("queue", "q1").counter().count(), 0.001);
+        Assert.assertEquals(1.0, registry.get("rack.queue.dead.lettered").tag("queue", "q1").counter().count(), 0.001);
+        Assert.assertEquals(4.0, registry.get("rack.queue.ack.failed").tag("queue", "q1").counter().count(), 0.001);
+    }
+}
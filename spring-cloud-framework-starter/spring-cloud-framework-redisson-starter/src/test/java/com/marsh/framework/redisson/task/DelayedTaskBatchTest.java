@@ -0,0 +1,94 @@
+package com.marsh.framework.redisson.task;
+
+import com.marsh.framework.redisson.RedisTestSupport;
+import com.marsh.framework.redisson.task.spring.RedissonDelayedTaskProxy;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.redisson.RedissonObject;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量取出任务和合并ack测试
+ * @author Marsh
+ * @date 2022-07-12日 15:00
+ */
+public class DelayedTaskBatchTest extends RedisTestSupport {
+
+    private final List<RedissonDelayedTaskProxy<String>> tasks = new ArrayList<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    /**
+     * 任务id => 任务数据
+     */
+    private final Map<String, String> executed = new ConcurrentHashMap<>();
+
+    @After
+    public void destroy(){
+        for (RedissonDelayedTaskProxy<String> task : tasks){
+            task.destroy();
+            deleteKeys(task.getProxy().getName());
+        }
+    }
+
+    private RedissonDelayedTaskProxy<String> create(int batchSize, int maxConcurrency){
+        RDelayedTaskOptions options = RDelayedTaskOptions.defaults();
+        options.setBatchSize(batchSize);
+        options.setMaxConcurrency(maxConcurrency);
+        RedissonDelayedTaskProxy<String> task = new RedissonDelayedTaskProxy<>(redisson, randomName("batch"), StringCodec.INSTANCE, (taskId, msg) -> {
+            int current = active.incrementAndGet();
+            maxActive.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(20L);
+            } finally {
+                active.decrementAndGet();
+            }
+            executed.put(taskId, msg);
+        }, options);
+        tasks.add(task);
+        return task;
+    }
+
+    private int pendingData(RedissonDelayedTaskProxy<String> task){
+        return redisson.getMap(RedissonObject.suffixName(RedissonObject.prefixName("redisson_delay_task", task.getProxy().getName()), "data"),
+                StringCodec.INSTANCE).size();
+    }
+
+    private void offer(RedissonDelayedTaskProxy<String> task, int count){
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++){
+            task.offer("t" + i, "msg" + i, now);
+        }
+    }
+
+    @Test
+    public void batchesRunWithBoundedConcurrency() throws InterruptedException {
+        RedissonDelayedTaskProxy<String> task = create(10, 4);
+        offer(task, 50);
+
+        Assert.assertTrue("执行完成的任务:" + executed.size(), await(() -> executed.size() == 50, 5000L));
+        for (int i = 0; i < 50; i++){
+            Assert.assertEquals("msg" + i, executed.get("t" + i));
+        }
+        Assert.assertTrue("并发数量超过限制:" + maxActive.get(), maxActive.get() <= 4);
+        // 合并提交的ack全部完成后任务数据被删除
+        Assert.assertTrue(await(() -> pendingData(task) == 0, 2000L));
+    }
+
+    @Test
+    public void batchesRunWithoutExecutor() throws InterruptedException {
+        RedissonDelayedTaskProxy<String> task = create(10, 0);
+        offer(task, 25);
+
+        // 没有执行器时在回调线程中逐个执行，取满一批时继续取出下一批
+        Assert.assertTrue("执行完成的任务:" + executed.size(), await(() -> executed.size() == 25, 5000L));
+        Assert.assertEquals(1, maxActive.get());
+        Assert.assertTrue(await(() -> pendingData(task) == 0, 2000L));
+    }
+}
@@ -0,0 +1,198 @@
+package com.marsh.framework.redisson.task;
+
+import com.marsh.framework.redisson.RedisTestSupport;
+import com.marsh.framework.redisson.task.spring.RedissonDelayedTaskProxy;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.redisson.RedissonObject;
+import org.redisson.api.RMap;
+import org.redisson.api.RScoredSortedSet;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 任务计划表按时间分桶的延时任务测试
+ * @author Marsh
+ * @date 2022-07-10日 11:00
+ */
+public class DelayedTaskBucketTest extends RedisTestSupport {
+
+    private static final long BUCKET_MS = 1000L;
+
+    private RedissonDelayedTaskProxy<String> task;
+    /**
+     * 任务id => 执行次数
+     */
+    private final Map<String, AtomicInteger> fired = new ConcurrentHashMap<>();
+
+    @Before
+    public void init(){
+        RDelayedTaskOptions options = RDelayedTaskOptions.defaults();
+        options.setScheduleBucketMs(BUCKET_MS);
+        task = new RedissonDelayedTaskProxy<>(redisson, randomName("bucket"), StringCodec.INSTANCE,
+                (taskId, msg) -> fired.computeIfAbsent(taskId, k -> new AtomicInteger()).incrementAndGet(), options);
+    }
+
+    @After
+    public void destroy(){
+        task.destroy();
+        deleteKeys(task.getProxy().getName());
+    }
+
+    private String scheduleName(){
+        return RedissonObject.suffixName(RedissonObject.prefixName("redisson_delay_task", task.getProxy().getName()), "schedule");
+    }
+
+    private RScoredSortedSet<String> index(){
+        return redisson.getScoredSortedSet(scheduleName() + ":index", StringCodec.INSTANCE);
+    }
+
+    private RMap<String, String> bucketOf(){
+        return redisson.getMap(scheduleName() + ":bucket", StringCodec.INSTANCE);
+    }
+
+    private RScoredSortedSet<String> bucket(long schedule){
+        return redisson.getScoredSortedSet(scheduleName() + ":" + bucketStart(schedule), StringCodec.INSTANCE);
+    }
+
+    private static long bucketStart(long schedule){
+        return schedule / BUCKET_MS * BUCKET_MS;
+    }
+
+    private int firedCount(String taskId){
+        AtomicInteger count = fired.get(taskId);
+        return count == null ? 0 : count.get();
+    }
+
+    @Test
+    public void tasksAreStoredInBuckets() throws InterruptedException {
+        long near = System.currentTimeMillis() + 300L;
+        long far = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        task.offer("near", "msg", near);
+        task.offer("far", "msg", far);
+
+        Assert.assertTrue(index().contains(String.valueOf(bucketStart(far))));
+        // 索引中记录桶中最早的任务计划时间
+        Assert.assertEquals(far, index().getScore(String.valueOf(bucketStart(far))).longValue());
+        Assert.assertEquals(String.valueOf(bucketStart(far)), bucketOf().get("far"));
+        Assert.assertTrue(bucket(far).contains("far"));
+        Assert.assertEquals(far, bucket(far).getScore("far").longValue());
+
+        Assert.assertTrue(await(() -> firedCount("near") == 1, 3000L));
+        // 到期转移后任务离开分桶，空的桶从索引中删除
+        Assert.assertFalse(bucketOf().containsKey("near"));
+        Assert.assertEquals(1, index().size());
+        Assert.assertFalse(bucket(near).isExists());
+        Assert.assertEquals(0, firedCount("far"));
+    }
+
+    @Test
+    public void reofferMovesTaskBetweenBuckets() throws InterruptedException {
+        long far = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        task.offer("t1", "msg", far);
+        long near = System.currentTimeMillis() + 300L;
+        task.offer("t1", "msg", near);
+
+        // 原来的桶中的任务延迟删除，分桶表中记录的是新的桶
+        Assert.assertEquals(String.valueOf(bucketStart(near)), bucketOf().get("t1"));
+        Assert.assertTrue(bucket(near).contains("t1"));
+
+        Assert.assertTrue(await(() -> firedCount("t1") == 1, 3000L));
+        Thread.sleep(500L);
+        Assert.assertEquals(1, firedCount("t1"));
+        Assert.assertFalse(bucketOf().isExists());
+        Assert.assertFalse(bucket(near).isExists());
+    }
+
+    @Test
+    public void staleEntryIsSkippedAndCleaned() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long early = now + 300L;
+        long late = now + 1500L;
+        task.offer("t1", "msg", early);
+        task.offer("t1", "msg", late);
+        Assert.assertTrue(bucket(early).contains("t1"));
+
+        // 原来的桶到期时失效的任务被跳过，不会提前执行
+        Thread.sleep(800L);
+        Assert.assertEquals(0, firedCount("t1"));
+        Assert.assertTrue(await(() -> firedCount("t1") == 1, 3000L));
+        Thread.sleep(300L);
+        Assert.assertEquals(1, firedCount("t1"));
+        Assert.assertFalse(bucket(early).isExists());
+        Assert.assertFalse(bucket(late).isExists());
+        Assert.assertEquals(0, index().size());
+    }
+
+    @Test
+    public void cancelRemovesTaskLazily() throws InterruptedException {
+        long far = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        task.offer("t1", "msg", far);
+        task.offer("t2", "msg", far + 1);
+
+        Assert.assertTrue(task.tryCancel("t1"));
+        Assert.assertFalse(bucketOf().containsKey("t1"));
+        Assert.assertTrue(task.tryCancel("t2"));
+        Assert.assertFalse(task.tryCancel("t2"));
+        Assert.assertFalse(bucketOf().isExists());
+
+        // 到期的桶中已经取消的任务不会执行，桶和索引在转移时清理
+        long near = System.currentTimeMillis() + 300L;
+        task.offer("t3", "msg", near);
+        task.offer("t4", "msg", near);
+        Assert.assertTrue(task.tryCancel("t3"));
+        Assert.assertTrue(await(() -> firedCount("t4") == 1, 3000L));
+        Thread.sleep(300L);
+        Assert.assertEquals(0, firedCount("t3"));
+        Assert.assertFalse(bucket(near).isExists());
+        Assert.assertFalse(index().contains(String.valueOf(bucketStart(near))));
+    }
+
+    @Test
+    public void retryIsStoredInScheduleSet() throws InterruptedException {
+        RDelayedTaskOptions options = RDelayedTaskOptions.defaults();
+        options.setScheduleBucketMs(BUCKET_MS);
+        options.setRetryDelayMs(200L);
+        options.setMaxRetries(1);
+        AtomicInteger attempts = new AtomicInteger();
+        RedissonDelayedTaskProxy<String> retrying = new RedissonDelayedTaskProxy<>(redisson, randomName("bucket_retry"), StringCodec.INSTANCE, (taskId, msg) -> {
+            if (attempts.incrementAndGet() == 1){
+                throw new IllegalStateException("第一次执行失败");
+            }
+        }, options);
+        try {
+            retrying.offer("t1", "msg", System.currentTimeMillis() + 100L);
+            // 重试的计划时间在脚本中计算，放到计划表本身，同样会按时转移
+            Assert.assertTrue(await(() -> attempts.get() == 2, 3000L));
+        } finally {
+            retrying.destroy();
+            deleteKeys(retrying.getProxy().getName());
+        }
+    }
+
+    @Test
+    public void offerAllAcrossBuckets() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        Map<String, Map.Entry<String, Long>> tasks = new LinkedHashMap<>();
+        for (int i = 0; i < 30; i++){
+            // 分布在3个桶中
+            tasks.put("t" + i, new AbstractMap.SimpleEntry<>("msg" + i, now + 200L + i * 80L));
+        }
+        task.offerAll(tasks);
+        Assert.assertTrue(index().size() >= 3);
+
+        Assert.assertTrue("任务没有全部执行:" + fired.size(), await(() -> fired.size() == tasks.size(), 6000L));
+        for (String taskId : tasks.keySet()){
+            Assert.assertEquals(1, firedCount(taskId));
+        }
+        Assert.assertEquals(0, index().size());
+    }
+}
@@ -0,0 +1,89 @@
+package com.marsh.framework.redisson.task;
+
+import com.marsh.framework.redisson.RedisTestSupport;
+import com.marsh.framework.redisson.task.spring.RedissonDelayedTaskProxy;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 延时任务并发执行测试
+ * @author Marsh
+ * @date 2022-07-11日 16:30
+ */
+public class DelayedTaskConcurrencyTest extends RedisTestSupport {
+
+    private final List<RedissonDelayedTaskProxy<String>> tasks = new ArrayList<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final Set<String> executed = ConcurrentHashMap.newKeySet();
+
+    @After
+    public void destroy(){
+        for (RedissonDelayedTaskProxy<String> task : tasks){
+            task.destroy();
+            deleteKeys(task.getProxy().getName());
+        }
+    }
+
+    private RedissonDelayedTaskProxy<String> create(String name, boolean virtualThreads){
+        RDelayedTaskOptions options = RDelayedTaskOptions.defaults();
+        options.setMaxConcurrency(2);
+        options.setVirtualThreads(virtualThreads);
+        RedissonDelayedTaskProxy<String> task = new RedissonDelayedTaskProxy<>(redisson, name, StringCodec.INSTANCE, (taskId, msg) -> {
+            int current = active.incrementAndGet();
+            maxActive.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(100L);
+            } finally {
+                active.decrementAndGet();
+            }
+            executed.add(taskId);
+        }, options);
+        tasks.add(task);
+        return task;
+    }
+
+    private void runsWithBoundedConcurrency(boolean virtualThreads) throws InterruptedException {
+        RedissonDelayedTaskProxy<String> task = create(randomName("concurrency"), virtualThreads);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 6; i++){
+            task.offer("t" + i, "msg", now);
+        }
+        Assert.assertTrue("执行完成的任务:" + executed, await(() -> executed.size() == 6, 5000L));
+        Assert.assertTrue("并发数量超过限制:" + maxActive.get(), maxActive.get() <= 2);
+        Assert.assertEquals("任务应该并发执行", 2, maxActive.get());
+    }
+
+    @Test
+    public void platformThreadsRespectMaxConcurrency() throws InterruptedException {
+        runsWithBoundedConcurrency(false);
+    }
+
+    @Test
+    public void virtualThreadsRespectMaxConcurrency() throws InterruptedException {
+        // JDK不支持虚拟线程时退回到固定大小线程池，并发数量限制不变
+        runsWithBoundedConcurrency(true);
+    }
+
+    @Test
+    public void sameTypeSharesOneConsumer() throws InterruptedException {
+        String name = randomName("concurrency_shared");
+        RedissonDelayedTaskProxy<String> first = create(name, false);
+        create(name, false);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 4; i++){
+            first.offer("t" + i, "msg", now);
+        }
+        // 同一个类型只启动一个消费者，并发数量不会因为多个实例而翻倍
+        Assert.assertTrue(await(() -> executed.size() == 4, 5000L));
+        Assert.assertTrue("并发数量超过限制:" + maxActive.get(), maxActive.get() <= 2);
+    }
+}
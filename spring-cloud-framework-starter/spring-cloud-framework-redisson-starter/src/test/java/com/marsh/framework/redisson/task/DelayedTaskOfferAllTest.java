@@ -0,0 +1,113 @@
+package com.marsh.framework.redisson.task;
+
+import com.marsh.framework.redisson.RedisTestSupport;
+import com.marsh.framework.redisson.task.spring.RedissonDelayedTaskProxy;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.redisson.RedissonObject;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 批量提供任务测试
+ * @author Marsh
+ * @date 2022-07-11日 18:40
+ */
+public class DelayedTaskOfferAllTest extends RedisTestSupport {
+
+    private final List<RedissonDelayedTaskProxy<String>> tasks = new ArrayList<>();
+    /**
+     * 任务id => 任务数据
+     */
+    private final Map<String, String> fired = new ConcurrentHashMap<>();
+    private final Map<String, Long> firedAt = new ConcurrentHashMap<>();
+
+    @After
+    public void destroy(){
+        for (RedissonDelayedTaskProxy<String> task : tasks){
+            task.destroy();
+            deleteKeys(task.getProxy().getName());
+        }
+    }
+
+    private RedissonDelayedTaskProxy<String> create(){
+        RDelayedTaskOptions options = RDelayedTaskOptions.defaults();
+        options.setOfferChunkSize(10);
+        options.setMaxConcurrency(4);
+        RedissonDelayedTaskProxy<String> task = new RedissonDelayedTaskProxy<>(redisson, randomName("offer_all"), StringCodec.INSTANCE, (taskId, msg) -> {
+            fired.put(taskId, msg);
+            firedAt.put(taskId, System.currentTimeMillis());
+        }, options);
+        tasks.add(task);
+        return task;
+    }
+
+    private String keyName(RedissonDelayedTaskProxy<String> task, String suffix){
+        return RedissonObject.suffixName(RedissonObject.prefixName("redisson_delay_task", task.getProxy().getName()), suffix);
+    }
+
+    @Test
+    public void allChunksAreWritten() throws InterruptedException {
+        RedissonDelayedTaskProxy<String> task = create();
+        Map<String, Map.Entry<String, Long>> batch = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 35; i++){
+            batch.put("t" + i, new AbstractMap.SimpleEntry<>("msg" + i, now + 300L + i * 10L));
+        }
+        task.offerAll(batch);
+        Assert.assertEquals(35, redisson.getMap(keyName(task, "data"), StringCodec.INSTANCE).size());
+
+        Assert.assertTrue("执行完成的任务:" + fired.size(), await(() -> fired.size() == 35, 5000L));
+        for (int i = 0; i < 35; i++){
+            Assert.assertEquals("msg" + i, fired.get("t" + i));
+        }
+    }
+
+    @Test
+    public void earlierBatchNotifiesScheduler() throws InterruptedException {
+        RedissonDelayedTaskProxy<String> task = create();
+        long now = System.currentTimeMillis();
+        task.offer("far", "msg", now + 60000L);
+        Thread.sleep(100L);
+
+        // 批量中最早的任务比计划表中已有的任务更早，最后一批写入时需要通知更新计划时间
+        Map<String, Map.Entry<String, Long>> batch = new LinkedHashMap<>();
+        for (int i = 0; i < 25; i++){
+            batch.put("t" + i, new AbstractMap.SimpleEntry<>("msg" + i, now + 500L + (24 - i) * 10L));
+        }
+        task.offerAll(batch);
+
+        Assert.assertTrue(await(() -> fired.size() == 25, 3000L));
+        long delay = firedAt.get("t24") - (now + 500L);
+        Assert.assertTrue("执行时间异常:" + delay, delay >= 0 && delay < 500L);
+        Assert.assertFalse(fired.containsKey("far"));
+    }
+
+    @Test
+    public void nullDataIsRejectedBeforeWriting(){
+        RedissonDelayedTaskProxy<String> task = create();
+        Map<String, Map.Entry<String, Long>> batch = new LinkedHashMap<>();
+        long schedule = System.currentTimeMillis() + 60000L;
+        batch.put("t1", new AbstractMap.SimpleEntry<>("msg", schedule));
+        batch.put("t2", new AbstractMap.SimpleEntry<>(null, schedule));
+        try {
+            task.offerAll(batch);
+            Assert.fail("任务数据为空时应该抛出异常");
+        } catch (IllegalArgumentException e){
+            // 校验失败时一个任务都不写入
+            Assert.assertTrue(redisson.getMap(keyName(task, "data"), StringCodec.INSTANCE).isEmpty());
+        }
+    }
+
+    @Test
+    public void emptyBatchIsNoop(){
+        create().offerAll(new LinkedHashMap<>());
+    }
+}
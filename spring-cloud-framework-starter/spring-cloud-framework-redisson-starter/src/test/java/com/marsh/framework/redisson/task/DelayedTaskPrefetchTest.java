@@ -0,0 +1,117 @@
+package com.marsh.framework.redisson.task;
+
+import com.marsh.framework.redisson.RedisTestSupport;
+import com.marsh.framework.redisson.task.spring.RedissonDelayedTaskProxy;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 开启预取时间窗口(本地时间轮)的延时任务测试
+ * @author Marsh
+ * @date 2022-07-10日 09:30
+ */
+public class DelayedTaskPrefetchTest extends RedisTestSupport {
+
+    private final List<RedissonDelayedTaskProxy<String>> tasks = new ArrayList<>();
+    /**
+     * 任务id => 任务执行的时间戳
+     */
+    private final Map<String, Long> fired = new ConcurrentHashMap<>();
+
+    @After
+    public void destroy(){
+        for (RedissonDelayedTaskProxy<String> task : tasks){
+            task.destroy();
+            deleteKeys(task.getProxy().getName());
+        }
+    }
+
+    private RedissonDelayedTaskProxy<String> create(RDelayedTaskOptions options){
+        RedissonDelayedTaskProxy<String> task = new RedissonDelayedTaskProxy<>(redisson, randomName("prefetch"), StringCodec.INSTANCE,
+                (taskId, msg) -> fired.putIfAbsent(taskId, System.currentTimeMillis()), options);
+        tasks.add(task);
+        return task;
+    }
+
+    private static RDelayedTaskOptions options(long prefetchWindowMs){
+        RDelayedTaskOptions options = RDelayedTaskOptions.defaults();
+        options.setPrefetchWindowMs(prefetchWindowMs);
+        options.setTickMs(20L);
+        options.setMaxConcurrency(4);
+        return options;
+    }
+
+    @Test
+    public void tasksFireAtTheirTime() throws InterruptedException {
+        RedissonDelayedTaskProxy<String> task = create(options(2000L));
+        Map<String, Long> schedules = new ConcurrentHashMap<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++){
+            String taskId = "task" + i;
+            long schedule = now + 300L + i * 20L;
+            schedules.put(taskId, schedule);
+            task.offer(taskId, "msg" + i, schedule);
+        }
+
+        Assert.assertTrue("任务没有全部执行:" + fired.size(), await(() -> fired.size() == schedules.size(), 5000L));
+        for (Map.Entry<String, Long> entry : schedules.entrySet()){
+            long delay = fired.get(entry.getKey()) - entry.getValue();
+            // 时间格结束时才转移，不会提前执行
+            Assert.assertTrue(entry.getKey() + "提前执行:" + delay, delay >= 0);
+            Assert.assertTrue(entry.getKey() + "执行延迟过大:" + delay, delay < 500L);
+        }
+    }
+
+    @Test
+    public void taskBeyondWindowFires() throws InterruptedException {
+        RedissonDelayedTaskProxy<String> task = create(options(500L));
+        long schedule = System.currentTimeMillis() + 1500L;
+        task.offer("far", "msg", schedule);
+
+        // 超出预取窗口的任务在窗口推进后仍然按时执行
+        Assert.assertTrue(await(() -> fired.containsKey("far"), 4000L));
+        long delay = fired.get("far") - schedule;
+        Assert.assertTrue("执行时间异常:" + delay, delay >= 0 && delay < 500L);
+    }
+
+    @Test
+    public void laterTaskOfferedMidWindowFires() throws InterruptedException {
+        RedissonDelayedTaskProxy<String> task = create(options(5000L));
+        long now = System.currentTimeMillis();
+        task.offer("head", "msg", now + 400L);
+        // 等待预取完成，之后投递的任务不是最早的任务，不会发布通知
+        Thread.sleep(100L);
+        long schedule = now + 800L;
+        task.offer("later", "msg", schedule);
+
+        // 不能等到预取窗口结束时才转移
+        Assert.assertTrue(await(() -> fired.containsKey("later"), 2000L));
+        long delay = fired.get("later") - schedule;
+        Assert.assertTrue("执行时间异常:" + delay, delay >= 0 && delay < 300L);
+        Assert.assertTrue(fired.containsKey("head"));
+    }
+
+    @Test
+    public void bucketLargerThanTransferBatchDrains() throws InterruptedException {
+        RDelayedTaskOptions options = options(2000L);
+        options.setTransferBatchSize(10);
+        RedissonDelayedTaskProxy<String> task = create(options);
+        long schedule = System.currentTimeMillis() + 500L;
+        for (int i = 0; i < 100; i++){
+            task.offer("task" + i, "msg" + i, schedule);
+        }
+
+        // 同一个时间格内的任务超过每次转移的数量时，需要连续转移完，不能等到下一个时间窗口
+        Assert.assertTrue("任务没有全部执行:" + fired.size(), await(() -> fired.size() == 100, 3000L));
+        for (Long time : fired.values()){
+            Assert.assertTrue("执行延迟过大:" + (time - schedule), time - schedule < 1000L);
+        }
+    }
+}
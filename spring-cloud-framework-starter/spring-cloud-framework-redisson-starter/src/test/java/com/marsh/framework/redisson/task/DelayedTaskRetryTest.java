@@ -0,0 +1,101 @@
+package com.marsh.framework.redisson.task;
+
+import com.marsh.framework.redisson.RedisTestSupport;
+import com.marsh.framework.redisson.task.spring.RedissonDelayedTaskProxy;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.redisson.RedissonObject;
+import org.redisson.client.codec.StringCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 延时任务执行超时、失败重试和死信测试
+ * @author Marsh
+ * @date 2022-07-10日 10:15
+ */
+public class DelayedTaskRetryTest extends RedisTestSupport {
+
+    private final List<RedissonDelayedTaskProxy<String>> tasks = new ArrayList<>();
+    /**
+     * 每次执行任务的时间戳
+     */
+    private final List<Long> attempts = new CopyOnWriteArrayList<>();
+
+    @After
+    public void destroy(){
+        for (RedissonDelayedTaskProxy<String> task : tasks){
+            task.destroy();
+            deleteKeys(task.getProxy().getName());
+        }
+    }
+
+    private RedissonDelayedTaskProxy<String> create(RDelayedTaskHandler<String> handler){
+        RDelayedTaskOptions options = RDelayedTaskOptions.defaults();
+        options.setMaxConcurrency(2);
+        options.setExecutionTimeoutMs(500L);
+        options.setRetryDelayMs(200L);
+        options.setRetryBackoffMultiplier(2.0);
+        options.setMaxRetries(2);
+        RedissonDelayedTaskProxy<String> task = new RedissonDelayedTaskProxy<>(redisson, randomName("retry"), StringCodec.INSTANCE, handler, options);
+        tasks.add(task);
+        return task;
+    }
+
+    private String keyName(RedissonDelayedTaskProxy<String> task, String suffix){
+        return RedissonObject.suffixName(RedissonObject.prefixName("redisson_delay_task", task.getProxy().getName()), suffix);
+    }
+
+    @Test
+    public void failedTaskRetriesWithBackoffThenDeadLetters() throws InterruptedException {
+        RedissonDelayedTaskProxy<String> task = create((taskId, msg) -> {
+            attempts.add(System.currentTimeMillis());
+            throw new IllegalStateException("模拟任务执行失败");
+        });
+        task.offer("t1", "msg", System.currentTimeMillis());
+
+        // 第一次执行加上2次重试
+        Assert.assertTrue("重试次数不对:" + attempts.size(), await(() -> attempts.size() == 3, 5000L));
+        long firstDelay = attempts.get(1) - attempts.get(0);
+        long secondDelay = attempts.get(2) - attempts.get(1);
+        Assert.assertTrue("第一次重试延迟:" + firstDelay, firstDelay >= 180L);
+        Assert.assertTrue("第二次重试延迟没有翻倍:" + secondDelay, secondDelay >= 380L);
+
+        // 超过最大重试次数进入死信表，不再执行，数据保留到任务取消
+        Assert.assertTrue(await(() -> redisson.getScoredSortedSet(keyName(task, "dead"), StringCodec.INSTANCE).contains("t1"), 2000L));
+        Thread.sleep(1000L);
+        Assert.assertEquals(3, attempts.size());
+        Assert.assertTrue(redisson.getMap(keyName(task, "data"), StringCodec.INSTANCE).containsKey("t1"));
+
+        Assert.assertTrue(task.tryCancel("t1"));
+        Assert.assertFalse(redisson.getScoredSortedSet(keyName(task, "dead"), StringCodec.INSTANCE).contains("t1"));
+        Assert.assertFalse(redisson.getMap(keyName(task, "data"), StringCodec.INSTANCE).containsKey("t1"));
+        Assert.assertFalse(redisson.getMap(keyName(task, "retry"), StringCodec.INSTANCE).containsKey("t1"));
+        Assert.assertFalse(task.tryCancel("t1"));
+    }
+
+    @Test
+    public void timedOutTaskIsRetriedAfterDelay() throws InterruptedException {
+        RedissonDelayedTaskProxy<String> task = create((taskId, msg) -> {
+            attempts.add(System.currentTimeMillis());
+            if (attempts.size() == 1){
+                // 第一次执行超过执行超时时间
+                Thread.sleep(1500L);
+            }
+        });
+        task.offer("t1", "msg", System.currentTimeMillis());
+
+        Assert.assertTrue("超时的任务没有重试", await(() -> attempts.size() == 2, 4000L));
+        long delay = attempts.get(1) - attempts.get(0);
+        // 执行超时500毫秒 + 重试延迟200毫秒
+        Assert.assertTrue("超时重试过早:" + delay, delay >= 650L);
+
+        // 第二次执行成功后任务数据被删除，第一次执行晚到的ack不会再次触发任务
+        Assert.assertTrue(await(() -> !redisson.getMap(keyName(task, "data"), StringCodec.INSTANCE).containsKey("t1"), 2000L));
+        Thread.sleep(1500L);
+        Assert.assertEquals(2, attempts.size());
+    }
+}